@@ -36,7 +36,7 @@ import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
 /**
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public abstract class AbstractOutputWriter implements OutputWriter {
+public abstract class AbstractOutputWriter implements CycleAwareOutputWriter {
 
     /**
      * Define the level of log message to display tweaking java.util.logging configuration.
@@ -49,6 +49,11 @@ public abstract class AbstractOutputWriter implements OutputWriter {
     private Level debugLevel = Level.FINE;
     private Level traceLevel = Level.FINER;
     private Level infoLevel = Level.INFO;
+    /**
+     * Cycle of the current collection, {@code null} if the collection has no cycle context
+     */
+    @Nullable
+    private CollectCycle collectCycle;
 
     @Override
     public void postConstruct(@Nonnull Map<String, String> settings) {
@@ -82,6 +87,36 @@ public abstract class AbstractOutputWriter implements OutputWriter {
 
     @Override
     public void preCollect() throws IOException {
+        collectCycle = null;
+    }
+
+    /**
+     * Remember the cycle then invoke {@link #preCollect()}.
+     */
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        preCollect();
+        collectCycle = cycle;
+    }
+
+    protected void setCollectCycle(@Nullable CollectCycle collectCycle) {
+        this.collectCycle = collectCycle;
+    }
+
+    /**
+     * @return the cycle of the current collection, {@code null} if unknown
+     */
+    @Nullable
+    protected CollectCycle getCollectCycle() {
+        return collectCycle;
+    }
+
+    /**
+     * @return the capture time of the current collection, the current time if the collection has no cycle context
+     */
+    protected long getCollectTimeInMillis() {
+        CollectCycle collectCycle = this.collectCycle;
+        return collectCycle == null ? System.currentTimeMillis() : collectCycle.getTimestampInMillis();
     }
 
     @Override
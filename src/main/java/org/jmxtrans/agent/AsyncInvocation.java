@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Runs an expensive {@link Invocation} (heap histogram, {@code gc()}, thread dump...) on a separate executor so that
+ * it doesn't delay the collection of the queries. Each collection writes the results of the last successful
+ * invocation and, if the previous invocation is complete and the {@link Invocation#getMinInvokeIntervalInSeconds()
+ * minimum interval} elapsed, triggers a new invocation whose results will be written by the next collections.
+ *
+ * An invocation exceeding its {@link Invocation#getCollectTimeoutInMillis() timeout} is cancelled, as a blocked JMX
+ * call can't always be interrupted, no new invocation is started until the blocked one returns.
+ */
+public class AsyncInvocation implements Collectable {
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    @Nonnull
+    private final Invocation invocation;
+    @Nonnull
+    private final ExecutorService executorService;
+    /**
+     * Results of the last successful invocation, published by the invoking thread and never modified afterwards.
+     */
+    @Nullable
+    private volatile MetricBatch lastResults;
+    /**
+     * {@code true} from the submission of an invocation until it returns, even if cancelled
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+    @Nullable
+    private Future<?> future;
+    /**
+     * Set by the first of the invoking thread publishing its results and of the timeout cancelling it, so that a
+     * cancelled invocation never publishes its late results
+     */
+    @Nullable
+    private AtomicBoolean futureSettled;
+    private long lastInvokeInNanos;
+    private boolean invoked;
+    private final AtomicLong timeoutsCount = new AtomicLong();
+
+    public AsyncInvocation(@Nonnull Invocation invocation, @Nonnull ExecutorService executorService) {
+        this.invocation = invocation;
+        this.executorService = executorService;
+    }
+
+    @Override
+    public synchronized void collectAndExport(@Nonnull final MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) throws Exception {
+        long nowInNanos = System.nanoTime();
+        cancelIfTimedOut(nowInNanos);
+        Integer minInvokeIntervalInSeconds = invocation.getMinInvokeIntervalInSeconds();
+        boolean intervalElapsed = !invoked || minInvokeIntervalInSeconds == null ||
+                nowInNanos - lastInvokeInNanos >= TimeUnit.SECONDS.toNanos(minInvokeIntervalInSeconds);
+        if (intervalElapsed && running.compareAndSet(false, true)) {
+            final AtomicBoolean settled = new AtomicBoolean();
+            try {
+                future = executorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            MetricBatch results = new MetricBatch();
+                            // a failed invocation keeps the last good results
+                            if (invocation.invoke(mbeanIndex, results) && settled.compareAndSet(false, true)) {
+                                lastResults = results;
+                            }
+                        } finally {
+                            running.set(false);
+                        }
+                    }
+                });
+                futureSettled = settled;
+                invoked = true;
+                lastInvokeInNanos = nowInNanos;
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                logger.fine("Invocation not submitted, exporter is stopping: " + invocation);
+            }
+        }
+        MetricBatch lastResults = this.lastResults;
+        if (lastResults != null) {
+            lastResults.writeTo(outputWriter);
+        }
+    }
+
+    private void cancelIfTimedOut(long nowInNanos) {
+        Long timeoutInMillis = invocation.getCollectTimeoutInMillis();
+        if (future == null || timeoutInMillis == null || future.isDone())
+            return;
+        if (nowInNanos - lastInvokeInNanos > TimeUnit.MILLISECONDS.toNanos(timeoutInMillis)) {
+            if (!futureSettled.compareAndSet(false, true)) {
+                // results published meanwhile
+                return;
+            }
+            future.cancel(true);
+            future = null;
+            timeoutsCount.incrementAndGet();
+            logger.log(Level.WARNING, "Invocation " + invocation + " exceeded its timeout of " + timeoutInMillis + "ms, cancelled");
+        }
+    }
+
+    /**
+     * @return the number of invocations cancelled after exceeding their timeout
+     */
+    public long getTimeoutsCount() {
+        return timeoutsCount.get();
+    }
+
+    /**
+     * The timeout is enforced on the asynchronous invocation, writing the cached results is never blocking.
+     */
+    @Nullable
+    @Override
+    public Long getCollectTimeoutInMillis() {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public ObjectName getObjectName() {
+        return invocation.getObjectName();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncInvocation{" +
+                "invocation=" + invocation +
+                '}';
+    }
+}
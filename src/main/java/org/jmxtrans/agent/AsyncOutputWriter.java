@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Decouples the collection from the export: the calls are queued in a {@link MetricRingBuffer} by the collecting
+ * thread and replayed on the {@link #delegate} by a dedicated writer thread, so that a slow or stalled backend doesn't
+ * block the collection.
+ *
+ * The calls are expected to be made by a single thread at a time.
+ */
+public class AsyncOutputWriter implements NumericOutputWriter, BatchOutputWriter, CycleAwareOutputWriter {
+
+    /**
+     * Maximum sleep of the writer thread when the buffer is empty
+     */
+    private final static long IDLE_PARK_DURATION_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    @Nonnull
+    protected final OutputWriter delegate;
+    @Nonnull
+    private final MetricRingBuffer ringBuffer;
+    @Nonnull
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    public AsyncOutputWriter(@Nonnull OutputWriter delegate, @Nonnull MetricRingBuffer ringBuffer, @Nonnull ThreadFactory threadFactory) {
+        this.delegate = delegate;
+        this.ringBuffer = ringBuffer;
+        this.writerThread = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    public void start() {
+        running = true;
+        writerThread.start();
+    }
+
+    /**
+     * Stop the writer thread once the queued records are written.
+     *
+     * @return {@code false} if the queued records could not be written within the given timeout
+     */
+    public boolean stop(long timeout, @Nonnull TimeUnit timeUnit) throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writerThread);
+        timeUnit.timedJoin(writerThread, timeout);
+        if (writerThread.isAlive()) {
+            logger.warning("Writer thread did not stop within " + timeout + " " + timeUnit + ", " + ringBuffer.size() + " records not written");
+            writerThread.interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void drain() {
+        MetricRingBuffer.Record record = new MetricRingBuffer.Record();
+        while (true) {
+            if (ringBuffer.poll(record)) {
+                try {
+                    record.writeTo(delegate);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Ignore exception writing " + record.getRecordType() + " " + record.getName() + " to " + delegate, e);
+                } finally {
+                    record.clear();
+                }
+            } else if (running) {
+                LockSupport.parkNanos(this, IDLE_PARK_DURATION_IN_NANOS);
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void postConstruct(@Nonnull Map<String, String> settings) {
+        delegate.postConstruct(settings);
+    }
+
+    @Override
+    public void preDestroy() {
+        delegate.preDestroy();
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+        offer(MetricRingBuffer.RecordType.PRE_COLLECT, null, null, null);
+    }
+
+    /**
+     * The cycle is queued with the {@link MetricRingBuffer.RecordType#PRE_COLLECT} record and passed to the delegate
+     * by the writer thread.
+     */
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        offer(MetricRingBuffer.RecordType.PRE_COLLECT, null, null, cycle);
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+        offer(MetricRingBuffer.RecordType.QUERY_RESULT, metricName, metricType, value);
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        wakeUpWriterIfHalfFull();
+        ringBuffer.offerLong(metricName, metricType, value);
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        wakeUpWriterIfHalfFull();
+        ringBuffer.offerDouble(metricName, metricType, value);
+    }
+
+    /**
+     * Queue the results of the batch one by one, the batch is reused by the caller once this method returns.
+     */
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            wakeUpWriterIfHalfFull();
+            switch (batch.getValueType(i)) {
+                case MetricBatch.LONG_VALUE:
+                    ringBuffer.offerLong(batch.getName(i), batch.getType(i), batch.getLongValue(i));
+                    break;
+                case MetricBatch.DOUBLE_VALUE:
+                    ringBuffer.offerDouble(batch.getName(i), batch.getType(i), batch.getDoubleValue(i));
+                    break;
+                case MetricBatch.INVOCATION_VALUE:
+                    ringBuffer.offer(MetricRingBuffer.RecordType.INVOCATION_RESULT, batch.getName(i), null, batch.getObjectValue(i));
+                    break;
+                default:
+                    ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, batch.getName(i), batch.getType(i), batch.getObjectValue(i));
+            }
+        }
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        offer(MetricRingBuffer.RecordType.INVOCATION_RESULT, invocationName, null, value);
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        offer(MetricRingBuffer.RecordType.POST_COLLECT, null, null, null);
+        // end of the collection, wake up the writer thread
+        LockSupport.unpark(writerThread);
+    }
+
+    private void offer(@Nonnull MetricRingBuffer.RecordType recordType, @Nullable String name, @Nullable String type, @Nullable Object value) {
+        wakeUpWriterIfHalfFull();
+        ringBuffer.offer(recordType, name, type, value);
+    }
+
+    private void wakeUpWriterIfHalfFull() {
+        if (ringBuffer.size() >= ringBuffer.capacity() / 2) {
+            // don't wait for the end of the collection to wake up the writer thread
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    @Nonnull
+    public MetricRingBuffer getRingBuffer() {
+        return ringBuffer;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncOutputWriter{" +
+                "ringBuffer=" + ringBuffer +
+                ", delegate=" + delegate +
+                '}';
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * {@link OutputWriter} accepting all the results of a collection at once, in a single call per collection instead of
+ * a call per result.
+ *
+ * Callers should go through {@link OutputWriters#writeBatch(OutputWriter, MetricBatch)} that replays the batch on the
+ * {@link OutputWriter}s that don't implement this interface.
+ */
+public interface BatchOutputWriter extends OutputWriter {
+
+    /**
+     * Write all the results of the given batch, equivalent to calling {@link #writeQueryResult(String, String, Object)}
+     * and {@link #writeInvocationResult(String, Object)} for each result in order.
+     *
+     * @param batch only valid during the call, the batch is reused for the next collection
+     */
+    void writeBatch(@Nonnull MetricBatch batch) throws IOException;
+}
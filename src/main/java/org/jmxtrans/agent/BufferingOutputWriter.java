@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers the written results in memory so that they can later be {@link #writeTo(OutputWriter) replayed} on another
+ * {@link OutputWriter}, in the same order. Used to collect on worker threads and write on the collection thread.
+ *
+ * Not thread safe.
+ */
+public class BufferingOutputWriter extends AbstractOutputWriter implements OutputWriter {
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+        entries.add(new Entry(false, metricName, metricType, value));
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        entries.add(new Entry(true, invocationName, null, value));
+    }
+
+    /**
+     * Write the buffered results to the given {@code outputWriter} and clear the buffer.
+     */
+    public void writeTo(@Nonnull OutputWriter outputWriter) throws IOException {
+        try {
+            for (Entry entry : entries) {
+                if (entry.invocation) {
+                    outputWriter.writeInvocationResult(entry.name, entry.value);
+                } else {
+                    OutputWriters.writeQueryResult(outputWriter, entry.name, entry.type, entry.value);
+                }
+            }
+        } finally {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        final boolean invocation;
+        final String name;
+        final String type;
+        final Object value;
+
+        Entry(boolean invocation, String name, String type, Object value) {
+            this.invocation = invocation;
+            this.name = name;
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
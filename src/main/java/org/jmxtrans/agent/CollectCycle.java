@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Context of one collection of a {@link JmxTransExporter}: all the results of the collection share the same capture
+ * timestamp so that the backends can join them exactly and the output writers format the timestamp only once.
+ *
+ * Immutable.
+ */
+public final class CollectCycle {
+    private final long id;
+    private final long timestampInMillis;
+    private final long nanoTime;
+
+    /**
+     * @param id                sequence number of the collection, increasing
+     * @param timestampInMillis capture time of the results (see {@link System#currentTimeMillis()})
+     * @param nanoTime          monotonic capture time (see {@link System#nanoTime()})
+     */
+    public CollectCycle(long id, long timestampInMillis, long nanoTime) {
+        this.id = id;
+        this.timestampInMillis = timestampInMillis;
+        this.nanoTime = nanoTime;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestampInMillis() {
+        return timestampInMillis;
+    }
+
+    public long getTimestampInSeconds() {
+        return TimeUnit.SECONDS.convert(timestampInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the monotonic capture time, only meaningful to compute durations within the same JVM
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    @Override
+    public String toString() {
+        return "CollectCycle{" +
+                "id=" + id +
+                ", timestampInMillis=" + timestampInMillis +
+                '}';
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+/**
+ * Adapts the pace of the collections of a {@link JmxTransExporter} so that they fit in a CPU budget, e.g. 1% of one
+ * core, and don't overload an already struggling JVM (GC storm, burst of MBeans registrations...).
+ *
+ * When a collection exceeds its budget or overruns its period, the low priority queries are first shed, then the
+ * collect interval is doubled, up to {@link #maxStretchFactor} times the configured interval. Once the collections
+ * fit comfortably in the budget of the next lower step during {@link #RECOVERY_CYCLES} cycles, the interval is
+ * shortened one step at a time then the low priority queries are collected again.
+ *
+ * Only updated by the collecting thread, the state is exposed to the {@link ExporterStatistics}.
+ */
+class CollectThrottle {
+    /**
+     * Number of consecutive collections under budget before recovering one step
+     */
+    final static int RECOVERY_CYCLES = 3;
+
+    private final double cpuBudgetRatio;
+    private final int maxStretchFactor;
+    private volatile int stretchFactor = 1;
+    private volatile boolean shedding;
+    private int underBudgetCycles;
+
+    /**
+     * @param cpuBudgetInPercent maximum CPU time of the collections in percent of one core
+     * @param maxStretchFactor   maximum ratio between the actual and the configured collect interval
+     */
+    CollectThrottle(double cpuBudgetInPercent, int maxStretchFactor) {
+        if (!(cpuBudgetInPercent > 0))
+            throw new IllegalArgumentException("Invalid cpuBudgetInPercent " + cpuBudgetInPercent + ", must be greater than 0");
+        if (maxStretchFactor < 1)
+            throw new IllegalArgumentException("Invalid maxStretchFactor " + maxStretchFactor + ", must be greater than 0");
+        this.cpuBudgetRatio = cpuBudgetInPercent / 100;
+        this.maxStretchFactor = maxStretchFactor;
+    }
+
+    /**
+     * Record a collection and adapt the {@link #getStretchFactor() stretch factor} and the {@link #isShedding() shedding}.
+     *
+     * @param cpuTimeInNanos  CPU time consumed by the collection
+     * @param wallTimeInNanos elapsed time of the collection
+     * @param periodInNanos   interval since the previous collection, stretching included
+     * @param sheddable       {@code true} if low priority queries can be shed
+     */
+    void record(long cpuTimeInNanos, long wallTimeInNanos, long periodInNanos, boolean sheddable) {
+        if (cpuTimeInNanos > cpuBudgetRatio * periodInNanos || wallTimeInNanos > periodInNanos) {
+            underBudgetCycles = 0;
+            if (sheddable && !shedding) {
+                shedding = true;
+            } else if (stretchFactor < maxStretchFactor) {
+                stretchFactor = Math.min(stretchFactor * 2, maxStretchFactor);
+            }
+            return;
+        }
+        if (stretchFactor == 1 && !shedding) {
+            return;
+        }
+        // the collection must fit in half of the budget of the next lower step to avoid oscillations
+        long lowerPeriodInNanos = periodInNanos / stretchFactor * Math.max(1, stretchFactor - 1);
+        if (2 * cpuTimeInNanos <= cpuBudgetRatio * lowerPeriodInNanos && 2 * wallTimeInNanos <= lowerPeriodInNanos) {
+            underBudgetCycles++;
+        } else {
+            underBudgetCycles = 0;
+        }
+        if (underBudgetCycles >= RECOVERY_CYCLES) {
+            underBudgetCycles = 0;
+            if (stretchFactor > 1) {
+                stretchFactor--;
+            } else {
+                shedding = false;
+            }
+        }
+    }
+
+    /**
+     * @return the ratio between the actual and the configured collect interval
+     */
+    int getStretchFactor() {
+        return stretchFactor;
+    }
+
+    /**
+     * @return {@code true} if the low priority queries are not collected
+     */
+    boolean isShedding() {
+        return shedding;
+    }
+
+    @Override
+    public String toString() {
+        return "CollectThrottle{" +
+                "cpuBudgetRatio=" + cpuBudgetRatio +
+                ", maxStretchFactor=" + maxStretchFactor +
+                ", stretchFactor=" + stretchFactor +
+                ", shedding=" + shedding +
+                '}';
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+
+/**
+ * Unit of work of a collection: a {@link CollectionPlan.QueryGroup} or an {@link Invocation}.
+ */
+public interface Collectable {
+
+    void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) throws Exception;
+
+    /**
+     * @return the maximum duration of {@link #collectAndExport(MBeanIndex, OutputWriter)}, {@code null} if not limited.
+     * @see ParallelCollector
+     */
+    @Nullable
+    Long getCollectTimeoutInMillis();
+
+    /**
+     * @return the {@link ObjectName} (or pattern) of the MBeans collected by this unit of work, {@code null} for all the MBeans.
+     */
+    @Nullable
+    ObjectName getObjectName();
+}
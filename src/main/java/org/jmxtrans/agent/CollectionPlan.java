@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.MBeanServerUtils;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Plan of the collection of a set of {@link Query queries}.
+ *
+ * Queries are grouped by {@link Query#getObjectName() ObjectName} (pattern) so that, for each matching MBean, all the
+ * attributes needed by the queries of the group are fetched with a single
+ * {@link MBeanServer#getAttributes(ObjectName, String[])} call instead of one
+ * {@link MBeanServer#getAttribute(ObjectName, String)} call per query.
+ *
+ * A query with a {@link Query#getCollectTimeoutInMillis() collect timeout} is not grouped: it has its own
+ * {@link QueryGroup} so that, if it overruns, only this query is abandoned and quarantined by the {@link ParallelCollector}.
+ *
+ * @see MBeanServerUtils#getAttributes(MBeanServer, ObjectName, String[])
+ */
+public class CollectionPlan {
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    @Nonnull
+    private final List<QueryGroup> queryGroups;
+
+    public CollectionPlan(@Nonnull Iterable<Query> queries) {
+        // key: the ObjectName of the grouped queries or the query itself if it has a collect timeout
+        Map<Object, QueryGroup> queryGroupsByKey = new LinkedHashMap<Object, QueryGroup>();
+        for (Query query : queries) {
+            Object key = query.getCollectTimeoutInMillis() == null ? query.getObjectName() : query;
+            QueryGroup queryGroup = queryGroupsByKey.get(key);
+            if (queryGroup == null) {
+                queryGroup = new QueryGroup(query.getObjectName());
+                queryGroupsByKey.put(key, queryGroup);
+            }
+            queryGroup.add(query);
+        }
+        this.queryGroups = Collections.unmodifiableList(new ArrayList<QueryGroup>(queryGroupsByKey.values()));
+    }
+
+    /**
+     * Collect without {@link MBeanIndex} (ObjectName patterns are resolved with {@link MBeanServer#queryNames(ObjectName, javax.management.QueryExp)}).
+     */
+    public void collectAndExport(@Nonnull MBeanServer mbeanServer, @Nonnull OutputWriter outputWriter) {
+        collectAndExport(new MBeanIndex(mbeanServer), outputWriter);
+    }
+
+    public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) {
+        for (QueryGroup queryGroup : queryGroups) {
+            try {
+                queryGroup.collectAndExport(mbeanIndex, outputWriter);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Ignore exception collecting metrics for " + queryGroup, e);
+            }
+        }
+    }
+
+    @Nonnull
+    public List<QueryGroup> getQueryGroups() {
+        return queryGroups;
+    }
+
+    @Override
+    public String toString() {
+        return "CollectionPlan{" +
+                "queryGroups=" + queryGroups +
+                '}';
+    }
+
+    /**
+     * The {@link Query queries} sharing the same {@link ObjectName}, or a single query with a collect timeout.
+     */
+    public static class QueryGroup implements ReportingCollectable {
+
+        private final static String[] NO_ATTRIBUTES = new String[0];
+
+        private final Logger logger = Logger.getLogger(getClass().getName());
+
+        @Nonnull
+        private final ObjectName objectName;
+
+        @Nonnull
+        private final List<Query> queries = new ArrayList<Query>();
+        /**
+         * Distinct attributes explicitly requested by the queries of the group
+         */
+        @Nonnull
+        private String[] attributes = NO_ATTRIBUTES;
+        /**
+         * {@code true} if at least one query of the group collects all the attributes of the MBeans
+         */
+        private boolean allAttributes;
+        /**
+         * Collect timeout of the query of the group, a query with a timeout is never grouped with other queries
+         */
+        @Nullable
+        private Long collectTimeoutInMillis;
+        /**
+         * Greatest number of shards of the queries of the group
+         */
+        private int shardsCount = 1;
+        /**
+         * Matching MBeans split by shard, shared by the shards and computed again only when the index changes
+         */
+        @Nullable
+        private volatile Partition partition;
+
+        QueryGroup(@Nonnull ObjectName objectName) {
+            this.objectName = objectName;
+        }
+
+        void add(@Nonnull Query query) {
+            queries.add(query);
+            shardsCount = Math.max(shardsCount, query.getCollectShards());
+            if (query.getCollectTimeoutInMillis() != null) {
+                collectTimeoutInMillis = query.getCollectTimeoutInMillis();
+            }
+            if (query.isAllAttributes()) {
+                allAttributes = true;
+            } else {
+                Set<String> newAttributes = new LinkedHashSet<String>(attributes.length + 1);
+                Collections.addAll(newAttributes, attributes);
+                newAttributes.add(query.getAttribute());
+                attributes = newAttributes.toArray(new String[newAttributes.size()]);
+            }
+        }
+
+        @Override
+        public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) {
+            collectAndExport(mbeanIndex, outputWriter, 0, 1, null);
+        }
+
+        @Override
+        public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter, @Nonnull CollectReport report) {
+            collectAndExport(mbeanIndex, outputWriter, 0, 1, report);
+        }
+
+        /**
+         * Collect the MBeans of the given shard
+         */
+        private void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter, int shard, int shardsCount,
+                                      @Nullable CollectReport report) {
+            MBeanServer mbeanServer = mbeanIndex.getMBeanServer();
+            Collection<ObjectName> objectNames;
+            int matchingObjectNamesCount;
+            if (shardsCount == 1) {
+                objectNames = mbeanIndex.queryNames(objectName);
+                matchingObjectNamesCount = objectNames.size();
+            } else {
+                Partition partition = getPartition(mbeanIndex, shardsCount);
+                objectNames = partition.shards.get(shard);
+                matchingObjectNamesCount = partition.objectNamesCount;
+            }
+            for (Query query : queries) {
+                query.setMatchingObjectNamesCount(matchingObjectNamesCount);
+            }
+            for (ObjectName on : objectNames) {
+                if (report != null)
+                    report.objectNamesCount++;
+                try {
+                    collectAndExport(mbeanIndex, mbeanServer, on, outputWriter, report);
+                } catch (Exception e) {
+                    if (report != null)
+                        report.exceptionsCount++;
+                    logger.log(Level.WARNING, "Exception collecting " + on + " for " + queries, e);
+                }
+            }
+        }
+
+        /**
+         * @return the matching MBeans split by shard, computed again only if the index has changed since the last
+         * call, so that the shards of a collection don't each go through all the matching MBeans
+         */
+        @Nonnull
+        private Partition getPartition(@Nonnull MBeanIndex mbeanIndex, int shardsCount) {
+            // read the version first, a change during the split is detected at the next call
+            long indexVersion = mbeanIndex.getVersion();
+            Partition partition = this.partition;
+            if (partition != null && partition.mbeanIndex == mbeanIndex && partition.indexVersion == indexVersion
+                    && partition.shards.size() == shardsCount && mbeanIndex.isStarted()) {
+                return partition;
+            }
+            Set<ObjectName> objectNames = mbeanIndex.queryNames(objectName);
+            List<List<ObjectName>> shards = new ArrayList<List<ObjectName>>(shardsCount);
+            for (int i = 0; i < shardsCount; i++) {
+                shards.add(new ArrayList<ObjectName>(objectNames.size() / shardsCount + 1));
+            }
+            int objectNamesCount = 0;
+            for (ObjectName on : objectNames) {
+                shards.get(shardOf(on, shardsCount)).add(on);
+                objectNamesCount++;
+            }
+            partition = new Partition(mbeanIndex, indexVersion, objectNamesCount, shards);
+            if (mbeanIndex.isStarted()) {
+                this.partition = partition;
+            }
+            return partition;
+        }
+
+        /**
+         * @return the shard of the given MBean, stable across collections and JVMs as derived from the
+         * {@link ObjectName#getCanonicalName() canonical name}
+         */
+        static int shardOf(@Nonnull ObjectName on, int shardsCount) {
+            // spread the bits of the hash code, names of MBeans of the same type differ by a few characters
+            int h = on.getCanonicalName().hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return (h & 0x7fffffff) % shardsCount;
+        }
+
+        /**
+         * @return the units of work collecting the MBeans matched by this group: this group if it is not sharded,
+         * otherwise one {@link Shard} per shard, each shard collecting a stable subset of the matching MBeans.
+         */
+        @Nonnull
+        public List<Collectable> getShards() {
+            if (shardsCount == 1)
+                return Collections.<Collectable>singletonList(this);
+            List<Collectable> shards = new ArrayList<Collectable>(shardsCount);
+            for (int i = 0; i < shardsCount; i++) {
+                shards.add(new Shard(this, i, shardsCount));
+            }
+            return shards;
+        }
+
+        /**
+         * @param on the exact name of an MBean matching the {@link #objectName} of this group
+         */
+        private void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull MBeanServer mbeanServer, @Nonnull ObjectName on,
+                                      @Nonnull OutputWriter outputWriter, @Nullable CollectReport report) throws Exception {
+            String[] allAttributeNames = null;
+            String[] attributeNames = attributes;
+            if (allAttributes) {
+                allAttributeNames = mbeanIndex.getAttributeNames(on);
+                if (attributes.length == 0) {
+                    attributeNames = allAttributeNames;
+                } else {
+                    Set<String> attributeNamesSet = new LinkedHashSet<String>(allAttributeNames.length + attributes.length);
+                    Collections.addAll(attributeNamesSet, allAttributeNames);
+                    Collections.addAll(attributeNamesSet, attributes);
+                    attributeNames = attributeNamesSet.toArray(new String[attributeNamesSet.size()]);
+                }
+            }
+
+            // attributes of the platform MXBeans read directly, only if the attributes are explicitly requested
+            Map<String, PlatformMXBeanAttributes.AttributeReader> readers = allAttributes ? null :
+                    PlatformMXBeanAttributes.getInstance().getReaders(mbeanServer, on);
+            if (readers != null) {
+                attributeNames = getAttributesWithoutReader(readers);
+            }
+
+            Map<String, Object> attributeValues = attributeNames.length == 0 ? Collections.<String, Object>emptyMap() :
+                    MBeanServerUtils.getAttributes(mbeanServer, on, attributeNames);
+
+            for (Query query : queries) {
+                if (query.isAllAttributes()) {
+                    for (String attributeName : allAttributeNames) {
+                        if (attributeValues.containsKey(attributeName)
+                                && !query.exportAttributeValue(outputWriter, on, attributeName, attributeValues.get(attributeName))
+                                && report != null) {
+                            report.exceptionsCount++;
+                        }
+                    }
+                } else if (readers != null && readers.containsKey(query.getAttribute())) {
+                    try {
+                        readers.get(query.getAttribute()).export(query, outputWriter, on, query.getAttribute());
+                    } catch (Exception e) {
+                        if (report != null)
+                            report.exceptionsCount++;
+                        logger.log(Level.WARNING, "Exception collecting " + on + "#" + query.getAttribute() + " for " + query, e);
+                    }
+                } else if (attributeValues.containsKey(query.getAttribute())) {
+                    if (!query.exportAttributeValue(outputWriter, on, query.getAttribute(), attributeValues.get(query.getAttribute()))
+                            && report != null) {
+                        report.exceptionsCount++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the {@link #attributes} that can't be read by the given platform MXBean readers
+         */
+        @Nonnull
+        private String[] getAttributesWithoutReader(@Nonnull Map<String, PlatformMXBeanAttributes.AttributeReader> readers) {
+            int count = 0;
+            for (String attribute : attributes) {
+                if (!readers.containsKey(attribute))
+                    count++;
+            }
+            if (count == 0) {
+                return NO_ATTRIBUTES;
+            }
+            String[] attributesWithoutReader = new String[count];
+            int i = 0;
+            for (String attribute : attributes) {
+                if (!readers.containsKey(attribute))
+                    attributesWithoutReader[i++] = attribute;
+            }
+            return attributesWithoutReader;
+        }
+
+        @Nonnull
+        @Override
+        public ObjectName getObjectName() {
+            return objectName;
+        }
+
+        @Nullable
+        @Override
+        public Long getCollectTimeoutInMillis() {
+            return collectTimeoutInMillis;
+        }
+
+        @Nonnull
+        public List<Query> getQueries() {
+            return Collections.unmodifiableList(queries);
+        }
+
+        @Override
+        public String toString() {
+            return "QueryGroup{" +
+                    "objectName=" + objectName +
+                    ", queries=" + queries +
+                    (shardsCount == 1 ? "" : ", shardsCount=" + shardsCount) +
+                    '}';
+        }
+    }
+
+    /**
+     * Immutable split by shard of the MBeans matching a {@link QueryGroup} for a version of the {@link MBeanIndex}
+     */
+    private static class Partition {
+        @Nonnull
+        final MBeanIndex mbeanIndex;
+        final long indexVersion;
+        final int objectNamesCount;
+        @Nonnull
+        final List<List<ObjectName>> shards;
+
+        Partition(@Nonnull MBeanIndex mbeanIndex, long indexVersion, int objectNamesCount, @Nonnull List<List<ObjectName>> shards) {
+            this.mbeanIndex = mbeanIndex;
+            this.indexVersion = indexVersion;
+            this.objectNamesCount = objectNamesCount;
+            this.shards = shards;
+        }
+    }
+
+    /**
+     * Subset of the MBeans matched by a {@link QueryGroup}, see {@link QueryGroup#getShards()}.
+     */
+    public static class Shard implements ReportingCollectable {
+        @Nonnull
+        private final QueryGroup queryGroup;
+        private final int shard;
+        private final int shardsCount;
+
+        Shard(@Nonnull QueryGroup queryGroup, int shard, int shardsCount) {
+            this.queryGroup = queryGroup;
+            this.shard = shard;
+            this.shardsCount = shardsCount;
+        }
+
+        @Override
+        public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) {
+            queryGroup.collectAndExport(mbeanIndex, outputWriter, shard, shardsCount, null);
+        }
+
+        @Override
+        public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter, @Nonnull CollectReport report) {
+            queryGroup.collectAndExport(mbeanIndex, outputWriter, shard, shardsCount, report);
+        }
+
+        @Nullable
+        @Override
+        public Long getCollectTimeoutInMillis() {
+            return queryGroup.getCollectTimeoutInMillis();
+        }
+
+        @Nonnull
+        @Override
+        public ObjectName getObjectName() {
+            return queryGroup.getObjectName();
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public int getShardsCount() {
+            return shardsCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Shard{" +
+                    "shard=" + shard + "/" + shardsCount +
+                    ", queryGroup=" + queryGroup +
+                    '}';
+        }
+    }
+}
@@ -35,11 +35,11 @@ public class ConsoleOutputWriter extends AbstractOutputWriter implements OutputW
 
     @Override
     public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) {
-        System.out.println(name + " " + value + " " + TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+        System.out.println(name + " " + value + " " + TimeUnit.SECONDS.convert(getCollectTimeInMillis(), TimeUnit.MILLISECONDS));
     }
 
     @Override
     public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
-        System.out.println(invocationName + " " + value + " " + TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+        System.out.println(invocationName + " " + value + " " + TimeUnit.SECONDS.convert(getCollectTimeInMillis(), TimeUnit.MILLISECONDS));
     }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * {@link OutputWriter} receiving the {@link CollectCycle} of each collection, e.g. to timestamp all the results of
+ * the collection with the same capture time.
+ *
+ * Use {@link OutputWriters#preCollect(OutputWriter, CollectCycle)} to call any {@link OutputWriter}.
+ */
+public interface CycleAwareOutputWriter extends OutputWriter {
+
+    /**
+     * Replaces {@link #preCollect()} for the collections of a {@link JmxTransExporter}.
+     *
+     * @param cycle context of the collection, valid until the next {@link #preCollect(CollectCycle)}
+     */
+    void preCollect(@Nonnull CollectCycle cycle) throws IOException;
+}
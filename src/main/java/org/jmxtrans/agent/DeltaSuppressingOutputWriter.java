@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.StringUtils2;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.jmxtrans.agent.util.ConfigurationUtils.getInt;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
+
+/**
+ * Only forwards to the {@link #delegate} the query results whose value changed since the previous collection, all the
+ * results are forwarded every {@value #SETTING_HEARTBEAT_CYCLES} collections so that the backends don't see gaps.
+ *
+ * The results of the {@value #SETTING_UNSUPPRESSED_TYPES} types (by default {@code counter}, needed by the writers
+ * computing rates like the {@link PerMinuteSummarizerOutputWriter}) and the invocation results are always forwarded.
+ *
+ * The value of a result the {@link #delegate} failed to write is forgotten so that it is forwarded again at the next
+ * collection even if it didn't change.
+ *
+ * Enabled on an output writer with the {@value #SETTING_ENABLED} setting.
+ */
+public class DeltaSuppressingOutputWriter implements NumericOutputWriter, BatchOutputWriter, CycleAwareOutputWriter {
+
+    public final static String SETTING_ENABLED = "deltaSuppression.enabled";
+    /**
+     * Number of collections between two full sends
+     */
+    public final static String SETTING_HEARTBEAT_CYCLES = "deltaSuppression.heartbeatCycles";
+    public final static int SETTING_HEARTBEAT_CYCLES_DEFAULT_VALUE = 10;
+    /**
+     * Comma separated list of {@linkplain Query#getType() metric types} never suppressed
+     */
+    public final static String SETTING_UNSUPPRESSED_TYPES = "deltaSuppression.unsuppressedTypes";
+    public final static String SETTING_UNSUPPRESSED_TYPES_DEFAULT_VALUE = "counter";
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    @Nonnull
+    protected final OutputWriter delegate;
+    private int heartbeatCycles = SETTING_HEARTBEAT_CYCLES_DEFAULT_VALUE;
+    @Nonnull
+    private Set<String> unsuppressedTypes = new HashSet<String>();
+    @Nonnull
+    private final LastValues lastValues = new LastValues();
+    /**
+     * Reused to forward the changed results of a batch
+     */
+    @Nonnull
+    private final MetricBatch changedResults = new MetricBatch();
+    private long cycle = -1;
+    private long suppressedCount;
+
+    public DeltaSuppressingOutputWriter(@Nonnull OutputWriter delegate) {
+        this.delegate = delegate;
+        unsuppressedTypes.add(SETTING_UNSUPPRESSED_TYPES_DEFAULT_VALUE);
+    }
+
+    @Override
+    public void postConstruct(@Nonnull Map<String, String> settings) {
+        heartbeatCycles = getInt(settings, SETTING_HEARTBEAT_CYCLES, SETTING_HEARTBEAT_CYCLES_DEFAULT_VALUE);
+        if (heartbeatCycles < 1)
+            throw new IllegalArgumentException("Invalid " + SETTING_HEARTBEAT_CYCLES + " " + heartbeatCycles + ", must be greater than 0");
+        List<String> types = StringUtils2.delimitedStringToList(getString(settings, SETTING_UNSUPPRESSED_TYPES, SETTING_UNSUPPRESSED_TYPES_DEFAULT_VALUE));
+        unsuppressedTypes = new HashSet<String>(types);
+        logger.fine("Delta suppression configured with heartbeatCycles=" + heartbeatCycles + ", unsuppressedTypes=" + unsuppressedTypes + " for " + delegate);
+        delegate.postConstruct(settings);
+    }
+
+    @Override
+    public void preDestroy() {
+        delegate.preDestroy();
+    }
+
+    /**
+     * Start a new cycle, forget the last values on heartbeat cycles so that all the results are forwarded
+     */
+    @Override
+    public synchronized void preCollect() throws IOException {
+        startCycle();
+        delegate.preCollect();
+    }
+
+    @Override
+    public synchronized void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        startCycle();
+        OutputWriters.preCollect(delegate, cycle);
+    }
+
+    private void startCycle() {
+        cycle++;
+        if (cycle % heartbeatCycles == 0) {
+            lastValues.clear();
+        }
+    }
+
+    @Override
+    public synchronized void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+        if (isChanged(metricName, metricType, MetricBatch.OBJECT_VALUE, 0, value)) {
+            try {
+                delegate.writeQueryResult(metricName, metricType, value);
+            } catch (Exception e) {
+                lastValues.forget(metricName);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        if (isChanged(metricName, metricType, MetricBatch.LONG_VALUE, value, null)) {
+            try {
+                OutputWriters.writeLongQueryResult(delegate, metricName, metricType, value);
+            } catch (Exception e) {
+                lastValues.forget(metricName);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        if (isChanged(metricName, metricType, MetricBatch.DOUBLE_VALUE, Double.doubleToLongBits(value), null)) {
+            try {
+                OutputWriters.writeDoubleQueryResult(delegate, metricName, metricType, value);
+            } catch (Exception e) {
+                lastValues.forget(metricName);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        delegate.writeInvocationResult(invocationName, value);
+    }
+
+    @Override
+    public synchronized void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        changedResults.clear();
+        changedResults.setCycle(batch.getCycle());
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                byte valueType = batch.getValueType(i);
+                boolean changed;
+                switch (valueType) {
+                    case MetricBatch.LONG_VALUE:
+                        changed = isChanged(batch.getName(i), batch.getType(i), valueType, batch.getLongValue(i), null);
+                        break;
+                    case MetricBatch.DOUBLE_VALUE:
+                        changed = isChanged(batch.getName(i), batch.getType(i), valueType, Double.doubleToLongBits(batch.getDoubleValue(i)), null);
+                        break;
+                    case MetricBatch.INVOCATION_VALUE:
+                        changed = true;
+                        break;
+                    default:
+                        changed = isChanged(batch.getName(i), batch.getType(i), valueType, 0, batch.getObjectValue(i));
+                }
+                if (changed) {
+                    changedResults.add(batch, i);
+                }
+            }
+            try {
+                OutputWriters.writeBatch(delegate, changedResults);
+            } catch (Exception e) {
+                // the failed results are unknown, forget all the forwarded ones
+                for (int i = 0; i < changedResults.size(); i++) {
+                    lastValues.forget(changedResults.getName(i));
+                }
+                throw e;
+            }
+        } finally {
+            changedResults.clear();
+        }
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        delegate.postCollect();
+    }
+
+    private boolean isChanged(@Nonnull String metricName, @Nullable String metricType, byte valueType, long numericValue, @Nullable Object value) {
+        if (metricType != null && unsuppressedTypes.contains(metricType)) {
+            return true;
+        }
+        boolean changed = lastValues.put(metricName, valueType, numericValue, value);
+        if (!changed) {
+            suppressedCount++;
+        }
+        return changed;
+    }
+
+    /**
+     * @return the number of query results not forwarded because their value didn't change
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaSuppressingOutputWriter{" +
+                "heartbeatCycles=" + heartbeatCycles +
+                ", unsuppressedTypes=" + unsuppressedTypes +
+                ", delegate=" + delegate +
+                '}';
+    }
+
+    /**
+     * Last value by metric name, open addressing with linear probing in parallel arrays so that the numeric values
+     * are stored without being boxed.
+     */
+    static class LastValues {
+        /**
+         * Value type of a forgotten value, different from all the {@link MetricBatch} value types
+         */
+        private final static byte FORGOTTEN_VALUE = -1;
+        private String[] names = new String[256];
+        private byte[] valueTypes = new byte[256];
+        private long[] numericValues = new long[256];
+        private Object[] values = new Object[256];
+        private int size;
+
+        /**
+         * Store the value of the given metric.
+         *
+         * @return {@code true} if the metric is new or if its value changed
+         */
+        boolean put(@Nonnull String name, byte valueType, long numericValue, @Nullable Object value) {
+            int mask = names.length - 1;
+            int i = mix(name.hashCode()) & mask;
+            while (true) {
+                String existingName = names[i];
+                if (existingName == null) {
+                    names[i] = name;
+                    set(i, valueType, numericValue, value);
+                    if (++size > names.length / 2) {
+                        resize();
+                    }
+                    return true;
+                } else if (existingName == name || existingName.equals(name)) {
+                    boolean changed = valueTypes[i] != valueType || numericValues[i] != numericValue ||
+                            (value == null ? values[i] != null : !value.equals(values[i]));
+                    if (changed) {
+                        set(i, valueType, numericValue, value);
+                    }
+                    return changed;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        /**
+         * Forget the value of the given metric so that its next {@link #put(String, byte, long, Object)} is a change
+         */
+        void forget(@Nonnull String name) {
+            int mask = names.length - 1;
+            int i = mix(name.hashCode()) & mask;
+            while (names[i] != null) {
+                if (names[i] == name || names[i].equals(name)) {
+                    set(i, FORGOTTEN_VALUE, 0, null);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void set(int i, byte valueType, long numericValue, @Nullable Object value) {
+            valueTypes[i] = valueType;
+            numericValues[i] = numericValue;
+            values[i] = value;
+        }
+
+        private void resize() {
+            String[] oldNames = names;
+            byte[] oldValueTypes = valueTypes;
+            long[] oldNumericValues = numericValues;
+            Object[] oldValues = values;
+            int capacity = oldNames.length * 2;
+            names = new String[capacity];
+            valueTypes = new byte[capacity];
+            numericValues = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldNames.length; j++) {
+                if (oldNames[j] != null) {
+                    int i = mix(oldNames[j].hashCode()) & mask;
+                    while (names[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    names[i] = oldNames[j];
+                    set(i, oldValueTypes[j], oldNumericValues[j], oldValues[j]);
+                }
+            }
+        }
+
+        /**
+         * Forget all the values, the capacity is retained
+         */
+        void clear() {
+            if (size == 0)
+                return;
+            Arrays.fill(names, null);
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Spread the bits of the hash code, {@link String#hashCode()} of similar names differ in the low bits only
+         */
+        private static int mix(int hashCode) {
+            int h = hashCode * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.Histogram;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Statistics of the collections and exports of a {@link JmxTransExporter}.
+ *
+ * Durations are recorded in microseconds in lock-free {@link Histogram}s.
+ */
+public class ExporterStatistics implements ExporterStatisticsMXBean {
+
+    public final static String OBJECT_NAME = "org.jmxtrans.agent:type=Exporter";
+    /**
+     * Prefix of the metrics written by {@link #writeTo(OutputWriter)}
+     */
+    public final static String METRIC_PREFIX = "jmxtrans-agent.";
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final AtomicLong collectCount = new AtomicLong();
+    private final Histogram collectDuration = new Histogram();
+    private final ConcurrentMap<String, CollectableStatistics> collectableStatisticsByName = new ConcurrentHashMap<String, CollectableStatistics>();
+    private final ConcurrentMap<String, Histogram> outputWriterLatencyByName = new ConcurrentHashMap<String, Histogram>();
+    @Nullable
+    private volatile ParallelCollector parallelCollector;
+    @Nullable
+    private volatile MetricRingBuffer exportQueue;
+    @Nullable
+    private volatile CollectThrottle collectThrottle;
+    @Nullable
+    private ObjectName registeredObjectName;
+    @Nullable
+    private MBeanServer mbeanServer;
+
+    public void recordCollect(long durationInNanos) {
+        collectCount.incrementAndGet();
+        collectDuration.record(durationInNanos / 1000);
+    }
+
+    /**
+     * @return the statistics of the given unit of work, created if needed. Units of work sharing the same name share
+     * the same statistics.
+     */
+    @Nonnull
+    public CollectableStatistics getCollectableStatistics(@Nonnull String name) {
+        CollectableStatistics result = collectableStatisticsByName.get(name);
+        if (result == null) {
+            CollectableStatistics newStatistics = new CollectableStatistics();
+            result = collectableStatisticsByName.putIfAbsent(name, newStatistics);
+            if (result == null) {
+                result = newStatistics;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the latency histogram of the given output writer, created if needed
+     */
+    @Nonnull
+    public Histogram getOutputWriterLatency(@Nonnull String name) {
+        Histogram result = outputWriterLatencyByName.get(name);
+        if (result == null) {
+            Histogram newHistogram = new Histogram();
+            result = outputWriterLatencyByName.putIfAbsent(name, newHistogram);
+            if (result == null) {
+                result = newHistogram;
+            }
+        }
+        return result;
+    }
+
+    void setParallelCollector(@Nullable ParallelCollector parallelCollector) {
+        this.parallelCollector = parallelCollector;
+    }
+
+    void setExportQueue(@Nullable MetricRingBuffer exportQueue) {
+        this.exportQueue = exportQueue;
+    }
+
+    void setCollectThrottle(@Nullable CollectThrottle collectThrottle) {
+        this.collectThrottle = collectThrottle;
+    }
+
+    @Override
+    public long getCollectCount() {
+        return collectCount.get();
+    }
+
+    @Override
+    public Histogram.Snapshot getCollectDuration() {
+        return collectDuration.snapshot();
+    }
+
+    @Override
+    public long getCollectTimeoutsCount() {
+        ParallelCollector parallelCollector = this.parallelCollector;
+        return parallelCollector == null ? 0 : parallelCollector.getTimeoutsCount();
+    }
+
+    @Override
+    public long getExportQueueDroppedCount() {
+        MetricRingBuffer exportQueue = this.exportQueue;
+        return exportQueue == null ? 0 : exportQueue.getDroppedCount();
+    }
+
+    @Override
+    public int getCollectStretchFactor() {
+        CollectThrottle collectThrottle = this.collectThrottle;
+        return collectThrottle == null ? 1 : collectThrottle.getStretchFactor();
+    }
+
+    @Override
+    public boolean isCollectShedding() {
+        CollectThrottle collectThrottle = this.collectThrottle;
+        return collectThrottle != null && collectThrottle.isShedding();
+    }
+
+    @Override
+    public Map<String, CollectableSnapshot> getCollectables() {
+        Map<String, CollectableSnapshot> result = new TreeMap<String, CollectableSnapshot>();
+        for (Map.Entry<String, CollectableStatistics> entry : collectableStatisticsByName.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getOutputWriters() {
+        Map<String, Histogram.Snapshot> result = new TreeMap<String, Histogram.Snapshot>();
+        for (Map.Entry<String, Histogram> entry : outputWriterLatencyByName.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        collectCount.set(0);
+        collectDuration.reset();
+        for (CollectableStatistics collectableStatistics : collectableStatisticsByName.values()) {
+            collectableStatistics.reset();
+        }
+        for (Histogram histogram : outputWriterLatencyByName.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Write the statistics as metrics prefixed by {@value #METRIC_PREFIX}.
+     */
+    public void writeTo(@Nonnull OutputWriter outputWriter) throws IOException {
+        OutputWriters.writeLongQueryResult(outputWriter, METRIC_PREFIX + "collect.count", null, getCollectCount());
+        writeTo(outputWriter, METRIC_PREFIX + "collect.durationInMicros", collectDuration.snapshot());
+        OutputWriters.writeLongQueryResult(outputWriter, METRIC_PREFIX + "collect.timeouts", null, getCollectTimeoutsCount());
+        OutputWriters.writeLongQueryResult(outputWriter, METRIC_PREFIX + "exportQueue.dropped", null, getExportQueueDroppedCount());
+        if (collectThrottle != null) {
+            OutputWriters.writeLongQueryResult(outputWriter, METRIC_PREFIX + "collect.stretchFactor", null, getCollectStretchFactor());
+            OutputWriters.writeLongQueryResult(outputWriter, METRIC_PREFIX + "collect.shedding", null, isCollectShedding() ? 1 : 0);
+        }
+        for (Map.Entry<String, CollectableSnapshot> entry : getCollectables().entrySet()) {
+            String prefix = METRIC_PREFIX + "collectable." + escape(entry.getKey()) + ".";
+            CollectableSnapshot snapshot = entry.getValue();
+            writeTo(outputWriter, prefix + "durationInMicros", snapshot.getDuration());
+            OutputWriters.writeLongQueryResult(outputWriter, prefix + "objectNames", null, snapshot.getObjectNamesCount());
+            OutputWriters.writeLongQueryResult(outputWriter, prefix + "values", null, snapshot.getValuesCount());
+            OutputWriters.writeLongQueryResult(outputWriter, prefix + "exceptions", null, snapshot.getExceptionsCount());
+        }
+        for (Map.Entry<String, Histogram.Snapshot> entry : getOutputWriters().entrySet()) {
+            writeTo(outputWriter, METRIC_PREFIX + "outputWriter." + escape(entry.getKey()) + ".latencyInMicros", entry.getValue());
+        }
+    }
+
+    private void writeTo(@Nonnull OutputWriter outputWriter, @Nonnull String prefix, @Nonnull Histogram.Snapshot snapshot) throws IOException {
+        OutputWriters.writeLongQueryResult(outputWriter, prefix + ".mean", null, snapshot.getMean());
+        OutputWriters.writeLongQueryResult(outputWriter, prefix + ".p50", null, snapshot.getP50());
+        OutputWriters.writeLongQueryResult(outputWriter, prefix + ".p99", null, snapshot.getP99());
+        OutputWriters.writeLongQueryResult(outputWriter, prefix + ".max", null, snapshot.getMax());
+    }
+
+    /**
+     * @return the given name with the characters other than letters, digits, '-' and '_' replaced by '_'
+     */
+    @Nonnull
+    static String escape(@Nonnull String name) {
+        StringBuilder result = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                result.append(c);
+            } else {
+                result.append('_');
+            }
+        }
+        return result.toString();
+    }
+
+    public void register(@Nonnull MBeanServer mbeanServer) {
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            mbeanServer.registerMBean(this, objectName);
+            this.mbeanServer = mbeanServer;
+            this.registeredObjectName = objectName;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Exception registering " + OBJECT_NAME + ", self-instrumentation won't be exposed through JMX", e);
+        }
+    }
+
+    public void unregister() {
+        if (registeredObjectName == null || mbeanServer == null)
+            return;
+        try {
+            mbeanServer.unregisterMBean(registeredObjectName);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Ignore exception unregistering " + registeredObjectName, e);
+        }
+        registeredObjectName = null;
+        mbeanServer = null;
+    }
+
+    /**
+     * Statistics of a {@link Collectable}
+     */
+    public static class CollectableStatistics {
+        private final Histogram duration = new Histogram();
+        private final AtomicLong valuesCount = new AtomicLong();
+        private final AtomicLong exceptionsCount = new AtomicLong();
+        private volatile int objectNamesCount;
+
+        public void record(long durationInNanos, int valuesCount, int objectNamesCount) {
+            duration.record(durationInNanos / 1000);
+            this.valuesCount.addAndGet(valuesCount);
+            this.objectNamesCount = objectNamesCount;
+        }
+
+        public void incrementExceptions() {
+            exceptionsCount.incrementAndGet();
+        }
+
+        public void incrementExceptions(int exceptions) {
+            if (exceptions > 0)
+                exceptionsCount.addAndGet(exceptions);
+        }
+
+        void reset() {
+            duration.reset();
+            valuesCount.set(0);
+            exceptionsCount.set(0);
+        }
+
+        @Nonnull
+        CollectableSnapshot snapshot() {
+            return new CollectableSnapshot(duration.snapshot(), objectNamesCount, valuesCount.get(), exceptionsCount.get());
+        }
+    }
+
+    /**
+     * Immutable statistics of a {@link Collectable}, exposed as a {@code CompositeData} by the MXBean.
+     */
+    public static class CollectableSnapshot {
+        private final Histogram.Snapshot duration;
+        private final int objectNamesCount;
+        private final long valuesCount;
+        private final long exceptionsCount;
+
+        @ConstructorProperties({"duration", "objectNamesCount", "valuesCount", "exceptionsCount"})
+        public CollectableSnapshot(Histogram.Snapshot duration, int objectNamesCount, long valuesCount, long exceptionsCount) {
+            this.duration = duration;
+            this.objectNamesCount = objectNamesCount;
+            this.valuesCount = valuesCount;
+            this.exceptionsCount = exceptionsCount;
+        }
+
+        /**
+         * @return the duration of the collections in microseconds
+         */
+        public Histogram.Snapshot getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the number of MBeans collected at the last collection (the MBeans of its shard for a sharded query)
+         */
+        public int getObjectNamesCount() {
+            return objectNamesCount;
+        }
+
+        /**
+         * @return the total number of values written
+         */
+        public long getValuesCount() {
+            return valuesCount;
+        }
+
+        public long getExceptionsCount() {
+            return exceptionsCount;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.Histogram;
+
+import java.util.Map;
+
+/**
+ * Self-instrumentation of the {@link JmxTransExporter}, registered as {@value ExporterStatistics#OBJECT_NAME}.
+ *
+ * Durations are in microseconds.
+ */
+public interface ExporterStatisticsMXBean {
+
+    /**
+     * @return the number of collection cycles
+     */
+    long getCollectCount();
+
+    Histogram.Snapshot getCollectDuration();
+
+    /**
+     * @return the number of queries and invocations abandoned after exceeding their time budget
+     */
+    long getCollectTimeoutsCount();
+
+    /**
+     * @return the number of results dropped because the export queue was full
+     */
+    long getExportQueueDroppedCount();
+
+    /**
+     * @return the ratio between the actual and the configured collect interval, greater than {@code 1} when the
+     * collections exceed their CPU budget
+     */
+    int getCollectStretchFactor();
+
+    /**
+     * @return {@code true} if the low priority queries are not collected because the collections exceed their CPU budget
+     */
+    boolean isCollectShedding();
+
+    /**
+     * @return the statistics of the query groups (by {@code ObjectName}) and invocations
+     */
+    Map<String, ExporterStatistics.CollectableSnapshot> getCollectables();
+
+    /**
+     * @return the latency of the calls to each output writer
+     */
+    Map<String, Histogram.Snapshot> getOutputWriters();
+
+    void reset();
+}
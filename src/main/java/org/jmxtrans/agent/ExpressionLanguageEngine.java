@@ -19,4 +19,13 @@ public interface ExpressionLanguageEngine {
 
     @Nonnull
     String resolveExpression(@Nonnull String expression, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position);
+
+    /**
+     * Compile an expression with '#' based keywords and '%' based variables into a template to resolve it repeatedly.
+     *
+     * @param expression the expression to compile (e.g. <code>"servers.#hostname#.%name%"</code>)
+     * @throws IllegalStateException if the expression is invalid
+     */
+    @Nonnull
+    ExpressionTemplate compileExpression(@Nonnull String expression);
 }
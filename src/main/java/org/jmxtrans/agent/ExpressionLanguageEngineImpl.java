@@ -30,8 +30,12 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.management.ObjectName;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 /**
@@ -72,6 +76,13 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
     @Nonnull
     private Map<String, Function> functionsByName = new HashMap<String, Function>();
 
+    /**
+     * Compiled expressions, expressions are the result aliases of the configuration so the number of entries is bounded.
+     * Cleared when a function is registered.
+     */
+    @Nonnull
+    private final ConcurrentMap<String, ExpressionTemplate> templatesByExpression = new ConcurrentHashMap<String, ExpressionTemplate>();
+
     /**
      * Replace all the '#' based keywords (e.g. <code>#hostname#</code>) by their value.
      *
@@ -121,8 +132,29 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
 
     @Nonnull
     public String resolveExpression(@Nonnull String expression, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+        ExpressionTemplate template = templatesByExpression.get(expression);
+        if (template == null) {
+            template = compileExpression(expression);
+            templatesByExpression.put(expression, template);
+        }
+        String result = template.resolve(exactObjectName, attribute, compositeDataKey, position);
+        if (logger.isLoggable(Level.FINEST))
+            logger.log(Level.FINEST, "resolveExpression(" + expression + ", " + exactObjectName + "): " + result);
 
-        StringBuilder result = new StringBuilder(expression.length());
+        return result;
+    }
+
+    /**
+     * Parse the given expression once, '%' based variables become ObjectName key property slots, '#' based
+     * {@link StaticFunction}s and unsupported functions are folded into literals and other functions are bound.
+     *
+     * @param expression the expression to compile (e.g. <code>"#hostname#.tomcat.datasource.%name%.#attribute#"</code>)
+     */
+    @Nonnull
+    @Override
+    public ExpressionTemplate compileExpression(@Nonnull String expression) {
+        List<ExpressionTemplate.Segment> segments = new ArrayList<ExpressionTemplate.Segment>();
+        StringBuilder literal = new StringBuilder(expression.length());
 
         int pos = 0;
         while (pos < expression.length()) {
@@ -134,11 +166,8 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
                     throw new IllegalStateException("Invalid expression '" + expression + "', no ending '%' after beginning '%' at position " + beginningSeparatorPosition);
                 }
                 String objectNameKey = expression.substring(beginningSeparatorPosition + 1, endingSeparatorPosition);
-                String value = exactObjectName.getKeyProperty(objectNameKey);
-                if (value == null) {
-                    value = "null";
-                }
-                StringUtils2.appendEscapedNonAlphaNumericChars(value, result);
+                appendLiteral(literal, segments);
+                segments.add(new ExpressionTemplate.ObjectNameKey(objectNameKey));
                 pos = endingSeparatorPosition + 1;
             } else if (c == '#') {
                 int beginningSeparatorPosition = pos;
@@ -148,30 +177,31 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
                 }
                 String functionName = expression.substring(beginningSeparatorPosition + 1, endingSeparatorPosition);
                 Function function = functionsByName.get(functionName);
-                String value;
                 if (function == null) {
-                    value = "#unsupported_expression#";
                     logger.info("Unsupported expression '" + functionName + "'");
+                    StringUtils2.appendEscapedNonAlphaNumericChars("#unsupported_expression#", false, literal);
+                } else if (function instanceof StaticFunction) {
+                    StringUtils2.appendEscapedNonAlphaNumericChars(((StaticFunction) function).value, false, literal);
                 } else {
-                    try {
-                        value = function.evaluate(exactObjectName, attribute, compositeDataKey, position);
-                    } catch (Exception e) {
-                        value = "#expression_error#";
-                        logger.log(Level.WARNING, "Error evaluating expression '" + compositeDataKey + "'", e);
-                    }
+                    appendLiteral(literal, segments);
+                    segments.add(new ExpressionTemplate.FunctionCall(functionName, function));
                 }
-                StringUtils2.appendEscapedNonAlphaNumericChars(value, false, result);
                 pos = endingSeparatorPosition + 1;
 
             } else {
-                result.append(c);
+                literal.append(c);
                 pos++;
             }
         }
-        if (logger.isLoggable(Level.FINEST))
-            logger.log(Level.FINEST, "resolveExpression(" + expression + ", " + exactObjectName + "): " + result);
+        appendLiteral(literal, segments);
+        return new ExpressionTemplate(expression, segments.toArray(new ExpressionTemplate.Segment[segments.size()]));
+    }
 
-        return result.toString();
+    private void appendLiteral(@Nonnull StringBuilder literal, @Nonnull List<ExpressionTemplate.Segment> segments) {
+        if (literal.length() > 0) {
+            segments.add(new ExpressionTemplate.Literal(literal.toString()));
+            literal.setLength(0);
+        }
     }
 
     /**
@@ -179,6 +209,7 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
      */
     public void registerExpressionEvaluator(@Nonnull String expression, @Nonnull Function evaluator) {
         functionsByName.put(expression, evaluator);
+        templatesByExpression.clear();
     }
 
     public interface Function {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.StringUtils2;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.util.logging.Level;
+
+/**
+ * Immutable compiled form of an expression (e.g. <code>"#hostname#.tomcat.%name%.#attribute#"</code>): a sequence
+ * of literal segments, ObjectName key property slots and pre-bound {@link ExpressionLanguageEngineImpl.Function}s.
+ * Static functions (e.g. <code>#hostname#</code>) are folded into the literal segments at compile time.
+ *
+ * @see ExpressionLanguageEngine#compileExpression(String)
+ */
+public final class ExpressionTemplate {
+
+    @Nonnull
+    private final String expression;
+    @Nonnull
+    private final Segment[] segments;
+    /**
+     * Length of the literal segments, initial capacity of the result buffer
+     */
+    private final int literalsLength;
+
+    ExpressionTemplate(@Nonnull String expression, @Nonnull Segment[] segments) {
+        this.expression = expression;
+        this.segments = segments;
+        int literalsLength = 0;
+        for (Segment segment : segments) {
+            if (segment instanceof Literal) {
+                literalsLength += ((Literal) segment).value.length();
+            }
+        }
+        this.literalsLength = literalsLength;
+    }
+
+    @Nonnull
+    public String resolve(@Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+        if (segments.length == 1 && segments[0] instanceof Literal) {
+            return ((Literal) segments[0]).value;
+        }
+        StringBuilder result = new StringBuilder(literalsLength + 16 * segments.length);
+        for (Segment segment : segments) {
+            segment.appendTo(result, exactObjectName, attribute, compositeDataKey, position);
+        }
+        return result.toString();
+    }
+
+    @Nonnull
+    public String getExpression() {
+        return expression;
+    }
+
+    int getSegmentsCount() {
+        return segments.length;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionTemplate{" +
+                "expression='" + expression + '\'' +
+                ", segmentsCount=" + segments.length +
+                '}';
+    }
+
+    abstract static class Segment {
+        abstract void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position);
+    }
+
+    /**
+     * Text of the expression and folded static functions, already escaped.
+     */
+    static class Literal extends Segment {
+        @Nonnull
+        final String value;
+
+        Literal(@Nonnull String value) {
+            this.value = value;
+        }
+
+        @Override
+        void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            result.append(value);
+        }
+    }
+
+    /**
+     * '%' based variable mapped to an ObjectName key property, {@code "null"} if the property is not defined.
+     */
+    static class ObjectNameKey extends Segment {
+        @Nonnull
+        final String key;
+
+        ObjectNameKey(@Nonnull String key) {
+            this.key = key;
+        }
+
+        @Override
+        void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            String value = exactObjectName.getKeyProperty(key);
+            if (value == null) {
+                value = "null";
+            }
+            StringUtils2.appendEscapedNonAlphaNumericChars(value, result);
+        }
+    }
+
+    /**
+     * '#' based function depending on the collected metric (e.g. <code>#attribute#</code>).
+     */
+    static class FunctionCall extends Segment {
+        private final static Logger logger = Logger.getLogger(FunctionCall.class.getName());
+        @Nonnull
+        final String functionName;
+        @Nonnull
+        final ExpressionLanguageEngineImpl.Function function;
+
+        FunctionCall(@Nonnull String functionName, @Nonnull ExpressionLanguageEngineImpl.Function function) {
+            this.functionName = functionName;
+            this.function = function;
+        }
+
+        @Override
+        void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            String value;
+            try {
+                value = function.evaluate(exactObjectName, attribute, compositeDataKey, position);
+            } catch (Exception e) {
+                value = "#expression_error#";
+                logger.log(Level.WARNING, "Error evaluating expression '" + functionName + "'", e);
+            }
+            StringUtils2.appendEscapedNonAlphaNumericChars(value, false, result);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring of Graphite Carbon ({@code carbon.hashing.ConsistentHashRing} with the default
+ * {@code carbon_ch} hash type) so that metrics are routed to the same carbon-cache instances than carbon-relay would.
+ *
+ * Each node {@code (server, instance)} is placed {@value #REPLICA_COUNT} times on the ring, at the position of the
+ * first 4 hex chars of the md5 of {@code "('<server>', '<instance>'):<i>"} (instance is {@code None} when not
+ * defined), incremented on collision. A key is routed to the first node at or after its position.
+ *
+ * @param <N> type of the nodes
+ */
+class GraphiteConsistentHashRing<N> {
+
+    final static int REPLICA_COUNT = 100;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int[] positions = new int[0];
+    private Object[] nodes = new Object[0];
+    private final MessageDigest md5;
+
+    GraphiteConsistentHashRing() {
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void addNode(@Nonnull String server, @Nullable String instance, @Nonnull N node) {
+        String nodeKey = "('" + server + "', " + (instance == null ? "None" : "'" + instance + "'") + ")";
+        for (int i = 0; i < REPLICA_COUNT; i++) {
+            int position = computeRingPosition(nodeKey + ":" + i);
+            while (Arrays.binarySearch(positions, position) >= 0) {
+                position++;
+            }
+            int insertionPoint = -Arrays.binarySearch(positions, position) - 1;
+            positions = insert(positions, insertionPoint, position);
+            Object[] newNodes = new Object[nodes.length + 1];
+            System.arraycopy(nodes, 0, newNodes, 0, insertionPoint);
+            newNodes[insertionPoint] = node;
+            System.arraycopy(nodes, insertionPoint, newNodes, insertionPoint + 1, nodes.length - insertionPoint);
+            nodes = newNodes;
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the ring is empty
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    N getNode(@Nonnull String key) {
+        if (nodes.length == 0) {
+            throw new IllegalStateException("No node in the ring");
+        }
+        int index = Arrays.binarySearch(positions, computeRingPosition(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return (N) nodes[index % nodes.length];
+    }
+
+    /**
+     * @return {@code int(md5(key).hexdigest()[:4], 16)}
+     */
+    int computeRingPosition(@Nonnull String key) {
+        byte[] digest = md5.digest(key.getBytes(UTF_8));
+        return ((digest[0] & 0xFF) << 8) | (digest[1] & 0xFF);
+    }
+
+    private static int[] insert(@Nonnull int[] values, int index, int value) {
+        int[] result = new int[values.length + 1];
+        System.arraycopy(values, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(values, index, result, index + 1, values.length - index);
+        return result;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.StringUtils2;
+import org.jmxtrans.agent.util.net.HostAndPort;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static org.jmxtrans.agent.util.ConfigurationUtils.getInt;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
+
+/**
+ * Output to several Graphite Carbon plain text listeners, each metric being routed to one destination with the
+ * consistent hash ring of carbon-relay (see {@link GraphiteConsistentHashRing}) so that the agent can feed a cluster
+ * of carbon-cache instances without relay.
+ *
+ * Each destination has its own {@link GraphitePlainTextEncoder} and non blocking {@link SocketChannel}; the pending
+ * metrics of all the destinations are flushed concurrently in {@link #postCollect()}. A destination that fails to
+ * connect or to receive its metrics within the timeouts is considered down for
+ * {@code destination.retryIntervalInSeconds}, the metrics routed to it meanwhile are dropped.
+ */
+public class GraphiteConsistentHashingTcpOutputWriter extends AbstractOutputWriter implements NumericOutputWriter, BatchOutputWriter {
+
+    /**
+     * Comma separated list of {@code host:port[:instance]}, the {@code instance} being the one of the carbon-relay
+     * {@code DESTINATIONS}
+     */
+    public final static String SETTING_DESTINATIONS = "destinations";
+    public final static int SETTING_PORT_DEFAULT_VALUE = 2003;
+    public final static String SETTING_NAME_PREFIX = "namePrefix";
+    public final static String SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS = "socket.connectTimeoutInMillis";
+    public final static int SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 500;
+    public final static String SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS = "socket.writeTimeoutInMillis";
+    public final static int SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 5000;
+    public final static String SETTING_DESTINATION_RETRY_INTERVAL_IN_SECONDS = "destination.retryIntervalInSeconds";
+    public final static int SETTING_DESTINATION_RETRY_INTERVAL_IN_SECONDS_DEFAULT_VALUE = 30;
+
+    /**
+     * Bound of the cache of the destinations of the metric names
+     */
+    private final static int MAX_CACHED_ROUTES = 100000;
+
+    protected String metricPathPrefix;
+    private final List<Destination> destinations = new ArrayList<Destination>();
+    private final GraphiteConsistentHashRing<Destination> ring = new GraphiteConsistentHashRing<Destination>();
+    /**
+     * Destination by metric name, the prefix being constant
+     */
+    private final Map<String, Destination> routes = new HashMap<String, Destination>();
+    private final List<Destination> flushingDestinations = new ArrayList<Destination>();
+    private Selector selector;
+    private int socketConnectTimeoutInMillis = SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE;
+    private int socketWriteTimeoutInMillis = SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS_DEFAULT_VALUE;
+    private int destinationRetryIntervalInSeconds = SETTING_DESTINATION_RETRY_INTERVAL_IN_SECONDS_DEFAULT_VALUE;
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+
+        for (String destination : StringUtils2.delimitedStringToList(getString(settings, SETTING_DESTINATIONS))) {
+            addDestination(parseDestination(destination));
+        }
+        if (destinations.isEmpty()) {
+            throw new IllegalArgumentException("No destination defined in '" + SETTING_DESTINATIONS + "'");
+        }
+        metricPathPrefix = getString(settings, SETTING_NAME_PREFIX, null);
+        socketConnectTimeoutInMillis = getInt(settings,
+                SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS,
+                SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE);
+        socketWriteTimeoutInMillis = getInt(settings,
+                SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS,
+                SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS_DEFAULT_VALUE);
+        destinationRetryIntervalInSeconds = getInt(settings,
+                SETTING_DESTINATION_RETRY_INTERVAL_IN_SECONDS,
+                SETTING_DESTINATION_RETRY_INTERVAL_IN_SECONDS_DEFAULT_VALUE);
+
+        logger.log(getInfoLevel(), "GraphiteConsistentHashingTcpOutputWriter is configured with " + destinations + ", metricPathPrefix=" + metricPathPrefix +
+                ", socketConnectTimeoutInMillis=" + socketConnectTimeoutInMillis + ", socketWriteTimeoutInMillis=" + socketWriteTimeoutInMillis +
+                ", destinationRetryIntervalInSeconds=" + destinationRetryIntervalInSeconds);
+    }
+
+    /**
+     * @param destination {@code host:port[:instance]}
+     */
+    @Nonnull
+    static Destination parseDestination(@Nonnull String destination) {
+        String[] tokens = destination.trim().split(":");
+        if (tokens.length > 3) {
+            throw new IllegalArgumentException("Invalid destination '" + destination + "', expected 'host:port[:instance]'");
+        }
+        int port;
+        try {
+            port = tokens.length > 1 ? Integer.parseInt(tokens[1].trim()) : SETTING_PORT_DEFAULT_VALUE;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in destination '" + destination + "'", e);
+        }
+        String instance = tokens.length > 2 ? tokens[2].trim() : null;
+        return new Destination(new HostAndPort(tokens[0].trim(), port), instance);
+    }
+
+    private void addDestination(@Nonnull Destination destination) {
+        destinations.add(destination);
+        ring.addNode(destination.hostAndPort.getHost(), destination.instance, destination);
+    }
+
+    /**
+     * @see GraphiteOutputWriters#buildMetricPathPrefix(String)
+     */
+    protected String buildMetricPathPrefix() {
+        if (metricPathPrefix == null) {
+            metricPathPrefix = GraphiteOutputWriters.buildMetricPathPrefix(null);
+        }
+        return metricPathPrefix;
+    }
+
+    /**
+     * @return the destination of the given metric, {@code null} if it is down
+     */
+    @Nullable
+    private Destination route(@Nonnull String metricName, long timestampInSeconds) {
+        Destination destination = routes.get(metricName);
+        if (destination == null) {
+            destination = ring.getNode(buildMetricPathPrefix() + metricName);
+            if (routes.size() >= MAX_CACHED_ROUTES) {
+                routes.clear();
+            }
+            routes.put(metricName, destination);
+        }
+        if (destination.down) {
+            destination.droppedMetricsCount++;
+            return null;
+        }
+        destination.encoder.setTimestampInSeconds(timestampInSeconds);
+        return destination;
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        writeQueryResult(invocationName, null, value);
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String type, @Nullable Object value) throws IOException {
+        Destination destination = route(metricName, getTimestampInSeconds());
+        if (destination != null) {
+            destination.encoder.add(buildMetricPathPrefix(), metricName, value);
+        }
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        Destination destination = route(metricName, getTimestampInSeconds());
+        if (destination != null) {
+            destination.encoder.add(buildMetricPathPrefix(), metricName, value);
+        }
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        Destination destination = route(metricName, getTimestampInSeconds());
+        if (destination != null) {
+            destination.encoder.add(buildMetricPathPrefix(), metricName, value);
+        }
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        String metricPathPrefix = buildMetricPathPrefix();
+        CollectCycle cycle = batch.getCycle();
+        for (int i = 0; i < batch.size(); i++) {
+            long timestampInSeconds = cycle == null ?
+                    TimeUnit.SECONDS.convert(batch.getTimestampInMillis(i), TimeUnit.MILLISECONDS) :
+                    cycle.getTimestampInSeconds();
+            Destination destination = route(batch.getName(i), timestampInSeconds);
+            if (destination == null) {
+                continue;
+            }
+            switch (batch.getValueType(i)) {
+                case MetricBatch.LONG_VALUE:
+                    destination.encoder.add(metricPathPrefix, batch.getName(i), batch.getLongValue(i));
+                    break;
+                case MetricBatch.DOUBLE_VALUE:
+                    destination.encoder.add(metricPathPrefix, batch.getName(i), batch.getDoubleValue(i));
+                    break;
+                default:
+                    destination.encoder.add(metricPathPrefix, batch.getName(i), batch.getObjectValue(i));
+            }
+        }
+    }
+
+    private long getTimestampInSeconds() {
+        CollectCycle cycle = getCollectCycle();
+        if (cycle == null) {
+            return TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        return cycle.getTimestampInSeconds();
+    }
+
+    /**
+     * Give another chance to the destinations whose retry interval is elapsed.
+     */
+    @Override
+    public void preCollect() throws IOException {
+        super.preCollect();
+        long now = System.currentTimeMillis();
+        for (Destination destination : destinations) {
+            if (destination.down && now >= destination.retryAtInMillis) {
+                destination.down = false;
+            }
+        }
+    }
+
+    /**
+     * Flush the pending metrics of all the destinations concurrently.
+     *
+     * @throws IOException if all the destinations having pending metrics failed
+     */
+    @Override
+    public void postCollect() throws IOException {
+        long now = System.currentTimeMillis();
+        long deadline = now + socketConnectTimeoutInMillis + socketWriteTimeoutInMillis;
+        int failures = 0;
+        int successes = 0;
+        IOException lastException = null;
+
+        flushingDestinations.clear();
+        for (Destination destination : destinations) {
+            if (destination.encoder.size() == 0) {
+                continue;
+            }
+            try {
+                if (startFlush(destination, now)) {
+                    successes++;
+                } else {
+                    flushingDestinations.add(destination);
+                }
+            } catch (IOException e) {
+                failures++;
+                lastException = e;
+                destinationFailed(destination, e, now);
+            }
+        }
+
+        while (!flushingDestinations.isEmpty() && now < deadline) {
+            selector.select(deadline - now);
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                Destination destination = (Destination) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        if (destination.channel.finishConnect()) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        }
+                    } else if (key.isWritable() && write(destination)) {
+                        successes++;
+                        flushingDestinations.remove(destination);
+                    }
+                } catch (IOException e) {
+                    failures++;
+                    lastException = e;
+                    flushingDestinations.remove(destination);
+                    destinationFailed(destination, e, System.currentTimeMillis());
+                }
+            }
+            now = System.currentTimeMillis();
+            for (Iterator<Destination> it = flushingDestinations.iterator(); it.hasNext(); ) {
+                Destination destination = it.next();
+                if (destination.channel.isConnectionPending() && now >= destination.connectDeadlineInMillis) {
+                    it.remove();
+                    failures++;
+                    lastException = new SocketTimeoutException("Timeout connecting to " + destination.hostAndPort);
+                    destinationFailed(destination, lastException, now);
+                }
+            }
+        }
+        for (Destination destination : flushingDestinations) {
+            failures++;
+            lastException = new SocketTimeoutException("Timeout sending " + destination.encoder.size() + " metrics to " + destination.hostAndPort);
+            destinationFailed(destination, lastException, now);
+        }
+        flushingDestinations.clear();
+
+        if (failures > 0 && successes == 0) {
+            throw new IOException("Exception sending metrics to " + failures + " destinations", lastException);
+        }
+    }
+
+    /**
+     * Connect the destination if needed and write its pending metrics, registering the channel for the connection or
+     * the remaining writes.
+     *
+     * @return {@code true} if all the metrics have been written
+     */
+    private boolean startFlush(@Nonnull Destination destination, long now) throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+        }
+        destination.pendingMetricsCount = destination.encoder.size();
+        if (destination.channel == null || !destination.channel.isOpen()) {
+            InetSocketAddress address = new InetSocketAddress(destination.hostAndPort.getHost(), destination.hostAndPort.getPort());
+            if (address.isUnresolved()) {
+                throw new UnknownHostException("Exception connecting to " + destination.hostAndPort + ", unknown host");
+            }
+            SocketChannel channel = SocketChannel.open();
+            destination.channel = channel;
+            channel.configureBlocking(false);
+            channel.socket().setKeepAlive(true);
+            destination.connectDeadlineInMillis = now + socketConnectTimeoutInMillis;
+            boolean connected = channel.connect(address);
+            destination.key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, destination);
+            if (!connected) {
+                return false;
+            }
+        }
+        if (write(destination)) {
+            return true;
+        }
+        destination.key.interestOps(SelectionKey.OP_WRITE);
+        return false;
+    }
+
+    /**
+     * @return {@code true} if all the pending metrics of the destination have been written
+     */
+    private boolean write(@Nonnull Destination destination) throws IOException {
+        if (!destination.encoder.writeSomeTo(destination.channel)) {
+            return false;
+        }
+        destination.key.interestOps(0);
+        destination.sentMetricsCount += destination.pendingMetricsCount;
+        if (destination.failuresCount > 0) {
+            logger.log(getInfoLevel(), "Destination " + destination.hostAndPort + " is back after " + destination.failuresCount + " failures");
+            destination.failuresCount = 0;
+        }
+        return true;
+    }
+
+    private void destinationFailed(@Nonnull Destination destination, @Nonnull IOException e, long now) {
+        destination.droppedMetricsCount += destination.encoder.size();
+        destination.encoder.clear();
+        destination.close();
+        destination.failuresCount++;
+        destination.down = true;
+        destination.retryAtInMillis = now + TimeUnit.MILLISECONDS.convert(destinationRetryIntervalInSeconds, TimeUnit.SECONDS);
+        logger.log(Level.WARNING, "Exception sending metrics to " + destination.hostAndPort +
+                ", destination considered down for " + destinationRetryIntervalInSeconds + "s", e);
+    }
+
+    @Nonnull
+    List<Destination> getDestinations() {
+        return Collections.unmodifiableList(destinations);
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        for (Destination destination : destinations) {
+            destination.close();
+        }
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception closing selector", e);
+            }
+            selector = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GraphiteConsistentHashingTcpOutputWriter{" +
+                "destinations=" + destinations +
+                ", metricPathPrefix='" + metricPathPrefix + '\'' +
+                '}';
+    }
+
+    /**
+     * Carbon destination with its connection, its pending metrics and its health.
+     */
+    static class Destination {
+        final HostAndPort hostAndPort;
+        @Nullable
+        final String instance;
+        final GraphitePlainTextEncoder encoder = new GraphitePlainTextEncoder();
+        SocketChannel channel;
+        SelectionKey key;
+        long connectDeadlineInMillis;
+        int pendingMetricsCount;
+        boolean down;
+        long retryAtInMillis;
+        int failuresCount;
+        long sentMetricsCount;
+        long droppedMetricsCount;
+
+        Destination(@Nonnull HostAndPort hostAndPort, @Nullable String instance) {
+            this.hostAndPort = hostAndPort;
+            this.instance = instance;
+        }
+
+        boolean isDown() {
+            return down;
+        }
+
+        long getSentMetricsCount() {
+            return sentMetricsCount;
+        }
+
+        long getDroppedMetricsCount() {
+            return droppedMetricsCount;
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                channel = null;
+                key = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Destination{" +
+                    hostAndPort.getHost() + ":" + hostAndPort.getPort() + (instance == null ? "" : ":" + instance) +
+                    ", down=" + down +
+                    ", sent=" + sentMetricsCount +
+                    ", dropped=" + droppedMetricsCount +
+                    '}';
+        }
+    }
+}
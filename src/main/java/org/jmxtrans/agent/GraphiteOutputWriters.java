@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Helpers shared by the Graphite {@link OutputWriter}s.
+ */
+public final class GraphiteOutputWriters {
+
+    private GraphiteOutputWriters() {
+    }
+
+    /**
+     * {@link java.net.InetAddress#getLocalHost()} may not be known at JVM startup when the process is launched as a
+     * Linux service, the default prefix must be built lazily.
+     *
+     * @param metricPathPrefix the configured prefix, {@code null} if not configured
+     * @return the given prefix or, if {@code null}, {@code servers.<hostname>.} with the dots of the hostname
+     * replaced by underscores
+     */
+    @Nonnull
+    public static String buildMetricPathPrefix(@Nullable String metricPathPrefix) {
+        if (metricPathPrefix != null) {
+            return metricPathPrefix;
+        }
+        String hostname;
+        try {
+            hostname = InetAddress.getLocalHost().getHostName().replaceAll("\\.", "_");
+        } catch (UnknownHostException e) {
+            hostname = "#unknown#";
+        }
+        return "servers." + hostname + ".";
+    }
+}
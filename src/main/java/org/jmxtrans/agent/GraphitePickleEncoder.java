@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encode metrics in the frames of the Graphite Carbon pickle protocol: a 4 bytes big endian length followed by a
+ * pickle (protocol 2) of the list {@code [(path, (timestamp, value)), ...]}.
+ *
+ * The frame is encoded in a reusable byte array as the metrics are added, without intermediate objects.
+ *
+ * Not thread safe.
+ */
+class GraphitePickleEncoder {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    // pickle opcodes, see Python's Lib/pickle.py
+    private final static byte PROTO = (byte) 0x80;
+    private final static byte EMPTY_LIST = ']';
+    private final static byte MARK = '(';
+    private final static byte APPENDS = 'e';
+    private final static byte BINUNICODE = 'X';
+    private final static byte BININT = 'J';
+    private final static byte LONG1 = (byte) 0x8a;
+    private final static byte BINFLOAT = 'G';
+    private final static byte TUPLE2 = (byte) 0x86;
+    private final static byte STOP = '.';
+
+    private final static int HEADER_LENGTH = 4;
+
+    private byte[] buffer = new byte[4096];
+    private int position;
+    private int count;
+
+    GraphitePickleEncoder() {
+        reset();
+    }
+
+    /**
+     * Discard the metrics of the current frame
+     */
+    void reset() {
+        position = HEADER_LENGTH;
+        count = 0;
+        writeByte(PROTO);
+        writeByte((byte) 2);
+        writeByte(EMPTY_LIST);
+        writeByte(MARK);
+    }
+
+    void add(@Nonnull String metricPathPrefix, @Nonnull String metricName, long timestampInSeconds, long value) {
+        startMetric(metricPathPrefix, metricName, timestampInSeconds);
+        writeInt(value);
+        endMetric();
+    }
+
+    void add(@Nonnull String metricPathPrefix, @Nonnull String metricName, long timestampInSeconds, double value) {
+        startMetric(metricPathPrefix, metricName, timestampInSeconds);
+        ensureCapacity(9);
+        buffer[position++] = BINFLOAT;
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (bits >>> shift);
+        }
+        endMetric();
+    }
+
+    private void startMetric(@Nonnull String metricPathPrefix, @Nonnull String metricName, long timestampInSeconds) {
+        writeString(metricPathPrefix, metricName);
+        writeInt(timestampInSeconds);
+    }
+
+    private void endMetric() {
+        ensureCapacity(2);
+        // (timestamp, value) then (path, (timestamp, value))
+        buffer[position++] = TUPLE2;
+        buffer[position++] = TUPLE2;
+        count++;
+    }
+
+    /**
+     * @return the number of metrics of the current frame
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Write the frame of the current metrics to the given stream in a single call then {@link #reset()}.
+     */
+    void writeTo(@Nonnull OutputStream out) throws IOException {
+        ensureCapacity(2);
+        buffer[position++] = APPENDS;
+        buffer[position++] = STOP;
+        int length = position - HEADER_LENGTH;
+        buffer[0] = (byte) (length >>> 24);
+        buffer[1] = (byte) (length >>> 16);
+        buffer[2] = (byte) (length >>> 8);
+        buffer[3] = (byte) length;
+        try {
+            out.write(buffer, 0, position);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Write the UTF-8 {@code BINUNICODE} of the concatenation of the given strings, without encoding them in an
+     * intermediate array if they are ASCII.
+     */
+    private void writeString(@Nonnull String prefix, @Nonnull String name) {
+        int length = prefix.length() + name.length();
+        if (isAscii(prefix) && isAscii(name)) {
+            ensureCapacity(5 + length);
+            buffer[position++] = BINUNICODE;
+            writeLittleEndianInt(length);
+            for (int i = 0; i < prefix.length(); i++) {
+                buffer[position++] = (byte) prefix.charAt(i);
+            }
+            for (int i = 0; i < name.length(); i++) {
+                buffer[position++] = (byte) name.charAt(i);
+            }
+        } else {
+            byte[] bytes = (prefix + name).getBytes(UTF_8);
+            ensureCapacity(5 + bytes.length);
+            buffer[position++] = BINUNICODE;
+            writeLittleEndianInt(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+    }
+
+    private static boolean isAscii(@Nonnull String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * {@code BININT} if the value fits in 32 bits, {@code LONG1} otherwise
+     */
+    private void writeInt(long value) {
+        ensureCapacity(10);
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            buffer[position++] = BININT;
+            writeLittleEndianInt((int) value);
+        } else {
+            buffer[position++] = LONG1;
+            buffer[position++] = 8;
+            for (int shift = 0; shift < 64; shift += 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+    }
+
+    private void writeLittleEndianInt(int value) {
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 24);
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer[position++] = value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+        }
+    }
+}
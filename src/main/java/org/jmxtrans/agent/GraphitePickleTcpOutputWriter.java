@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.net.HostAndPort;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static org.jmxtrans.agent.util.ConfigurationUtils.getInt;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
+
+/**
+ * Output to the Graphite Carbon pickle receiver.
+ *
+ * The metrics of a collection are encoded in length prefixed pickle frames of at most {@code batchSize}
+ * metrics, each frame being sent with a single write. The last incomplete frame is sent in {@link #postCollect()}.
+ * Non numeric values are ignored, Carbon would reject them.
+ */
+public class GraphitePickleTcpOutputWriter extends AbstractOutputWriter implements NumericOutputWriter, BatchOutputWriter {
+
+    public final static String SETTING_HOST = "host";
+    public final static String SETTING_PORT = "port";
+    public static final int SETTING_PORT_DEFAULT_VALUE = 2004;
+    public final static String SETTING_NAME_PREFIX = "namePrefix";
+    public final static String SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS = "socket.connectTimeoutInMillis";
+    public final static int SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 500;
+    public final static String SETTING_BATCH_SIZE = "batchSize";
+    public final static int SETTING_BATCH_SIZE_DEFAULT_VALUE = 500;
+
+    protected String metricPathPrefix;
+    protected HostAndPort graphiteServerHostAndPort;
+    private Socket socket;
+    private OutputStream out;
+    private int socketConnectTimeoutInMillis = SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE;
+    private int batchSize = SETTING_BATCH_SIZE_DEFAULT_VALUE;
+    private final GraphitePickleEncoder encoder = new GraphitePickleEncoder();
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+
+        graphiteServerHostAndPort = new HostAndPort(
+                getString(settings, SETTING_HOST),
+                getInt(settings, SETTING_PORT, SETTING_PORT_DEFAULT_VALUE));
+        metricPathPrefix = getString(settings, SETTING_NAME_PREFIX, null);
+        socketConnectTimeoutInMillis = getInt(settings,
+                SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS,
+                SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE);
+        batchSize = getInt(settings, SETTING_BATCH_SIZE, SETTING_BATCH_SIZE_DEFAULT_VALUE);
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid " + SETTING_BATCH_SIZE + " " + batchSize + ", must be greater than 0");
+        }
+
+        logger.log(getInfoLevel(), "GraphitePickleTcpOutputWriter is configured with " + graphiteServerHostAndPort + ", metricPathPrefix=" + metricPathPrefix +
+                ", socketConnectTimeoutInMillis=" + socketConnectTimeoutInMillis + ", batchSize=" + batchSize);
+    }
+
+    /**
+     * @see GraphiteOutputWriters#buildMetricPathPrefix(String)
+     */
+    protected String buildMetricPathPrefix() {
+        if (metricPathPrefix == null) {
+            metricPathPrefix = GraphiteOutputWriters.buildMetricPathPrefix(null);
+        }
+        return metricPathPrefix;
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        writeQueryResult(invocationName, null, value);
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String type, @Nullable Object value) throws IOException {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeLongQueryResult(metricName, type, ((Number) value).longValue());
+        } else if (value instanceof Number) {
+            writeDoubleQueryResult(metricName, type, ((Number) value).doubleValue());
+        } else if (logger.isLoggable(getDebugLevel())) {
+            logger.log(getDebugLevel(), "Ignore non numeric value " + metricName + "=" + value);
+        }
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        encoder.add(buildMetricPathPrefix(), metricName, getTimestampInSeconds(), value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        encoder.add(buildMetricPathPrefix(), metricName, getTimestampInSeconds(), value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        String metricPathPrefix = buildMetricPathPrefix();
+        CollectCycle cycle = batch.getCycle();
+        for (int i = 0; i < batch.size(); i++) {
+            long timestampInSeconds = cycle == null ?
+                    TimeUnit.SECONDS.convert(batch.getTimestampInMillis(i), TimeUnit.MILLISECONDS) :
+                    cycle.getTimestampInSeconds();
+            switch (batch.getValueType(i)) {
+                case MetricBatch.LONG_VALUE:
+                    encoder.add(metricPathPrefix, batch.getName(i), timestampInSeconds, batch.getLongValue(i));
+                    break;
+                case MetricBatch.DOUBLE_VALUE:
+                    encoder.add(metricPathPrefix, batch.getName(i), timestampInSeconds, batch.getDoubleValue(i));
+                    break;
+                default:
+                    Object value = batch.getObjectValue(i);
+                    if (value instanceof Number) {
+                        encoder.add(metricPathPrefix, batch.getName(i), timestampInSeconds, ((Number) value).doubleValue());
+                    } else {
+                        continue;
+                    }
+            }
+            sendIfFull();
+        }
+    }
+
+    private long getTimestampInSeconds() {
+        CollectCycle cycle = getCollectCycle();
+        if (cycle == null) {
+            return TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        return cycle.getTimestampInSeconds();
+    }
+
+    private void sendIfFull() throws IOException {
+        if (encoder.size() >= batchSize) {
+            send();
+        }
+    }
+
+    /**
+     * Send the pending frame, the frame is discarded if the send fails.
+     */
+    private void send() throws IOException {
+        int size = encoder.size();
+        if (size == 0) {
+            return;
+        }
+        try {
+            ensureGraphiteConnection();
+            if (logger.isLoggable(getTraceLevel())) {
+                logger.log(getTraceLevel(), "Send " + size + " metrics to " + graphiteServerHostAndPort);
+            }
+            encoder.writeTo(out);
+        } catch (IOException e) {
+            encoder.reset();
+            logger.log(Level.WARNING, "Exception sending " + size + " metrics to " + graphiteServerHostAndPort, e);
+            releaseGraphiteConnection();
+            throw e;
+        }
+    }
+
+    private void releaseGraphiteConnection() {
+        out = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception closing socket " + socket, e);
+            }
+            socket = null;
+        }
+    }
+
+    private void ensureGraphiteConnection() throws IOException {
+        boolean socketIsValid;
+        try {
+            socketIsValid = socket != null &&
+                    socket.isConnected()
+                    && socket.isBound()
+                    && !socket.isClosed()
+                    && !socket.isInputShutdown()
+                    && !socket.isOutputShutdown();
+        } catch (Exception e) {
+            socketIsValid = false;
+        }
+        if (!socketIsValid) {
+            out = null;
+            try {
+                socket = new Socket();
+                socket.setKeepAlive(true);
+                socket.connect(
+                        new InetSocketAddress(graphiteServerHostAndPort.getHost(), graphiteServerHostAndPort.getPort()),
+                        socketConnectTimeoutInMillis);
+            } catch (IOException e) {
+                ConnectException ce = new ConnectException("Exception connecting to " + graphiteServerHostAndPort);
+                ce.initCause(e);
+                throw ce;
+            }
+        }
+        if (out == null) {
+            out = socket.getOutputStream();
+        }
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        send();
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        releaseGraphiteConnection();
+    }
+
+    @Override
+    public String toString() {
+        return "GraphitePickleTcpOutputWriter{" +
+                graphiteServerHostAndPort +
+                ", metricPathPrefix='" + metricPathPrefix + '\'' +
+                ", batchSize=" + batchSize +
+                '}';
+    }
+}
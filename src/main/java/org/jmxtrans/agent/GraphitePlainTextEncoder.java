@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Encode metrics in the Graphite Carbon plain text protocol ({@code "<path> <value> <timestamp>\n"}) directly into
+ * reusable direct {@link ByteBuffer} chunks, sent with gathering writes or, when lines are kept whole in a chunk, as
+ * one datagram per chunk.
+ *
+ * Names are encoded in UTF-8 char by char, longs and the timestamp digit by digit and the timestamp is formatted
+ * only when it changes: once buffers are allocated, encoding long metrics does not allocate. Doubles are formatted
+ * with {@link Double#toString(double)} to keep the representation sent so far, which allocates on Java 7
+ * ({@code sun.misc.FloatingDecimal}).
+ *
+ * Not thread safe.
+ */
+class GraphitePlainTextEncoder {
+
+    final static int CHUNK_SIZE_IN_BYTES = 16 * 1024;
+
+    private final int chunkSizeInBytes;
+    /**
+     * {@code true} if a line must never span two chunks
+     */
+    private final boolean wholeLinesPerChunk;
+    private ByteBuffer[] chunks;
+    private int chunksCount = 1;
+    private ByteBuffer current;
+    private int metricsCount;
+    /**
+     * Position of the line being encoded in the {@link #current} chunk
+     */
+    private int lineStart;
+    /**
+     * {@code true} if the line being encoded does not fit in a chunk and is dropped
+     */
+    private boolean droppingLine;
+    private long droppedLinesCount;
+    /**
+     * {@code true} when the chunks are flipped to be written
+     */
+    private boolean writing;
+
+    private final byte[] digits = new byte[20];
+    private final byte[] timestamp = new byte[20];
+    private int timestampOffset = timestamp.length;
+    private long timestampInSeconds = Long.MIN_VALUE;
+    /**
+     * Formats the doubles with {@link Double#toString(double)}, the representation sent so far
+     */
+    private final StringBuilder doubleBuilder = new StringBuilder(32);
+
+    GraphitePlainTextEncoder() {
+        this(CHUNK_SIZE_IN_BYTES, false);
+    }
+
+    /**
+     * @param wholeLinesPerChunk if {@code true}, a line never spans two chunks and lines longer than a chunk are
+     *                           dropped
+     */
+    GraphitePlainTextEncoder(int chunkSizeInBytes, boolean wholeLinesPerChunk) {
+        this.chunkSizeInBytes = chunkSizeInBytes;
+        this.wholeLinesPerChunk = wholeLinesPerChunk;
+        this.chunks = new ByteBuffer[]{ByteBuffer.allocateDirect(chunkSizeInBytes)};
+        this.current = chunks[0];
+    }
+
+    /**
+     * Timestamp of the next metrics, formatted only if it changed
+     */
+    void setTimestampInSeconds(long timestampInSeconds) {
+        if (timestampInSeconds == this.timestampInSeconds) {
+            return;
+        }
+        this.timestampInSeconds = timestampInSeconds;
+        timestampOffset = format(timestampInSeconds, timestamp);
+    }
+
+    void add(@Nonnull String metricPathPrefix, @Nonnull String metricName, long value) {
+        startLine(metricPathPrefix, metricName);
+        putLong(value);
+        endLine();
+    }
+
+    void add(@Nonnull String metricPathPrefix, @Nonnull String metricName, double value) {
+        startLine(metricPathPrefix, metricName);
+        doubleBuilder.setLength(0);
+        doubleBuilder.append(value);
+        putChars(doubleBuilder);
+        endLine();
+    }
+
+    void add(@Nonnull String metricPathPrefix, @Nonnull String metricName, @Nullable Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            add(metricPathPrefix, metricName, ((Number) value).longValue());
+        } else if (value instanceof Double) {
+            add(metricPathPrefix, metricName, ((Double) value).doubleValue());
+        } else {
+            startLine(metricPathPrefix, metricName);
+            putChars(String.valueOf(value));
+            endLine();
+        }
+    }
+
+    /**
+     * @return the number of metrics pending
+     */
+    int size() {
+        return metricsCount;
+    }
+
+    int sizeInBytes() {
+        return (chunksCount - 1) * chunkSizeInBytes + current.position();
+    }
+
+    /**
+     * @return the number of lines dropped because they are longer than a chunk
+     */
+    long getDroppedLinesCount() {
+        return droppedLinesCount;
+    }
+
+    /**
+     * Write the pending metrics to the given channel, blocking until they are all written, then {@link #clear()}.
+     * On exception, the pending metrics are kept to be {@link #clear()}ed or copied with {@link #toByteArray()}.
+     */
+    void writeTo(@Nonnull GatheringByteChannel channel) throws IOException {
+        while (!writeSomeTo(channel)) {
+            // blocking channel, loop on partial writes
+        }
+    }
+
+    /**
+     * @return a copy of the lines of the pending metrics, including the ones already written if a write failed
+     */
+    @Nonnull
+    byte[] toByteArray() {
+        int size = 0;
+        for (int i = 0; i < chunksCount; i++) {
+            size += writing ? chunks[i].limit() : chunks[i].position();
+        }
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (int i = 0; i < chunksCount; i++) {
+            ByteBuffer chunk = chunks[i].duplicate();
+            if (writing) {
+                chunk.position(0);
+            } else {
+                chunk.flip();
+            }
+            int length = chunk.remaining();
+            chunk.get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Write as much of the pending metrics as the given non blocking channel accepts. No metric must be added until
+     * all the pending metrics are written or {@link #clear()}ed.
+     *
+     * @return {@code true} if all the pending metrics are written, the encoder is then {@link #clear()}ed
+     */
+    boolean writeSomeTo(@Nonnull GatheringByteChannel channel) throws IOException {
+        if (!writing) {
+            for (int i = 0; i < chunksCount; i++) {
+                chunks[i].flip();
+            }
+            writing = true;
+        }
+        channel.write(chunks, 0, chunksCount);
+        if (chunks[chunksCount - 1].hasRemaining()) {
+            return false;
+        }
+        clear();
+        return true;
+    }
+
+    /**
+     * Send each chunk of the pending metrics as a datagram, then {@link #clear()}.
+     *
+     * @return the number of datagrams sent
+     */
+    int writeTo(@Nonnull DatagramChannel channel, @Nonnull SocketAddress target) throws IOException {
+        try {
+            int datagrams = 0;
+            for (int i = 0; i < chunksCount; i++) {
+                ByteBuffer chunk = chunks[i];
+                chunk.flip();
+                if (chunk.hasRemaining()) {
+                    channel.send(chunk, target);
+                    datagrams++;
+                }
+            }
+            return datagrams;
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Discard the pending metrics, keeping the buffers
+     */
+    void clear() {
+        for (int i = 0; i < chunksCount; i++) {
+            chunks[i].clear();
+        }
+        chunksCount = 1;
+        current = chunks[0];
+        metricsCount = 0;
+        writing = false;
+        lineStart = 0;
+        droppingLine = false;
+    }
+
+    private void startLine(@Nonnull String metricPathPrefix, @Nonnull String metricName) {
+        lineStart = current.position();
+        putChars(metricPathPrefix);
+        putChars(metricName);
+        put((byte) ' ');
+    }
+
+    private void endLine() {
+        put((byte) ' ');
+        put(timestamp, timestampOffset);
+        put((byte) '\n');
+        if (droppingLine) {
+            current.position(lineStart);
+            droppingLine = false;
+            droppedLinesCount++;
+        } else {
+            metricsCount++;
+        }
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            putChars(Long.toString(value));
+            return;
+        }
+        put(digits, format(value, digits));
+    }
+
+    /**
+     * Format the given value at the end of the given array.
+     *
+     * @return the offset of the first char of the formatted value
+     */
+    private static int format(long value, @Nonnull byte[] digits) {
+        boolean negative = value < 0;
+        long remaining = negative ? -value : value;
+        int offset = digits.length;
+        do {
+            digits[--offset] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            digits[--offset] = '-';
+        }
+        return offset;
+    }
+
+    private void putChars(@Nonnull CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                put((byte) (0xF0 | (codePoint >> 18)));
+                put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                put((byte) '?');
+            } else {
+                put((byte) (0xE0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void put(@Nonnull byte[] bytes, int offset) {
+        for (int i = offset; i < bytes.length; i++) {
+            put(bytes[i]);
+        }
+    }
+
+    private void put(byte value) {
+        if (droppingLine) {
+            return;
+        }
+        if (!current.hasRemaining()) {
+            if (wholeLinesPerChunk && lineStart == 0) {
+                droppingLine = true;
+                return;
+            }
+            nextChunk();
+        }
+        current.put(value);
+    }
+
+    /**
+     * Move to the next chunk, with the beginning of the current line if lines are kept whole
+     */
+    private void nextChunk() {
+        if (chunksCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if (chunks[chunksCount] == null) {
+            chunks[chunksCount] = ByteBuffer.allocateDirect(chunkSizeInBytes);
+        }
+        ByteBuffer previous = current;
+        current = chunks[chunksCount++];
+        if (wholeLinesPerChunk) {
+            for (int i = lineStart; i < previous.position(); i++) {
+                current.put(previous.get(i));
+            }
+            previous.position(lineStart);
+            lineStart = 0;
+        }
+    }
+}
@@ -27,22 +27,33 @@ import org.jmxtrans.agent.util.net.HostAndPort;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.*;
-import java.nio.charset.Charset;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import static org.jmxtrans.agent.util.ConfigurationUtils.getInt;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getLong;
 import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
 
 /**
+ * Output to the Graphite Carbon plain text protocol.
+ *
+ * The metrics of a collection are encoded in reusable direct buffers by a {@link GraphitePlainTextEncoder} and sent
+ * with gathering writes on a {@link SocketChannel} in {@link #postCollect()}, or as soon as
+ * {@value #MAX_PENDING_BYTES} bytes are pending.
+ *
+ * If a replay buffer is configured ({@value #SETTING_REPLAY_BUFFER_SIZE_IN_BYTES}), the metrics that could not be
+ * sent are kept in a {@link GraphiteReplayBuffer} instead of being dropped, without reporting an exception, and are
+ * replayed at a limited rate after the metrics of the following collections once Carbon is reachable again. The
+ * connection is attempted at most once per collection while Carbon is unreachable.
+ *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter implements OutputWriter {
+public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter implements NumericOutputWriter, BatchOutputWriter {
 
     public final static String SETTING_HOST = "host";
     public final static String SETTING_PORT = "port";
@@ -50,13 +61,35 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
     public final static String SETTING_NAME_PREFIX = "namePrefix";
     public final static String SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS = "socket.connectTimeoutInMillis";
     public final static int SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 500;
+    /**
+     * Size of the in memory replay buffer, {@code 0} to disable the replay of the metrics that could not be sent
+     */
+    public final static String SETTING_REPLAY_BUFFER_SIZE_IN_BYTES = "replay.bufferSizeInBytes";
+    public final static long SETTING_REPLAY_BUFFER_SIZE_IN_BYTES_DEFAULT_VALUE = 0;
+    /**
+     * File to which the oldest metrics to replay are spilled when the replay buffer is full, optional
+     */
+    public final static String SETTING_REPLAY_FILE = "replay.file";
+    public final static String SETTING_REPLAY_FILE_MAX_SIZE_IN_BYTES = "replay.fileMaxSizeInBytes";
+    public final static long SETTING_REPLAY_FILE_MAX_SIZE_IN_BYTES_DEFAULT_VALUE = 100 * 1024 * 1024;
+    public final static String SETTING_REPLAY_MAX_BYTES_PER_SECOND = "replay.maxBytesPerSecond";
+    public final static long SETTING_REPLAY_MAX_BYTES_PER_SECOND_DEFAULT_VALUE = 1024 * 1024;
+
+    final static int MAX_PENDING_BYTES = 256 * 1024;
 
-    private final static Charset UTF_8 = Charset.forName("UTF-8");
     protected String metricPathPrefix;
     protected HostAndPort graphiteServerHostAndPort;
-    private Socket socket;
-    private Writer writer;
+    private SocketChannel channel;
+    private final GraphitePlainTextEncoder encoder = new GraphitePlainTextEncoder();
     private int socketConnectTimeoutInMillis = SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE;
+    @Nullable
+    private GraphiteReplayBuffer replayBuffer;
+    private long replayMaxBytesPerSecond = SETTING_REPLAY_MAX_BYTES_PER_SECOND_DEFAULT_VALUE;
+    private long lastPostCollectInMillis;
+    /**
+     * {@code true} if sending failed during the current collection, the next metrics then go to the replay buffer
+     */
+    private boolean sendFailedInCollect;
 
     @Override
     public void postConstruct(Map<String, String> settings) {
@@ -69,9 +102,20 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
         socketConnectTimeoutInMillis = getInt(settings,
                 SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS,
                 SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE);
+        long replayBufferSizeInBytes = getLong(settings, SETTING_REPLAY_BUFFER_SIZE_IN_BYTES, SETTING_REPLAY_BUFFER_SIZE_IN_BYTES_DEFAULT_VALUE);
+        String replayFile = getString(settings, SETTING_REPLAY_FILE, null);
+        if (replayBufferSizeInBytes > 0) {
+            replayBuffer = new GraphiteReplayBuffer(
+                    replayBufferSizeInBytes,
+                    replayFile == null ? null : new File(replayFile),
+                    getLong(settings, SETTING_REPLAY_FILE_MAX_SIZE_IN_BYTES, SETTING_REPLAY_FILE_MAX_SIZE_IN_BYTES_DEFAULT_VALUE));
+            replayMaxBytesPerSecond = getLong(settings, SETTING_REPLAY_MAX_BYTES_PER_SECOND, SETTING_REPLAY_MAX_BYTES_PER_SECOND_DEFAULT_VALUE);
+        }
 
         logger.log(getInfoLevel(), "GraphitePlainTextTcpOutputWriter is configured with " + graphiteServerHostAndPort + ", metricPathPrefix=" + metricPathPrefix +
-                ", socketConnectTimeoutInMillis=" + socketConnectTimeoutInMillis);
+                ", socketConnectTimeoutInMillis=" + socketConnectTimeoutInMillis +
+                (replayBuffer == null ? "" : ", replayBufferSizeInBytes=" + replayBufferSizeInBytes + ", replayFile=" + replayFile +
+                        ", replayMaxBytesPerSecond=" + replayMaxBytesPerSecond));
     }
 
     /**
@@ -80,16 +124,9 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
      * @return
      */
     protected String buildMetricPathPrefix() {
-        if (metricPathPrefix != null) {
-            return metricPathPrefix;
+        if (metricPathPrefix == null) {
+            metricPathPrefix = GraphiteOutputWriters.buildMetricPathPrefix(null);
         }
-        String hostname;
-        try {
-            hostname = InetAddress.getLocalHost().getHostName().replaceAll("\\.", "_");
-        } catch (UnknownHostException e) {
-            hostname = "#unknown#";
-        }
-        metricPathPrefix = "servers." + hostname + ".";
         return metricPathPrefix;
     }
 
@@ -100,83 +137,197 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
 
     @Override
     public void writeQueryResult(@Nonnull String metricName, @Nullable String type, @Nullable Object value) throws IOException {
-        String msg = buildMetricPathPrefix() + metricName + " " + value + " " + TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        encoder.setTimestampInSeconds(getTimestampInSeconds());
+        encoder.add(buildMetricPathPrefix(), metricName, value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        encoder.setTimestampInSeconds(getTimestampInSeconds());
+        encoder.add(buildMetricPathPrefix(), metricName, value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        encoder.setTimestampInSeconds(getTimestampInSeconds());
+        encoder.add(buildMetricPathPrefix(), metricName, value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        String metricPathPrefix = buildMetricPathPrefix();
+        CollectCycle cycle = batch.getCycle();
+        if (cycle != null) {
+            encoder.setTimestampInSeconds(cycle.getTimestampInSeconds());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (cycle == null) {
+                encoder.setTimestampInSeconds(TimeUnit.SECONDS.convert(batch.getTimestampInMillis(i), TimeUnit.MILLISECONDS));
+            }
+            switch (batch.getValueType(i)) {
+                case MetricBatch.LONG_VALUE:
+                    encoder.add(metricPathPrefix, batch.getName(i), batch.getLongValue(i));
+                    break;
+                case MetricBatch.DOUBLE_VALUE:
+                    encoder.add(metricPathPrefix, batch.getName(i), batch.getDoubleValue(i));
+                    break;
+                default:
+                    encoder.add(metricPathPrefix, batch.getName(i), batch.getObjectValue(i));
+            }
+            sendIfFull();
+        }
+    }
+
+    private long getTimestampInSeconds() {
+        CollectCycle cycle = getCollectCycle();
+        if (cycle == null) {
+            return TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        return cycle.getTimestampInSeconds();
+    }
+
+    private void sendIfFull() throws IOException {
+        if (encoder.sizeInBytes() >= MAX_PENDING_BYTES) {
+            send();
+        }
+    }
+
+    /**
+     * Send the pending metrics. If the send fails, they are kept in the replay buffer if any, discarded otherwise.
+     */
+    private void send() throws IOException {
+        int size = encoder.size();
+        if (size == 0) {
+            return;
+        }
+        if (replayBuffer != null && sendFailedInCollect) {
+            keepForReplay(size);
+            return;
+        }
         try {
             ensureGraphiteConnection();
             if (logger.isLoggable(getTraceLevel())) {
-                logger.log(getTraceLevel(), "Send '" + msg + "' to " + graphiteServerHostAndPort);
+                logger.log(getTraceLevel(), "Send " + size + " metrics (" + encoder.sizeInBytes() + " bytes) to " + graphiteServerHostAndPort);
             }
-            writer.write(msg + "\n");
+            encoder.writeTo(channel);
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Exception sending '" + msg + "' to " + graphiteServerHostAndPort, e);
+            logger.log(Level.WARNING, "Exception sending " + size + " metrics to " + graphiteServerHostAndPort, e);
             releaseGraphiteConnection();
-            throw e;
+            if (replayBuffer == null) {
+                encoder.clear();
+                throw e;
+            }
+            sendFailedInCollect = true;
+            keepForReplay(size);
         }
     }
 
-    private void releaseGraphiteConnection() {
-        if (writer != null) {
-            try {
-                writer.close();
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Exception closing writer for socket " + socket, e);
-            }
-            writer = null;
+    private void keepForReplay(int size) {
+        replayBuffer.add(encoder.toByteArray());
+        encoder.clear();
+        if (logger.isLoggable(getDebugLevel())) {
+            logger.log(getDebugLevel(), "Keep " + size + " metrics to replay to " + graphiteServerHostAndPort +
+                    ", " + replayBuffer.getSizeInBytes() + " bytes to replay, " + replayBuffer.getDroppedBytesCount() + " bytes dropped");
+        }
+    }
+
+    /**
+     * Replay the kept metrics at the rate of {@link #replayMaxBytesPerSecond} since the previous collection.
+     */
+    private void replay(long elapsedInMillis) {
+        long maxBytes = replayMaxBytesPerSecond * Math.max(elapsedInMillis, 1000) / 1000;
+        try {
+            ensureGraphiteConnection();
+            long replayed = replayBuffer.replay(channel, maxBytes);
+            logger.log(getInfoLevel(), "Replayed " + replayed + " bytes to " + graphiteServerHostAndPort + ", " +
+                    replayBuffer.getSizeInBytes() + " bytes remaining");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Exception replaying metrics to " + graphiteServerHostAndPort, e);
+            releaseGraphiteConnection();
+            sendFailedInCollect = true;
         }
-        if (socket != null) {
+    }
+
+    private void releaseGraphiteConnection() {
+        if (channel != null) {
             try {
-                socket.close();
+                channel.close();
             } catch (IOException e) {
-                logger.log(Level.WARNING, "Exception closing socket " + socket, e);
+                logger.log(Level.WARNING, "Exception closing channel " + channel, e);
             }
-            socket = null;
+            channel = null;
         }
     }
 
     private void ensureGraphiteConnection() throws IOException {
-        boolean socketIsValid;
+        boolean channelIsValid;
         try {
-            socketIsValid = socket != null &&
-                    socket.isConnected()
-                    && socket.isBound()
-                    && !socket.isClosed()
-                    && !socket.isInputShutdown()
-                    && !socket.isOutputShutdown();
+            channelIsValid = channel != null &&
+                    channel.isOpen()
+                    && channel.isConnected()
+                    && !channel.socket().isOutputShutdown();
         } catch (Exception e) {
-            socketIsValid = false;
+            channelIsValid = false;
         }
-        if (!socketIsValid) {
-            writer = null;
+        if (!channelIsValid) {
+            releaseGraphiteConnection();
             try {
-                socket = new Socket();
-                socket.setKeepAlive(true);
-                socket.connect(
+                channel = SocketChannel.open();
+                channel.socket().setKeepAlive(true);
+                channel.socket().connect(
                         new InetSocketAddress(graphiteServerHostAndPort.getHost(), graphiteServerHostAndPort.getPort()),
                         socketConnectTimeoutInMillis);
             } catch (IOException e) {
+                releaseGraphiteConnection();
                 ConnectException ce = new ConnectException("Exception connecting to " + graphiteServerHostAndPort);
                 ce.initCause(e);
                 throw ce;
             }
         }
-        if (writer == null) {
-            writer = new OutputStreamWriter(socket.getOutputStream(), UTF_8);
-        }
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+        super.preCollect();
+        sendFailedInCollect = false;
     }
 
     @Override
     public void postCollect() throws IOException {
-        if (writer == null) {
-            return;
+        send();
+        if (replayBuffer != null) {
+            long now = System.currentTimeMillis();
+            long elapsedInMillis = lastPostCollectInMillis == 0 ? 0 : now - lastPostCollectInMillis;
+            lastPostCollectInMillis = now;
+            if (!sendFailedInCollect && !replayBuffer.isEmpty()) {
+                replay(elapsedInMillis);
+            }
+        }
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        releaseGraphiteConnection();
+        if (replayBuffer != null) {
+            replayBuffer.close();
         }
+    }
 
-        writer.flush();
+    /**
+     * @return the number of bytes of metrics waiting to be replayed, {@code 0} if there is no replay buffer
+     */
+    public long getReplayBufferSizeInBytes() {
+        return replayBuffer == null ? 0 : replayBuffer.getSizeInBytes();
     }
 
     @Override
     public String toString() {
         return "GraphitePlainTextTcpOutputWriter{" +
-                ", " + graphiteServerHostAndPort +
+                graphiteServerHostAndPort +
                 ", metricPathPrefix='" + metricPathPrefix + '\'' +
                 '}';
     }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.CachingReference;
+import org.jmxtrans.agent.util.net.HostAndPort;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static org.jmxtrans.agent.util.ConfigurationUtils.getInt;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
+
+/**
+ * Output to the Graphite Carbon plain text protocol on UDP, fire and forget.
+ *
+ * The metrics are packed in as few datagrams as possible, each datagram holding whole lines and fitting in the
+ * {@value #SETTING_MTU} minus the IPv6 and UDP headers to prevent IP fragmentation. The datagrams are encoded in
+ * preallocated buffers and sent on a single {@link DatagramChannel} in {@link #postCollect()}.
+ */
+public class GraphitePlainTextUdpOutputWriter extends AbstractOutputWriter implements NumericOutputWriter, BatchOutputWriter {
+
+    public final static String SETTING_HOST = "host";
+    public final static String SETTING_PORT = "port";
+    public static final int SETTING_PORT_DEFAULT_VALUE = 2003;
+    public final static String SETTING_NAME_PREFIX = "namePrefix";
+    public final static String SETTING_MTU = "mtu";
+    public final static int SETTING_MTU_DEFAULT_VALUE = 1500;
+
+    /**
+     * IPv6 (40 bytes) and UDP (8 bytes) headers, larger than the IPv4 ones
+     */
+    final static int IP_AND_UDP_HEADERS_SIZE_IN_BYTES = 48;
+
+    /**
+     * Number of pending bytes beyond which the datagrams are sent without waiting for {@link #postCollect()}
+     */
+    private final static int MAX_PENDING_BYTES = 64 * 1024;
+
+    protected String metricPathPrefix;
+    protected HostAndPort graphiteServerHostAndPort;
+    /**
+     * Using a {@link CachingReference} instead of a raw {@link InetSocketAddress} allows to handle a change
+     */
+    private CachingReference<InetSocketAddress> addressReference;
+    private DatagramChannel channel;
+    private GraphitePlainTextEncoder encoder;
+    private int mtu = SETTING_MTU_DEFAULT_VALUE;
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+
+        graphiteServerHostAndPort = new HostAndPort(
+                getString(settings, SETTING_HOST),
+                getInt(settings, SETTING_PORT, SETTING_PORT_DEFAULT_VALUE));
+        metricPathPrefix = getString(settings, SETTING_NAME_PREFIX, null);
+        mtu = getInt(settings, SETTING_MTU, SETTING_MTU_DEFAULT_VALUE);
+        if (mtu <= IP_AND_UDP_HEADERS_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("Invalid " + SETTING_MTU + " " + mtu + ", must be greater than " + IP_AND_UDP_HEADERS_SIZE_IN_BYTES);
+        }
+        encoder = new GraphitePlainTextEncoder(mtu - IP_AND_UDP_HEADERS_SIZE_IN_BYTES, true);
+
+        addressReference = new CachingReference<InetSocketAddress>(30, TimeUnit.SECONDS) {
+            @Nonnull
+            @Override
+            protected InetSocketAddress newObject() {
+                return new InetSocketAddress(graphiteServerHostAndPort.getHost(), graphiteServerHostAndPort.getPort());
+            }
+        };
+        try {
+            channel = DatagramChannel.open();
+        } catch (IOException e) {
+            throw new RuntimeException("Exception opening datagram channel", e);
+        }
+
+        logger.log(getInfoLevel(), "GraphitePlainTextUdpOutputWriter is configured with " + graphiteServerHostAndPort + ", metricPathPrefix=" + metricPathPrefix +
+                ", mtu=" + mtu);
+    }
+
+    /**
+     * @see GraphiteOutputWriters#buildMetricPathPrefix(String)
+     */
+    protected String buildMetricPathPrefix() {
+        if (metricPathPrefix == null) {
+            metricPathPrefix = GraphiteOutputWriters.buildMetricPathPrefix(null);
+        }
+        return metricPathPrefix;
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        writeQueryResult(invocationName, null, value);
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String type, @Nullable Object value) throws IOException {
+        encoder.setTimestampInSeconds(getTimestampInSeconds());
+        encoder.add(buildMetricPathPrefix(), metricName, value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        encoder.setTimestampInSeconds(getTimestampInSeconds());
+        encoder.add(buildMetricPathPrefix(), metricName, value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        encoder.setTimestampInSeconds(getTimestampInSeconds());
+        encoder.add(buildMetricPathPrefix(), metricName, value);
+        sendIfFull();
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        String metricPathPrefix = buildMetricPathPrefix();
+        CollectCycle cycle = batch.getCycle();
+        if (cycle != null) {
+            encoder.setTimestampInSeconds(cycle.getTimestampInSeconds());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (cycle == null) {
+                encoder.setTimestampInSeconds(TimeUnit.SECONDS.convert(batch.getTimestampInMillis(i), TimeUnit.MILLISECONDS));
+            }
+            switch (batch.getValueType(i)) {
+                case MetricBatch.LONG_VALUE:
+                    encoder.add(metricPathPrefix, batch.getName(i), batch.getLongValue(i));
+                    break;
+                case MetricBatch.DOUBLE_VALUE:
+                    encoder.add(metricPathPrefix, batch.getName(i), batch.getDoubleValue(i));
+                    break;
+                default:
+                    encoder.add(metricPathPrefix, batch.getName(i), batch.getObjectValue(i));
+            }
+            sendIfFull();
+        }
+    }
+
+    private long getTimestampInSeconds() {
+        CollectCycle cycle = getCollectCycle();
+        if (cycle == null) {
+            return TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        return cycle.getTimestampInSeconds();
+    }
+
+    private void sendIfFull() throws IOException {
+        if (encoder.sizeInBytes() >= MAX_PENDING_BYTES) {
+            send();
+        }
+    }
+
+    /**
+     * Send the pending metrics, they are discarded if the send fails.
+     */
+    private void send() throws IOException {
+        int size = encoder.size();
+        if (size == 0) {
+            return;
+        }
+        InetSocketAddress address = addressReference.get();
+        try {
+            if (address.isUnresolved()) {
+                throw new UnknownHostException("Unknown host " + graphiteServerHostAndPort.getHost());
+            }
+            int datagrams = encoder.writeTo(channel, address);
+            if (logger.isLoggable(getTraceLevel())) {
+                logger.log(getTraceLevel(), "Sent " + size + " metrics in " + datagrams + " datagrams to " + address);
+            }
+        } catch (IOException e) {
+            addressReference.purge();
+            logger.log(Level.WARNING, "Exception sending " + size + " metrics to " + address, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        send();
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Exception closing datagram channel", e);
+        }
+    }
+
+    /**
+     * @return the number of metrics dropped because their line does not fit in a datagram
+     */
+    public long getDroppedMetricsCount() {
+        return encoder.getDroppedLinesCount();
+    }
+
+    @Override
+    public String toString() {
+        return "GraphitePlainTextUdpOutputWriter{" +
+                graphiteServerHostAndPort +
+                ", metricPathPrefix='" + metricPathPrefix + '\'' +
+                ", mtu=" + mtu +
+                '}';
+    }
+}
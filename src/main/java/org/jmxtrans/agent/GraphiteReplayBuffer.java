@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.logging.Level;
+
+/**
+ * Bounded buffer of Graphite plain text lines that could not be sent, to replay them once Carbon is reachable again.
+ *
+ * The lines are kept in memory up to a byte cap; beyond it, the oldest lines are spilled to a local file if one is
+ * defined (up to its own cap) or dropped. The spilled lines, older than the ones in memory, are replayed first. A
+ * spill file left by a previous run is replayed too.
+ *
+ * Lines may be replayed more than once if a connection breaks during a replay, which is harmless for Carbon
+ * (same value at the same timestamp).
+ *
+ * Not thread safe.
+ */
+class GraphiteReplayBuffer {
+
+    private final static int FILE_READ_BUFFER_SIZE_IN_BYTES = 64 * 1024;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final long maxMemorySizeInBytes;
+    private final Deque<byte[]> segments = new ArrayDeque<byte[]>();
+    private long memorySizeInBytes;
+
+    @Nullable
+    private final File spillFile;
+    private final long maxSpillFileSizeInBytes;
+    private RandomAccessFile spill;
+    private long spillReadPosition;
+    private ByteBuffer spillReadBuffer;
+    /**
+     * {@code true} while skipping the rest of an invalid line of the spill file
+     */
+    private boolean skippingInvalidLine;
+
+    private long droppedBytesCount;
+
+    /**
+     * @param spillFile file to which the oldest lines are spilled beyond {@code maxMemorySizeInBytes}, {@code null}
+     *                  to drop them
+     */
+    GraphiteReplayBuffer(long maxMemorySizeInBytes, @Nullable File spillFile, long maxSpillFileSizeInBytes) {
+        this.maxMemorySizeInBytes = maxMemorySizeInBytes;
+        this.spillFile = spillFile;
+        this.maxSpillFileSizeInBytes = maxSpillFileSizeInBytes;
+        if (spillFile != null && spillFile.length() > 0) {
+            logger.log(Level.INFO, "Replay " + spillFile.length() + " bytes left in " + spillFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @param lines whole lines
+     */
+    void add(@Nonnull byte[] lines) {
+        segments.addLast(lines);
+        memorySizeInBytes += lines.length;
+        while (memorySizeInBytes > maxMemorySizeInBytes) {
+            byte[] oldest = segments.pollFirst();
+            memorySizeInBytes -= oldest.length;
+            spill(oldest);
+        }
+    }
+
+    private void spill(@Nonnull byte[] lines) {
+        if (spillFile == null) {
+            droppedBytesCount += lines.length;
+            return;
+        }
+        try {
+            RandomAccessFile spill = getSpill();
+            if (spill.length() + lines.length > maxSpillFileSizeInBytes) {
+                droppedBytesCount += lines.length;
+                return;
+            }
+            spill.seek(spill.length());
+            spill.write(lines);
+        } catch (IOException e) {
+            droppedBytesCount += lines.length;
+            logger.log(Level.WARNING, "Exception spilling " + lines.length + " bytes to " + spillFile.getAbsolutePath(), e);
+        }
+    }
+
+    @Nonnull
+    private RandomAccessFile getSpill() throws IOException {
+        if (spill == null) {
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        return spill;
+    }
+
+    boolean isEmpty() {
+        return segments.isEmpty() && getSpillSizeInBytes() == 0;
+    }
+
+    /**
+     * @return the number of bytes waiting to be replayed, in memory and in the spill file
+     */
+    long getSizeInBytes() {
+        return memorySizeInBytes + getSpillSizeInBytes();
+    }
+
+    private long getSpillSizeInBytes() {
+        if (spillFile == null) {
+            return 0;
+        }
+        return (spill == null ? spillFile.length() : spillFileLength()) - spillReadPosition;
+    }
+
+    private long spillFileLength() {
+        try {
+            return spill.length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    long getDroppedBytesCount() {
+        return droppedBytesCount;
+    }
+
+    /**
+     * Replay whole lines to the given channel, the spilled ones first, stopping once {@code maxBytes} are written
+     * (at least one segment of lines is replayed). Lines are removed from the buffer once written; on exception, the
+     * lines being written remain in the buffer.
+     *
+     * @return the number of bytes replayed
+     */
+    long replay(@Nonnull WritableByteChannel channel, long maxBytes) throws IOException {
+        long replayed = replaySpill(channel, maxBytes);
+        while (!segments.isEmpty() && (replayed == 0 || replayed < maxBytes)) {
+            byte[] lines = segments.peekFirst();
+            ByteBuffer buffer = ByteBuffer.wrap(lines);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            segments.pollFirst();
+            memorySizeInBytes -= lines.length;
+            replayed += lines.length;
+        }
+        return replayed;
+    }
+
+    private long replaySpill(@Nonnull WritableByteChannel channel, long maxBytes) throws IOException {
+        if (getSpillSizeInBytes() <= 0) {
+            return 0;
+        }
+        if (spillReadBuffer == null) {
+            spillReadBuffer = ByteBuffer.allocate(FILE_READ_BUFFER_SIZE_IN_BYTES);
+        }
+        FileChannel file = getSpill().getChannel();
+        long replayed = 0;
+        while (replayed < maxBytes && spillReadPosition < file.size()) {
+            spillReadBuffer.clear();
+            int read = file.read(spillReadBuffer, spillReadPosition);
+            if (read <= 0) {
+                break;
+            }
+            if (skippingInvalidLine) {
+                int newline = indexOfNewLine(spillReadBuffer, read);
+                if (newline < 0) {
+                    spillReadPosition += read;
+                } else {
+                    spillReadPosition += newline + 1;
+                    skippingInvalidLine = false;
+                }
+                continue;
+            }
+            // whole lines only
+            int end = spillReadBuffer.position();
+            while (end > 0 && spillReadBuffer.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                // line longer than the read buffer or truncated last line, not sent to Carbon
+                logger.log(Level.WARNING, "Skip invalid content of " + spillFile.getAbsolutePath() + " at " + spillReadPosition);
+                spillReadPosition += read;
+                skippingInvalidLine = true;
+                continue;
+            }
+            spillReadBuffer.flip();
+            spillReadBuffer.limit(end);
+            while (spillReadBuffer.hasRemaining()) {
+                channel.write(spillReadBuffer);
+            }
+            spillReadPosition += end;
+            replayed += end;
+        }
+        if (spillReadPosition >= file.size()) {
+            file.truncate(0);
+            spillReadPosition = 0;
+            skippingInvalidLine = false;
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the index of the first {@code '\n'} in the {@code length} first bytes of the buffer, {@code -1} if none
+     */
+    private static int indexOfNewLine(@Nonnull ByteBuffer buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Spill the lines kept in memory, if a spill file is defined, to replay them on the next run, then close the file.
+     */
+    void close() {
+        if (spillFile != null) {
+            while (!segments.isEmpty()) {
+                byte[] lines = segments.pollFirst();
+                memorySizeInBytes -= lines.length;
+                spill(lines);
+            }
+        }
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception closing " + spillFile.getAbsolutePath(), e);
+            }
+            spill = null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Records the duration, the number of collected MBeans, the number of written values and the exceptions of the
+ * collections of a {@link Collectable} in its {@link ExporterStatistics.CollectableStatistics}. The exceptions logged
+ * and ignored by a {@link ReportingCollectable} are counted too.
+ */
+public class InstrumentedCollectable implements Collectable {
+
+    @Nonnull
+    private final Collectable delegate;
+    @Nonnull
+    private final ExporterStatistics.CollectableStatistics statistics;
+
+    public InstrumentedCollectable(@Nonnull Collectable delegate, @Nonnull ExporterStatistics.CollectableStatistics statistics) {
+        this.delegate = delegate;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) throws Exception {
+        long startInNanos = System.nanoTime();
+        CountingOutputWriter countingOutputWriter = new CountingOutputWriter(outputWriter);
+        ReportingCollectable.CollectReport report = null;
+        try {
+            if (delegate instanceof ReportingCollectable) {
+                report = new ReportingCollectable.CollectReport();
+                ((ReportingCollectable) delegate).collectAndExport(mbeanIndex, countingOutputWriter, report);
+            } else {
+                delegate.collectAndExport(mbeanIndex, countingOutputWriter);
+            }
+        } catch (Exception e) {
+            statistics.incrementExceptions();
+            throw e;
+        } finally {
+            int objectNamesCount;
+            if (report != null) {
+                statistics.incrementExceptions(report.getExceptionsCount());
+                objectNamesCount = report.getObjectNamesCount();
+            } else {
+                // only count the matched MBeans if it's cheap
+                objectNamesCount = mbeanIndex.isStarted() ? mbeanIndex.queryNames(delegate.getObjectName()).size() : 0;
+            }
+            statistics.record(System.nanoTime() - startInNanos, countingOutputWriter.count, objectNamesCount);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Long getCollectTimeoutInMillis() {
+        return delegate.getCollectTimeoutInMillis();
+    }
+
+    @Nullable
+    @Override
+    public ObjectName getObjectName() {
+        return delegate.getObjectName();
+    }
+
+    @Nonnull
+    public Collectable getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private static class CountingOutputWriter implements NumericOutputWriter {
+        final OutputWriter delegate;
+        int count;
+
+        CountingOutputWriter(OutputWriter delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void postConstruct(@Nonnull Map<String, String> settings) {
+            delegate.postConstruct(settings);
+        }
+
+        @Override
+        public void preDestroy() {
+            delegate.preDestroy();
+        }
+
+        @Override
+        public void preCollect() throws IOException {
+            delegate.preCollect();
+        }
+
+        @Override
+        public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+            count++;
+            delegate.writeQueryResult(metricName, metricType, value);
+        }
+
+        @Override
+        public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+            count++;
+            OutputWriters.writeLongQueryResult(delegate, metricName, metricType, value);
+        }
+
+        @Override
+        public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+            count++;
+            OutputWriters.writeDoubleQueryResult(delegate, metricName, metricType, value);
+        }
+
+        @Override
+        public void postCollect() throws IOException {
+            delegate.postCollect();
+        }
+
+        @Override
+        public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+            count++;
+            delegate.writeInvocationResult(invocationName, value);
+        }
+    }
+}
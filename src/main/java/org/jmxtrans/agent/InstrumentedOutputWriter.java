@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.Histogram;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Records the latency of the calls to the {@link #delegate} in microseconds, a {@link MetricBatch} counts as one call.
+ */
+public class InstrumentedOutputWriter implements NumericOutputWriter, BatchOutputWriter, CycleAwareOutputWriter {
+
+    @Nonnull
+    protected final OutputWriter delegate;
+    @Nonnull
+    private final Histogram latency;
+
+    public InstrumentedOutputWriter(@Nonnull OutputWriter delegate, @Nonnull Histogram latency) {
+        this.delegate = delegate;
+        this.latency = latency;
+    }
+
+    @Override
+    public void postConstruct(@Nonnull Map<String, String> settings) {
+        delegate.postConstruct(settings);
+    }
+
+    @Override
+    public void preDestroy() {
+        delegate.preDestroy();
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            delegate.preCollect();
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            OutputWriters.preCollect(delegate, cycle);
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            delegate.writeQueryResult(metricName, metricType, value);
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            OutputWriters.writeLongQueryResult(delegate, metricName, metricType, value);
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            OutputWriters.writeDoubleQueryResult(delegate, metricName, metricType, value);
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            OutputWriters.writeBatch(delegate, batch);
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            delegate.writeInvocationResult(invocationName, value);
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        long startInNanos = System.nanoTime();
+        try {
+            delegate.postCollect();
+        } finally {
+            latency.record((System.nanoTime() - startInNanos) / 1000);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentedOutputWriter{" +
+                "delegate=" + delegate +
+                '}';
+    }
+}
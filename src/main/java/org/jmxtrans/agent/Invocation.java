@@ -38,7 +38,7 @@ import java.util.logging.Level;
 /**
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class Invocation {
+public class Invocation implements Collectable {
 
     @Nullable
     protected final ObjectName objectName;
@@ -50,6 +50,27 @@ public class Invocation {
     protected final Object[] params;
     @Nonnull
     protected final String[] signature;
+    /**
+     * Maximum duration of the invocation, {@code null} if not limited.
+     *
+     * @see ParallelCollector
+     */
+    @Nullable
+    private Long collectTimeoutInMillis;
+    /**
+     * Interval of the invocation, {@code null} to use the interval of the {@link JmxTransExporter}.
+     */
+    @Nullable
+    private Integer collectIntervalInSeconds;
+    /**
+     * Invoke on a separate executor and write the results of the last successful invocation, see {@link AsyncInvocation}.
+     */
+    private boolean async;
+    /**
+     * Minimum interval between two {@link #async} invocations, {@code null} to invoke each time the invocation is collected.
+     */
+    @Nullable
+    private Integer minInvokeIntervalInSeconds;
     private final Logger logger = Logger.getLogger(getClass().getName());
 
     public Invocation(@Nullable String objectName, @Nonnull String operationName, @Nonnull Object[] params, @Nonnull String[] signature, @Nullable String resultAlias) {
@@ -64,16 +85,93 @@ public class Invocation {
         this.resultAlias = resultAlias;
     }
 
-    public void invoke(MBeanServer mbeanServer, OutputWriter outputWriter) {
-        Set<ObjectName> objectNames = mbeanServer.queryNames(objectName, null);
+    @Nonnull
+    public Invocation withCollectTimeoutInMillis(@Nullable Long collectTimeoutInMillis) {
+        this.collectTimeoutInMillis = collectTimeoutInMillis;
+        return this;
+    }
+
+    @Nonnull
+    public Invocation withCollectIntervalInSeconds(@Nullable Integer collectIntervalInSeconds) {
+        if (collectIntervalInSeconds != null && collectIntervalInSeconds < 1)
+            throw new IllegalArgumentException("Invalid collectIntervalInSeconds " + collectIntervalInSeconds + ", must be greater than 0");
+        this.collectIntervalInSeconds = collectIntervalInSeconds;
+        return this;
+    }
+
+    @Nonnull
+    public Invocation withAsync(boolean async) {
+        this.async = async;
+        return this;
+    }
+
+    @Nonnull
+    public Invocation withMinInvokeIntervalInSeconds(@Nullable Integer minInvokeIntervalInSeconds) {
+        if (minInvokeIntervalInSeconds != null && minInvokeIntervalInSeconds < 1)
+            throw new IllegalArgumentException("Invalid minInvokeIntervalInSeconds " + minInvokeIntervalInSeconds + ", must be greater than 0");
+        this.minInvokeIntervalInSeconds = minInvokeIntervalInSeconds;
+        return this;
+    }
+
+    public boolean invoke(MBeanServer mbeanServer, OutputWriter outputWriter) {
+        return invoke(new MBeanIndex(mbeanServer), outputWriter);
+    }
+
+    /**
+     * Invoke the operation on the matching MBeans, the exceptions are logged.
+     *
+     * @return {@code true} if no invocation failed
+     */
+    public boolean invoke(MBeanIndex mbeanIndex, OutputWriter outputWriter) {
+        MBeanServer mbeanServer = mbeanIndex.getMBeanServer();
+        Set<ObjectName> objectNames = mbeanIndex.queryNames(objectName);
+        boolean succeeded = true;
         for (ObjectName on : objectNames) {
             try {
                 Object result = mbeanServer.invoke(on, operationName, params, signature);
                 outputWriter.writeInvocationResult(resultAlias, result);
             } catch (Exception e) {
+                succeeded = false;
                 logger.log(Level.WARNING, "Exception invoking " + on + "#" + operationName + "(" + Arrays.toString(params) + ")", e);
             }
         }
+        return succeeded;
+    }
+
+    @Override
+    public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) {
+        invoke(mbeanIndex, outputWriter);
+    }
+
+    @Nullable
+    @Override
+    public Long getCollectTimeoutInMillis() {
+        return collectTimeoutInMillis;
+    }
+
+    @Nullable
+    @Override
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Nonnull
+    public String getOperationName() {
+        return operationName;
+    }
+
+    @Nullable
+    public Integer getCollectIntervalInSeconds() {
+        return collectIntervalInSeconds;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    @Nullable
+    public Integer getMinInvokeIntervalInSeconds() {
+        return minInvokeIntervalInSeconds;
     }
 
     @Override
@@ -84,6 +182,10 @@ public class Invocation {
                 ", resultAlias='" + resultAlias + '\'' +
                 ", params=" + Arrays.toString(params) +
                 ", signature=" + Arrays.toString(signature) +
+                (collectTimeoutInMillis == null ? "" : ", collectTimeoutInMillis=" + collectTimeoutInMillis) +
+                (collectIntervalInSeconds == null ? "" : ", collectIntervalInSeconds=" + collectIntervalInSeconds) +
+                (async ? ", async=true" : "") +
+                (minInvokeIntervalInSeconds == null ? "" : ", minInvokeIntervalInSeconds=" + minInvokeIntervalInSeconds) +
                 '}';
     }
 }
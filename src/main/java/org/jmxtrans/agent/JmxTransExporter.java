@@ -23,14 +23,20 @@
  */
 package org.jmxtrans.agent;
 
+import org.jmxtrans.agent.util.TimingWheel;
 import org.jmxtrans.agent.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -51,25 +57,147 @@ public class JmxTransExporter {
      * visible for test
      */
     protected OutputWriter outputWriter = new DevNullOutputWriter();
+    /**
+     * Size of the {@link #timingWheel}
+     */
+    private final static int TIMING_WHEEL_SIZE = 64;
+    /**
+     * Minimum interval between the collections of the shards spread over their collect interval
+     */
+    private final static long MIN_SPREAD_SLOT_IN_MILLIS = 100;
+    /**
+     * {@link #queries} and {@link #invocations} grouped by collect interval, lazily (re)built after they change.
+     */
+    private List<CollectionBucket> collectionBuckets;
+    /**
+     * Schedule of the {@link #collectionBuckets}, advanced every {@link #tickInMillis}.
+     */
+    private TimingWheel<CollectionBucket> timingWheel;
+    /**
+     * Greatest common divisor of the collect intervals.
+     */
+    private long tickInMillis;
+    /**
+     * Time of the tick {@code 0} (see {@link System#currentTimeMillis()}).
+     */
+    private long tickOriginInMillis;
+    /**
+     * Next tick to collect, only accessed by the scheduler thread once started.
+     */
+    private long nextTick;
+    /**
+     * Last tick at which buckets have been collected, only accessed by the scheduler thread once started.
+     */
+    private long lastCollectTick;
 
     protected ResultNameStrategy resultNameStrategy;
     protected int collectInterval = 10;
     protected TimeUnit collectIntervalTimeUnit = TimeUnit.SECONDS;
+    /**
+     * Interval of the re-synchronization of the {@link #mbeanIndex} with the {@link MBeanServer}, {@code 0} to disable.
+     */
+    protected int mbeanIndexRefreshInterval = 10;
+    protected TimeUnit mbeanIndexRefreshIntervalTimeUnit = TimeUnit.MINUTES;
+    /**
+     * Time to live of the attribute names cached by the {@link #mbeanIndex}, {@code 0} if they never expire.
+     */
+    protected int mbeanInfoCacheTimeToLive = 0;
+    protected TimeUnit mbeanInfoCacheTimeToLiveTimeUnit = TimeUnit.SECONDS;
+    /**
+     * Number of threads collecting the queries, {@code 1} to collect on the scheduler thread.
+     */
+    protected int collectParallelism = 1;
+    /**
+     * Time budget of a collection cycle, {@code null} if not limited.
+     */
+    protected Long collectTimeoutInMillis;
+    /**
+     * Collect at the multiples of the collect interval since the epoch (e.g. at 00:00:10, 00:00:20, ... for a 10 seconds
+     * interval) rather than relatively to the start of the exporter.
+     */
+    protected boolean collectAlignedOnWallClock = false;
+    /**
+     * Maximum offset of the collections, the actual offset is derived from the name of the JVM (pid and hostname)
+     * to spread the collections of a fleet of JVMs. {@code 0} to disable.
+     */
+    protected int collectSplay = 0;
+    protected TimeUnit collectSplayTimeUnit = TimeUnit.SECONDS;
+    /**
+     * Capacity of the queue between the collection and the {@link #outputWriter}, {@code 0} to write on the
+     * collecting thread.
+     */
+    protected int exportQueueCapacity = 0;
+    protected MetricRingBuffer.OverflowPolicy exportQueueOverflowPolicy = MetricRingBuffer.OverflowPolicy.DROP_OLDEST;
+    protected long exportQueueBlockTimeoutInMillis = 1000;
+    /**
+     * Also write the {@link ExporterStatistics self-instrumentation metrics} to the {@link #outputWriter} at the end
+     * of each collection.
+     */
+    protected boolean selfInstrumentationExported = false;
+    /**
+     * Spread the shards of the {@link Query#getCollectShards() sharded queries} over their collect interval rather
+     * than collecting all of them at the same time.
+     */
+    protected boolean collectShardsSpread = false;
+    /**
+     * CPU budget of the collections in percent of one core, {@code null} to disable the adaptive collection
+     * (see {@link CollectThrottle}).
+     */
+    protected Double collectCpuBudgetInPercent;
+    /**
+     * Maximum ratio between the actual and the configured collect interval when the {@link #collectCpuBudgetInPercent}
+     * is exceeded.
+     */
+    protected int collectMaxStretchFactor = 8;
     private final Logger logger = Logger.getLogger(getClass().getName());
-    private ThreadFactory threadFactory = new ThreadFactory() {
-        final AtomicInteger counter = new AtomicInteger();
-
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread thread = Executors.defaultThreadFactory().newThread(r);
-            thread.setDaemon(true);
-            thread.setName("jmxtrans-agent-" + counter.incrementAndGet());
-            return thread;
-        }
-    };
+    private ThreadFactory threadFactory = newDaemonThreadFactory("jmxtrans-agent-");
     private ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1, threadFactory);
+    /**
+     * Runs the {@link Invocation#isAsync() asynchronous invocations}, threads are only created when needed.
+     */
+    private ExecutorService asyncInvocationExecutorService = Executors.newCachedThreadPool(newDaemonThreadFactory("jmxtrans-agent-invoker-"));
     private MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
-    private ScheduledFuture scheduledFuture;
+    private MBeanIndex mbeanIndex = new MBeanIndex(mbeanServer);
+    /**
+     * Workers collecting the queries and invocations, {@code null} if {@link #collectParallelism} is {@code 1} and no
+     * collect timeout is defined.
+     */
+    private ParallelCollector parallelCollector;
+    /**
+     * Writes to the {@link #outputWriter} on a dedicated thread, {@code null} if {@link #exportQueueCapacity} is {@code 0}.
+     */
+    private AsyncOutputWriter asyncOutputWriter;
+    /**
+     * {@link #outputWriter} recording the latency of each output writer in the {@link #statistics}, {@code null}
+     * until started.
+     */
+    private OutputWriter instrumentedOutputWriter;
+    private final ExporterStatistics statistics = new ExporterStatistics();
+    /**
+     * {@code null} if {@link #collectCpuBudgetInPercent} is not defined.
+     */
+    private CollectThrottle collectThrottle;
+    /**
+     * Results of the current collection, only used by the collecting thread and reused from one collection to the next
+     */
+    private final MetricBatch metricBatch = new MetricBatch(256);
+    /**
+     * Guarded by {@code this}
+     */
+    private ScheduledFuture<?> scheduledFuture;
+    /**
+     * {@code false} once stopped, guarded by {@code this}
+     */
+    private boolean collectScheduled;
+    /**
+     * Refreshes the {@link #mbeanIndex} on its own thread to not delay the collections, {@code null} if the index is
+     * not refreshed.
+     */
+    private ScheduledExecutorService mbeanIndexRefreshExecutorService;
+    /**
+     * Id of the last {@link CollectCycle}, only used by the collecting thread
+     */
+    private long collectCycleId;
 
     public JmxTransExporter withQuery(@Nonnull String objectName, @Nonnull String attribute, @Nullable String resultAlias) {
         return withQuery(objectName, attribute, null, null, null, resultAlias);
@@ -78,11 +206,22 @@ public class JmxTransExporter {
     public JmxTransExporter withQuery(@Nonnull String objectName, @Nonnull String attribute, @Nullable String key,
                                       @Nullable Integer position, @Nullable String type, @Nullable String resultAlias) {
         Query query = new Query(objectName, attribute, key, position, type, resultAlias, this.resultNameStrategy);
+        return withQuery(query);
+    }
+
+    public JmxTransExporter withQuery(@Nonnull Query query) {
         queries.add(query);
+        collectionBuckets = null;
         return this;
     }
+
     public JmxTransExporter withInvocation(@Nonnull String objectName, @Nonnull String operation, @Nullable String resultAlias) {
-        invocations.add(new Invocation(objectName, operation, new Object[0], new String[0], resultAlias));
+        return withInvocation(new Invocation(objectName, operation, new Object[0], new String[0], resultAlias));
+    }
+
+    public JmxTransExporter withInvocation(@Nonnull Invocation invocation) {
+        invocations.add(invocation);
+        collectionBuckets = null;
         return this;
     }
     public JmxTransExporter withOutputWriter(OutputWriter outputWriter) {
@@ -93,6 +232,110 @@ public class JmxTransExporter {
     public JmxTransExporter withCollectInterval(int collectInterval, @Nonnull TimeUnit collectIntervalTimeUnit) {
         this.collectInterval = collectInterval;
         this.collectIntervalTimeUnit = collectIntervalTimeUnit;
+        collectionBuckets = null;
+        return this;
+    }
+
+    public JmxTransExporter withMBeanIndexRefreshInterval(int mbeanIndexRefreshInterval, @Nonnull TimeUnit mbeanIndexRefreshIntervalTimeUnit) {
+        this.mbeanIndexRefreshInterval = mbeanIndexRefreshInterval;
+        this.mbeanIndexRefreshIntervalTimeUnit = mbeanIndexRefreshIntervalTimeUnit;
+        return this;
+    }
+
+    public JmxTransExporter withMBeanInfoCacheTimeToLive(int mbeanInfoCacheTimeToLive, @Nonnull TimeUnit mbeanInfoCacheTimeToLiveTimeUnit) {
+        this.mbeanInfoCacheTimeToLive = mbeanInfoCacheTimeToLive;
+        this.mbeanInfoCacheTimeToLiveTimeUnit = mbeanInfoCacheTimeToLiveTimeUnit;
+        return this;
+    }
+
+    /**
+     * @param collectParallelism number of threads collecting the queries, {@code 1} to collect on the scheduler thread.
+     *                           Results are anyway written to the {@link OutputWriter} by the scheduler thread.
+     */
+    public JmxTransExporter withCollectParallelism(int collectParallelism) {
+        if (collectParallelism < 1)
+            throw new IllegalArgumentException("Invalid collectParallelism " + collectParallelism + ", must be greater than 0");
+        this.collectParallelism = collectParallelism;
+        return this;
+    }
+
+    /**
+     * @param collectTimeoutInMillis time budget of a collection cycle, {@code null} if not limited. Queries and
+     *                               invocations still running at the end of the cycle are abandoned.
+     */
+    public JmxTransExporter withCollectTimeout(@Nullable Long collectTimeoutInMillis) {
+        if (collectTimeoutInMillis != null && collectTimeoutInMillis < 1)
+            throw new IllegalArgumentException("Invalid collectTimeoutInMillis " + collectTimeoutInMillis + ", must be greater than 0");
+        this.collectTimeoutInMillis = collectTimeoutInMillis;
+        return this;
+    }
+
+    /**
+     * @param collectAlignedOnWallClock collect at the multiples of the collect interval since the epoch
+     */
+    public JmxTransExporter withCollectAlignedOnWallClock(boolean collectAlignedOnWallClock) {
+        this.collectAlignedOnWallClock = collectAlignedOnWallClock;
+        return this;
+    }
+
+    /**
+     * @param collectSplay maximum offset of the collections, the offset of this JVM is derived from its pid and hostname
+     */
+    public JmxTransExporter withCollectSplay(int collectSplay, @Nonnull TimeUnit collectSplayTimeUnit) {
+        if (collectSplay < 0)
+            throw new IllegalArgumentException("Invalid collectSplay " + collectSplay + ", must be positive");
+        this.collectSplay = collectSplay;
+        this.collectSplayTimeUnit = collectSplayTimeUnit;
+        return this;
+    }
+
+    /**
+     * @param capacity                 maximum number of results waiting to be written to the {@link OutputWriter}
+     *                                 by the writer thread, {@code 0} to write on the collecting thread.
+     * @param overflowPolicy           behavior when the queue is full
+     * @param blockTimeoutInMillis     maximum wait of the collecting thread with {@link MetricRingBuffer.OverflowPolicy#BLOCK}
+     */
+    public JmxTransExporter withExportQueue(int capacity, @Nonnull MetricRingBuffer.OverflowPolicy overflowPolicy, long blockTimeoutInMillis) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Invalid export queue capacity " + capacity + ", must be positive");
+        this.exportQueueCapacity = capacity;
+        this.exportQueueOverflowPolicy = overflowPolicy;
+        this.exportQueueBlockTimeoutInMillis = blockTimeoutInMillis;
+        return this;
+    }
+
+    /**
+     * @param selfInstrumentationExported write the self-instrumentation metrics (see {@link ExporterStatisticsMXBean})
+     *                                    to the output writers at the end of each collection
+     */
+    public JmxTransExporter withSelfInstrumentationExported(boolean selfInstrumentationExported) {
+        this.selfInstrumentationExported = selfInstrumentationExported;
+        return this;
+    }
+
+    /**
+     * @param collectShardsSpread collect each shard of the sharded queries at a different time of their collect
+     *                            interval to spread the load over the interval
+     */
+    public JmxTransExporter withCollectShardsSpread(boolean collectShardsSpread) {
+        this.collectShardsSpread = collectShardsSpread;
+        collectionBuckets = null;
+        return this;
+    }
+
+    /**
+     * @param cpuBudgetInPercent CPU budget of the collections in percent of one core (e.g. {@code 1} for 1% of a core),
+     *                           {@code null} to disable. When exceeded, the low priority queries are shed then the
+     *                           collect interval is stretched, see {@link CollectThrottle}.
+     * @param maxStretchFactor   maximum ratio between the actual and the configured collect interval
+     */
+    public JmxTransExporter withCollectCpuBudget(@Nullable Double cpuBudgetInPercent, int maxStretchFactor) {
+        if (cpuBudgetInPercent != null && !(cpuBudgetInPercent > 0))
+            throw new IllegalArgumentException("Invalid cpuBudgetInPercent " + cpuBudgetInPercent + ", must be greater than 0");
+        if (maxStretchFactor < 1)
+            throw new IllegalArgumentException("Invalid maxStretchFactor " + maxStretchFactor + ", must be greater than 0");
+        this.collectCpuBudgetInPercent = cpuBudgetInPercent;
+        this.collectMaxStretchFactor = maxStretchFactor;
         return this;
     }
 
@@ -110,57 +353,548 @@ public class JmxTransExporter {
         if (resultNameStrategy == null)
             throw new IllegalStateException("resultNameStrategy is not defined, jmxTransExporter is not properly initialised");
 
-        scheduledFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-                collectAndExport();
-            }
-        }, collectInterval / 2, collectInterval, collectIntervalTimeUnit);
+        instrumentedOutputWriter = instrumentOutputWriter(outputWriter);
+        if (exportQueueCapacity > 0) {
+            MetricRingBuffer ringBuffer = new MetricRingBuffer(exportQueueCapacity, exportQueueOverflowPolicy, exportQueueBlockTimeoutInMillis);
+            asyncOutputWriter = new AsyncOutputWriter(instrumentedOutputWriter, ringBuffer, newDaemonThreadFactory("jmxtrans-agent-writer-"));
+            asyncOutputWriter.start();
+            statistics.setExportQueue(ringBuffer);
+        }
+        if (collectParallelism > 1 || isCollectTimeoutDefined()) {
+            parallelCollector = new ParallelCollector(collectParallelism, newDaemonThreadFactory("jmxtrans-agent-collector-"));
+            statistics.setParallelCollector(parallelCollector);
+        }
+        if (collectCpuBudgetInPercent != null) {
+            collectThrottle = new CollectThrottle(collectCpuBudgetInPercent, collectMaxStretchFactor);
+            statistics.setCollectThrottle(collectThrottle);
+        }
+        statistics.register(mbeanServer);
+        try {
+            mbeanIndex.setAttributeNamesTimeToLive(mbeanInfoCacheTimeToLive, mbeanInfoCacheTimeToLiveTimeUnit);
+            mbeanIndex.addUnregistrationListener(new MBeanIndex.UnregistrationListener() {
+                @Override
+                public void onUnregistration(@Nonnull ObjectName objectName) {
+                    for (Query query : queries) {
+                        if (query.getObjectName().apply(objectName)) {
+                            query.evictResultNames(objectName);
+                        }
+                    }
+                }
+            });
+            mbeanIndex.start();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Exception starting " + mbeanIndex + ", ObjectNames will be resolved querying the MBeanServer", e);
+        }
+        if (mbeanIndex.isStarted() && mbeanIndexRefreshInterval > 0) {
+            mbeanIndexRefreshExecutorService = Executors.newSingleThreadScheduledExecutor(newDaemonThreadFactory("jmxtrans-agent-mbean-index-"));
+            mbeanIndexRefreshExecutorService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mbeanIndex.refresh();
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Ignore exception refreshing " + mbeanIndex, e);
+                    }
+                }
+            }, mbeanIndexRefreshInterval, mbeanIndexRefreshInterval, mbeanIndexRefreshIntervalTimeUnit);
+        }
+
+        tickInMillis = 0;
+        for (CollectionBucket collectionBucket : getCollectionBuckets()) {
+            tickInMillis = gcd(tickInMillis, collectionBucket.intervalInMillis);
+            tickInMillis = gcd(tickInMillis, collectionBucket.offsetInMillis);
+        }
+        String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+        long splayInMillis = computeSplayInMillis(jvmName, collectSplayTimeUnit.toMillis(collectSplay));
+        long nowInMillis = System.currentTimeMillis();
+        if (collectAlignedOnWallClock) {
+            tickOriginInMillis = splayInMillis;
+            nextTick = floorDiv(nowInMillis - tickOriginInMillis, tickInMillis) + 1;
+        } else {
+            tickOriginInMillis = nowInMillis + collectIntervalTimeUnit.toMillis(collectInterval) / 2 + splayInMillis;
+            nextTick = 0;
+        }
+        lastCollectTick = nextTick - 1;
+        timingWheel = new TimingWheel<CollectionBucket>(TIMING_WHEEL_SIZE, nextTick);
+        for (CollectionBucket collectionBucket : getCollectionBuckets()) {
+            timingWheel.schedule(collectionBucket, collectionBucket.intervalInMillis / tickInMillis, collectionBucket.offsetInMillis / tickInMillis);
+        }
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("Collect " + getCollectionBuckets() + " every " + tickInMillis + "ms" +
+                    (collectAlignedOnWallClock ? " aligned on wall clock" : "") + ", splay of " + jvmName + ": " + splayInMillis + "ms");
+
+        synchronized (this) {
+            collectScheduled = true;
+            scheduleTick(Long.MAX_VALUE);
+        }
 
         logger.fine(getClass().getName() + " started");
     }
 
     public void stop() {
         // cancel jobs
-        if (scheduledFuture != null) {
-            scheduledFuture.cancel(true);
-            scheduledFuture = null;
+        synchronized (this) {
+            collectScheduled = false;
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(true);
+                scheduledFuture = null;
+            }
+        }
+        if (mbeanIndexRefreshExecutorService != null) {
+            mbeanIndexRefreshExecutorService.shutdownNow();
+            mbeanIndexRefreshExecutorService = null;
         }
         scheduledExecutorService.shutdown();
 
-        // one last export
-        collectAndExport();
-
-        // wait for stop
+        // wait for stop, the export queue only supports one producer thread
+        boolean terminated;
         try {
-            scheduledExecutorService.awaitTermination(collectInterval, collectIntervalTimeUnit);
+            terminated = scheduledExecutorService.awaitTermination(collectInterval, collectIntervalTimeUnit);
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
+
+        if (terminated) {
+            // one last export
+            collectAndExport();
+        } else {
+            logger.warning("Skip the last collection, the running collection did not complete within " +
+                    collectInterval + " " + collectIntervalTimeUnit);
+        }
+        asyncInvocationExecutorService.shutdownNow();
+        mbeanIndex.stop();
+        if (parallelCollector != null) {
+            parallelCollector.shutdown();
+            parallelCollector = null;
+        }
+        statistics.unregister();
+        if (asyncOutputWriter != null) {
+            try {
+                asyncOutputWriter.stop(collectInterval, collectIntervalTimeUnit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            asyncOutputWriter = null;
+        }
         logger.info(getClass().getName() + " stopped.");
 
     }
 
+    /**
+     * Schedule the collection of the {@link #nextTick}.
+     *
+     * @param maxDelayInMillis maximum delay, protects against backward jumps of the wall clock
+     */
+    private synchronized void scheduleTick(long maxDelayInMillis) {
+        if (!collectScheduled)
+            return;
+        long delayInMillis = tickOriginInMillis + nextTick * tickInMillis - System.currentTimeMillis();
+        delayInMillis = Math.max(0, Math.min(delayInMillis, maxDelayInMillis));
+        try {
+            scheduledFuture = scheduledExecutorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    collectTick();
+                }
+            }, delayInMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.fine("Collection not scheduled, exporter is stopping");
+        }
+    }
+
+    /**
+     * Collect the buckets due at the {@link #nextTick} then schedule the next tick. A collection overrunning the
+     * following ticks doesn't queue late collections, the skipped ticks are collected once at the next tick.
+     * The buckets stretched by the {@link #collectThrottle} are skipped until their stretched interval elapsed.
+     */
+    private void collectTick() {
+        long tick = nextTick;
+        List<CollectionBucket> dueCollectionBuckets = timingWheel.advanceTo(tick);
+        int stretchFactor = collectThrottle == null ? 1 : collectThrottle.getStretchFactor();
+        List<CollectionBucket> collectionBuckets = new ArrayList<CollectionBucket>(dueCollectionBuckets.size());
+        for (CollectionBucket collectionBucket : dueCollectionBuckets) {
+            if (stretchFactor == 1 || tick - collectionBucket.lastCollectTick >= stretchFactor * (collectionBucket.intervalInMillis / tickInMillis)) {
+                collectionBucket.lastCollectTick = tick;
+                collectionBuckets.add(collectionBucket);
+            }
+        }
+        long startCpuTimeInNanos = collectThrottle == null ? 0 : getCollectingThreadCpuTime();
+        long startInNanos = System.nanoTime();
+        try {
+            collectAndExport(collectionBuckets);
+        } finally {
+            if (!collectionBuckets.isEmpty()) {
+                if (collectThrottle != null) {
+                    long wallTimeInNanos = System.nanoTime() - startInNanos;
+                    long cpuTimeInNanos = startCpuTimeInNanos < 0 ? wallTimeInNanos : getCollectingThreadCpuTime() - startCpuTimeInNanos;
+                    long periodInNanos = TimeUnit.MILLISECONDS.toNanos((tick - lastCollectTick) * tickInMillis);
+                    collectThrottle.record(cpuTimeInNanos, wallTimeInNanos, periodInNanos, hasLowPriorityQueries());
+                }
+                lastCollectTick = tick;
+            }
+            long elapsedTick = floorDiv(System.currentTimeMillis() - tickOriginInMillis, tickInMillis);
+            nextTick = tick + 1;
+            if (elapsedTick >= nextTick) {
+                logger.info("Collection of tick " + tick + " overran " + (elapsedTick - tick) + " tick(s) of " +
+                        tickInMillis + "ms, skip to the next tick");
+                nextTick = elapsedTick + 1;
+            }
+            scheduleTick(tickInMillis);
+        }
+    }
+
+    /**
+     * @return the CPU time of the current thread plus, if the queries are collected by the threads of the
+     * {@link #parallelCollector}, the cumulated CPU time of these threads. {@code -1} if thread CPU time is not
+     * supported, the elapsed time is then used instead
+     */
+    private long getCollectingThreadCpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isCurrentThreadCpuTimeSupported())
+            return -1;
+        long cpuTimeInNanos = threadMXBean.getCurrentThreadCpuTime();
+        if (parallelCollector != null) {
+            long workersCpuTimeInNanos = parallelCollector.getCpuTimeInNanos();
+            if (workersCpuTimeInNanos < 0)
+                return -1;
+            cpuTimeInNanos += workersCpuTimeInNanos;
+        }
+        return cpuTimeInNanos;
+    }
+
+    private boolean hasLowPriorityQueries() {
+        for (CollectionBucket collectionBucket : getCollectionBuckets()) {
+            if (!collectionBucket.lowPriorityQueryGroups.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
     protected void collectAndExport() {
+        collectAndExport(getCollectionBuckets());
+    }
+
+    protected void collectAndExport(@Nonnull List<CollectionBucket> collectionBuckets) {
+        if (collectionBuckets.isEmpty())
+            return;
+        long startInNanos = System.nanoTime();
         try {
-            outputWriter.preCollect();
+            long deadlineInNanos = ParallelCollector.NO_DEADLINE;
+            if (collectTimeoutInMillis != null) {
+                deadlineInNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(collectTimeoutInMillis);
+            }
+            OutputWriter exportOutputWriter = asyncOutputWriter != null ? asyncOutputWriter :
+                    instrumentedOutputWriter != null ? instrumentedOutputWriter : this.outputWriter;
+            // one capture time for all the results of the collection
+            CollectCycle cycle = new CollectCycle(++collectCycleId, System.currentTimeMillis(), startInNanos);
+            OutputWriters.preCollect(exportOutputWriter, cycle);
+            // results are collected in the batch then written at once
+            metricBatch.clear();
+            metricBatch.setCycle(cycle);
+            boolean lowPriorityShed = collectThrottle != null && collectThrottle.isShedding();
+            ParallelCollector parallelCollector = this.parallelCollector;
+            if (parallelCollector == null) {
+                for (CollectionBucket collectionBucket : collectionBuckets) {
+                    for (Collectable invocation : collectionBucket.invocations) {
+                        try {
+                            invocation.collectAndExport(mbeanIndex, metricBatch);
+                        } catch (Exception e) {
+                            logger.log(Level.WARNING, "Ignore exception invoking " + invocation, e);
+                        }
+                    }
+                }
+                for (CollectionBucket collectionBucket : collectionBuckets) {
+                    for (Collectable queryGroup : collectionBucket.queryGroups) {
+                        try {
+                            queryGroup.collectAndExport(mbeanIndex, metricBatch);
+                        } catch (Exception e) {
+                            logger.log(Level.WARNING, "Ignore exception collecting metrics for " + queryGroup, e);
+                        }
+                    }
+                    if (lowPriorityShed)
+                        continue;
+                    for (Collectable queryGroup : collectionBucket.lowPriorityQueryGroups) {
+                        try {
+                            queryGroup.collectAndExport(mbeanIndex, metricBatch);
+                        } catch (Exception e) {
+                            logger.log(Level.WARNING, "Ignore exception collecting metrics for " + queryGroup, e);
+                        }
+                    }
+                }
+            } else {
+                List<Collectable> dueInvocations = new ArrayList<Collectable>();
+                List<Collectable> dueQueryGroups = new ArrayList<Collectable>();
+                for (CollectionBucket collectionBucket : collectionBuckets) {
+                    dueInvocations.addAll(collectionBucket.invocations);
+                    dueQueryGroups.addAll(collectionBucket.queryGroups);
+                    if (!lowPriorityShed) {
+                        dueQueryGroups.addAll(collectionBucket.lowPriorityQueryGroups);
+                    }
+                }
+                // invocations first as they may have side effects on the collected attributes (e.g. "gc()")
+                parallelCollector.collectAndExport(dueInvocations, mbeanIndex, metricBatch, deadlineInNanos);
+                parallelCollector.collectAndExport(dueQueryGroups, mbeanIndex, metricBatch, deadlineInNanos);
+            }
+            if (selfInstrumentationExported) {
+                statistics.writeTo(metricBatch);
+            }
+            try {
+                OutputWriters.writeBatch(exportOutputWriter, metricBatch);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Ignore exception writing " + metricBatch.size() + " metrics to " + exportOutputWriter, e);
+            } finally {
+                metricBatch.clear();
+            }
+            exportOutputWriter.postCollect();
+        } catch (InterruptedException e) {
+            logger.fine("Collection interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Ignore exception flushing metrics ", e);
+        } finally {
+            statistics.recordCollect(System.nanoTime() - startInNanos);
+        }
+    }
+
+    /**
+     * @return the given output writer, or each output writer of the given chain, decorated to record its latency
+     */
+    @Nonnull
+    private OutputWriter instrumentOutputWriter(@Nonnull OutputWriter outputWriter) {
+        if (outputWriter instanceof OutputWritersChain) {
+            List<OutputWriter> instrumentedOutputWriters = new ArrayList<OutputWriter>();
+            for (OutputWriter chainedOutputWriter : ((OutputWritersChain) outputWriter).outputWriters) {
+                instrumentedOutputWriters.add(instrumentOutputWriter(chainedOutputWriter));
+            }
+            return new OutputWritersChain(instrumentedOutputWriters);
+        }
+        OutputWriter actualOutputWriter = outputWriter;
+        if (actualOutputWriter instanceof OutputWriterCircuitBreakerDecorator) {
+            actualOutputWriter = ((OutputWriterCircuitBreakerDecorator) actualOutputWriter).delegate;
+        }
+        if (actualOutputWriter instanceof DeltaSuppressingOutputWriter) {
+            actualOutputWriter = ((DeltaSuppressingOutputWriter) actualOutputWriter).delegate;
+        }
+        String name = actualOutputWriter.getClass().getSimpleName();
+        for (int i = 2; statistics.getOutputWriters().containsKey(name); i++) {
+            name = actualOutputWriter.getClass().getSimpleName() + "-" + i;
+        }
+        return new InstrumentedOutputWriter(outputWriter, statistics.getOutputWriterLatency(name));
+    }
+
+    @Nonnull
+    public ExporterStatistics getStatistics() {
+        return statistics;
+    }
+
+    private boolean isCollectTimeoutDefined() {
+        if (collectTimeoutInMillis != null)
+            return true;
+        for (Query query : queries) {
+            if (query.getCollectTimeoutInMillis() != null)
+                return true;
+        }
+        for (Invocation invocation : invocations) {
+            // the timeout of asynchronous invocations is enforced by the AsyncInvocation
+            if (invocation.getCollectTimeoutInMillis() != null && !invocation.isAsync())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the {@link #queries} and {@link #invocations} grouped by collect interval, the bucket of the
+     * default {@link #collectInterval} first.
+     */
+    @Nonnull
+    protected List<CollectionBucket> getCollectionBuckets() {
+        if (collectionBuckets == null) {
+            long defaultIntervalInMillis = collectIntervalTimeUnit.toMillis(collectInterval);
+            Map<Long, List<Invocation>> invocationsByInterval = new LinkedHashMap<Long, List<Invocation>>();
+            Map<Long, List<Query>> queriesByInterval = new LinkedHashMap<Long, List<Query>>();
+            invocationsByInterval.put(defaultIntervalInMillis, new ArrayList<Invocation>());
+            queriesByInterval.put(defaultIntervalInMillis, new ArrayList<Query>());
+
             for (Invocation invocation : invocations) {
-                try {
-                    invocation.invoke(mbeanServer, outputWriter);
-                } catch (Exception e) {
-                    logger.log(Level.WARNING, "Ignore exception invoking " + invocation, e);
+                Integer intervalInSeconds = invocation.getCollectIntervalInSeconds();
+                long intervalInMillis = intervalInSeconds == null ? defaultIntervalInMillis : TimeUnit.SECONDS.toMillis(intervalInSeconds);
+                if (!invocationsByInterval.containsKey(intervalInMillis)) {
+                    invocationsByInterval.put(intervalInMillis, new ArrayList<Invocation>());
+                    queriesByInterval.put(intervalInMillis, new ArrayList<Query>());
                 }
+                invocationsByInterval.get(intervalInMillis).add(invocation);
             }
             for (Query query : queries) {
-                try {
-                    query.collectAndExport(mbeanServer, outputWriter);
-                } catch (Exception e) {
-                    logger.log(Level.WARNING, "Ignore exception collecting metrics for " + query, e);
+                Integer intervalInSeconds = query.getCollectIntervalInSeconds();
+                long intervalInMillis = intervalInSeconds == null ? defaultIntervalInMillis : TimeUnit.SECONDS.toMillis(intervalInSeconds);
+                if (!queriesByInterval.containsKey(intervalInMillis)) {
+                    invocationsByInterval.put(intervalInMillis, new ArrayList<Invocation>());
+                    queriesByInterval.put(intervalInMillis, new ArrayList<Query>());
                 }
+                queriesByInterval.get(intervalInMillis).add(query);
             }
-            outputWriter.postCollect();
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "Ignore exception flushing metrics ", e);
+
+            List<CollectionBucket> result = new ArrayList<CollectionBucket>();
+            for (Map.Entry<Long, List<Query>> entry : queriesByInterval.entrySet()) {
+                Long intervalInMillis = entry.getKey();
+                List<Collectable> instrumentedInvocations = new ArrayList<Collectable>();
+                for (Invocation invocation : invocationsByInterval.get(intervalInMillis)) {
+                    String name = "invocation " + invocation.getObjectName() + " " + invocation.getOperationName();
+                    Collectable collectable = invocation.isAsync() ? new AsyncInvocation(invocation, asyncInvocationExecutorService) : invocation;
+                    instrumentedInvocations.add(new InstrumentedCollectable(collectable, statistics.getCollectableStatistics(name)));
+                }
+                List<Query> bucketQueries = new ArrayList<Query>();
+                List<Query> bucketLowPriorityQueries = new ArrayList<Query>();
+                for (Query query : entry.getValue()) {
+                    (query.isLowPriority() ? bucketLowPriorityQueries : bucketQueries).add(query);
+                }
+                CollectionBucket collectionBucket = new CollectionBucket(intervalInMillis, 0, instrumentedInvocations,
+                        new ArrayList<Collectable>(), new ArrayList<Collectable>());
+                result.add(collectionBucket);
+                // buckets of the shards spread over the interval, by offset
+                Map<Long, CollectionBucket> spreadCollectionBuckets = new TreeMap<Long, CollectionBucket>();
+                addQueryGroups(bucketQueries, false, collectionBucket, spreadCollectionBuckets);
+                addQueryGroups(bucketLowPriorityQueries, true, collectionBucket, spreadCollectionBuckets);
+                result.addAll(spreadCollectionBuckets.values());
+            }
+            collectionBuckets = result;
+        }
+        return collectionBuckets;
+    }
+
+    /**
+     * Add the query groups (or their shards) of the given queries to the given bucket or, if the shards are spread
+     * over the interval, to the bucket of their offset.
+     */
+    private void addQueryGroups(@Nonnull List<Query> queries, boolean lowPriority, @Nonnull CollectionBucket collectionBucket,
+                                @Nonnull Map<Long, CollectionBucket> spreadCollectionBuckets) {
+        for (CollectionPlan.QueryGroup queryGroup : new CollectionPlan(queries).getQueryGroups()) {
+            List<Collectable> shards = queryGroup.getShards();
+            int slots = collectShardsSpread ? computeSpreadSlots(collectionBucket.intervalInMillis, shards.size()) : 1;
+            for (int i = 0; i < shards.size(); i++) {
+                String name = "query " + queryGroup.getObjectName() + (shards.size() == 1 ? "" : " shard " + i + "/" + shards.size());
+                Collectable instrumentedShard = new InstrumentedCollectable(shards.get(i), statistics.getCollectableStatistics(name));
+                long offsetInMillis = (i % slots) * (collectionBucket.intervalInMillis / slots);
+                CollectionBucket shardCollectionBucket = collectionBucket;
+                if (offsetInMillis > 0) {
+                    shardCollectionBucket = spreadCollectionBuckets.get(offsetInMillis);
+                    if (shardCollectionBucket == null) {
+                        shardCollectionBucket = new CollectionBucket(collectionBucket.intervalInMillis, offsetInMillis,
+                                new ArrayList<Collectable>(), new ArrayList<Collectable>(), new ArrayList<Collectable>());
+                        spreadCollectionBuckets.put(offsetInMillis, shardCollectionBucket);
+                    }
+                }
+                (lowPriority ? shardCollectionBucket.lowPriorityQueryGroups : shardCollectionBucket.queryGroups).add(instrumentedShard);
+            }
+        }
+    }
+
+    /**
+     * @return the number of slots of the given interval over which the given number of shards are spread: the smallest
+     * divisor of the interval greater than or equal to the number of shards so that the ticks stay round, with
+     * slots of at least {@value #MIN_SPREAD_SLOT_IN_MILLIS}ms.
+     */
+    static int computeSpreadSlots(long intervalInMillis, int shardsCount) {
+        long target = Math.min(shardsCount, Math.max(1, intervalInMillis / MIN_SPREAD_SLOT_IN_MILLIS));
+        for (long slots = target; slots < intervalInMillis; slots++) {
+            if (intervalInMillis % slots == 0)
+                return (int) slots;
+        }
+        return 1;
+    }
+
+    /**
+     * @return a deterministic offset in {@code [0, maxSplayInMillis[} derived from the given JVM name
+     */
+    static long computeSplayInMillis(@Nonnull String jvmName, long maxSplayInMillis) {
+        if (maxSplayInMillis <= 0)
+            return 0;
+        // spread the bits of the hash code, JVM names of a fleet are often very similar
+        int h = jvmName.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffffL) % maxSplayInMillis;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long result = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            result--;
+        }
+        return result;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    @Nonnull
+    private static ThreadFactory newDaemonThreadFactory(@Nonnull final String namePrefix) {
+        return new ThreadFactory() {
+            final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                thread.setDaemon(true);
+                thread.setName(namePrefix + counter.incrementAndGet());
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Invocations and queries sharing the same collect interval and offset
+     */
+    protected static class CollectionBucket {
+        final long intervalInMillis;
+        /**
+         * Offset of the collections within the interval, {@code 0} except for the shards spread over the interval
+         */
+        final long offsetInMillis;
+        /**
+         * Last tick at which this bucket has been collected, only accessed by the scheduler thread
+         */
+        long lastCollectTick = Long.MIN_VALUE / 2;
+        @Nonnull
+        final List<Collectable> invocations;
+        /**
+         * Queries grouped by {@code ObjectName}, see {@link CollectionPlan}
+         */
+        @Nonnull
+        final List<Collectable> queryGroups;
+        /**
+         * Groups of the {@link Query#isLowPriority() low priority} queries, shed by the {@link CollectThrottle}
+         */
+        @Nonnull
+        final List<Collectable> lowPriorityQueryGroups;
+
+        CollectionBucket(long intervalInMillis, long offsetInMillis, @Nonnull List<Collectable> invocations,
+                         @Nonnull List<Collectable> queryGroups, @Nonnull List<Collectable> lowPriorityQueryGroups) {
+            this.intervalInMillis = intervalInMillis;
+            this.offsetInMillis = offsetInMillis;
+            this.invocations = invocations;
+            this.queryGroups = queryGroups;
+            this.lowPriorityQueryGroups = lowPriorityQueryGroups;
+        }
+
+        @Override
+        public String toString() {
+            return "CollectionBucket{" +
+                    "intervalInMillis=" + intervalInMillis +
+                    (offsetInMillis == 0 ? "" : ", offsetInMillis=" + offsetInMillis) +
+                    ", invocations=" + invocations.size() +
+                    ", queryGroups=" + queryGroups.size() +
+                    ", lowPriorityQueryGroups=" + lowPriorityQueryGroups.size() +
+                    '}';
         }
     }
 
@@ -172,6 +906,14 @@ public class JmxTransExporter {
                 ", outputWriter=" + outputWriter +
                 ", collectInterval=" + collectInterval +
                 " " + collectIntervalTimeUnit +
+                ", collectAlignedOnWallClock=" + collectAlignedOnWallClock +
+                ", collectSplay=" + collectSplay + " " + collectSplayTimeUnit +
+                ", collectParallelism=" + collectParallelism +
+                (collectShardsSpread ? ", collectShardsSpread=true" : "") +
+                ", exportQueueCapacity=" + exportQueueCapacity +
+                ", collectTimeoutInMillis=" + collectTimeoutInMillis +
+                (collectCpuBudgetInPercent == null ? "" : ", collectCpuBudgetInPercent=" + collectCpuBudgetInPercent +
+                        ", collectMaxStretchFactor=" + collectMaxStretchFactor) +
                 '}';
     }
 }
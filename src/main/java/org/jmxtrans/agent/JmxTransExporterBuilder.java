@@ -23,12 +23,14 @@
  */
 package org.jmxtrans.agent;
 
+import org.jmxtrans.agent.util.ConfigurationUtils;
 import org.jmxtrans.agent.util.PropertyPlaceholderResolver;
 import org.jmxtrans.agent.util.logging.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import javax.annotation.Nullable;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
@@ -79,31 +81,62 @@ public class JmxTransExporterBuilder {
 
         JmxTransExporter jmxTransExporter = new JmxTransExporter();
 
-        NodeList collectIntervalNodeList = rootElement.getElementsByTagName("collectIntervalInSeconds");
-        switch (collectIntervalNodeList.getLength()) {
-            case 0:
-                // nothing to do, use default value
-                break;
-            case 1:
-                Element collectIntervalElement = (Element) collectIntervalNodeList.item(0);
-                String collectIntervalString = placeholderResolver.resolveString(collectIntervalElement.getTextContent());
-                try {
-                    jmxTransExporter.withCollectInterval(Integer.parseInt(collectIntervalString), TimeUnit.SECONDS);
-                } catch (NumberFormatException e) {
-                    throw new IllegalStateException("Invalid <collectIntervalInSeconds> value '" + collectIntervalString + "', integer expected", e);
-                }
-                break;
-            default:
-                logger.warning("More than 1 <collectIntervalInSeconds> element found (" + collectIntervalNodeList.getLength() + "), use latest");
-                Element lastCollectIntervalElement = (Element) collectIntervalNodeList.item(collectIntervalNodeList.getLength() - 1);
-                String lastCollectIntervalString = placeholderResolver.resolveString(lastCollectIntervalElement.getTextContent());
-                try {
-                    jmxTransExporter.withCollectInterval(Integer.parseInt(lastCollectIntervalString), TimeUnit.SECONDS);
-                } catch (NumberFormatException e) {
-                    throw new IllegalStateException("Invalid <collectIntervalInSeconds> value '" + lastCollectIntervalString + "', integer expected", e);
-                }
-                break;
+        Integer collectInterval = getIntegerElementValue(rootElement, "collectIntervalInSeconds");
+        if (collectInterval != null) {
+            jmxTransExporter.withCollectInterval(collectInterval, TimeUnit.SECONDS);
+        }
+        Integer collectParallelism = getIntegerElementValue(rootElement, "collectParallelism");
+        if (collectParallelism != null) {
+            jmxTransExporter.withCollectParallelism(collectParallelism);
+        }
+        Integer mbeanIndexRefreshInterval = getIntegerElementValue(rootElement, "mbeanIndexRefreshIntervalInSeconds");
+        if (mbeanIndexRefreshInterval != null) {
+            jmxTransExporter.withMBeanIndexRefreshInterval(mbeanIndexRefreshInterval, TimeUnit.SECONDS);
+        }
+        Integer mbeanInfoCacheTimeToLive = getIntegerElementValue(rootElement, "mbeanInfoCacheTimeToLiveInSeconds");
+        if (mbeanInfoCacheTimeToLive != null) {
+            jmxTransExporter.withMBeanInfoCacheTimeToLive(mbeanInfoCacheTimeToLive, TimeUnit.SECONDS);
+        }
+        String collectAlignedOnWallClock = getElementValue(rootElement, "collectAlignedOnWallClock");
+        if (collectAlignedOnWallClock != null) {
+            jmxTransExporter.withCollectAlignedOnWallClock(Boolean.parseBoolean(collectAlignedOnWallClock));
+        }
+        Integer collectSplay = getIntegerElementValue(rootElement, "collectSplayInSeconds");
+        if (collectSplay != null) {
+            jmxTransExporter.withCollectSplay(collectSplay, TimeUnit.SECONDS);
+        }
+        Integer exportQueueCapacity = getIntegerElementValue(rootElement, "exportQueueCapacity");
+        if (exportQueueCapacity != null) {
+            String exportQueueOverflowPolicy = getElementValue(rootElement, "exportQueueOverflowPolicy");
+            Integer exportQueueBlockTimeout = getIntegerElementValue(rootElement, "exportQueueBlockTimeoutInMillis");
+            jmxTransExporter.withExportQueue(exportQueueCapacity,
+                    exportQueueOverflowPolicy == null ? jmxTransExporter.exportQueueOverflowPolicy : MetricRingBuffer.OverflowPolicy.parse(exportQueueOverflowPolicy),
+                    exportQueueBlockTimeout == null ? jmxTransExporter.exportQueueBlockTimeoutInMillis : exportQueueBlockTimeout);
+        }
+        String selfInstrumentationExported = getElementValue(rootElement, "exportSelfInstrumentation");
+        if (selfInstrumentationExported != null) {
+            jmxTransExporter.withSelfInstrumentationExported(Boolean.parseBoolean(selfInstrumentationExported));
+        }
+        String collectShardsSpread = getElementValue(rootElement, "collectShardsSpread");
+        if (collectShardsSpread != null) {
+            jmxTransExporter.withCollectShardsSpread(Boolean.parseBoolean(collectShardsSpread));
+        }
+        Integer collectTimeout = getIntegerElementValue(rootElement, "collectTimeoutInMillis");
+        if (collectTimeout != null) {
+            jmxTransExporter.withCollectTimeout(collectTimeout.longValue());
+        }
 
+        String collectCpuBudget = getElementValue(rootElement, "collectCpuBudgetInPercent");
+        if (collectCpuBudget != null) {
+            Integer collectMaxStretchFactor = getIntegerElementValue(rootElement, "collectMaxStretchFactor");
+            double cpuBudgetInPercent;
+            try {
+                cpuBudgetInPercent = Double.parseDouble(collectCpuBudget);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("Invalid <collectCpuBudgetInPercent> value '" + collectCpuBudget + "', number expected", e);
+            }
+            jmxTransExporter.withCollectCpuBudget(cpuBudgetInPercent,
+                    collectMaxStretchFactor == null ? jmxTransExporter.collectMaxStretchFactor : collectMaxStretchFactor);
         }
 
         buildResultNameStrategy(rootElement, jmxTransExporter);
@@ -115,6 +148,40 @@ public class JmxTransExporterBuilder {
         return jmxTransExporter;
     }
 
+    /**
+     * @return the integer value of the given top level element, {@code null} if the element is not defined
+     */
+    @Nullable
+    private Integer getIntegerElementValue(Element rootElement, String tagName) {
+        String value = getElementValue(rootElement, tagName);
+        if (value == null)
+            return null;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid <" + tagName + "> value '" + value + "', integer expected", e);
+        }
+    }
+
+    /**
+     * @return the resolved value of the given top level element, {@code null} if the element is not defined
+     */
+    @Nullable
+    private String getElementValue(Element rootElement, String tagName) {
+        NodeList nodeList = rootElement.getElementsByTagName(tagName);
+        switch (nodeList.getLength()) {
+            case 0:
+                // nothing to do, use default value
+                return null;
+            case 1:
+                break;
+            default:
+                logger.warning("More than 1 <" + tagName + "> element found (" + nodeList.getLength() + "), use latest");
+        }
+        Element element = (Element) nodeList.item(nodeList.getLength() - 1);
+        return placeholderResolver.resolveString(element.getTextContent()).trim();
+    }
+
     private void buildQueries(Element rootElement, JmxTransExporter jmxTransExporter) {
         NodeList queries = rootElement.getElementsByTagName("query");
         for (int i = 0; i < queries.getLength(); i++) {
@@ -132,8 +199,16 @@ public class JmxTransExporterBuilder {
                         ", attribute=" + attribute + ", resultAlias=" + resultAlias);
 
             }
+            Long collectTimeoutInMillis = getLongAttributeValue(queryElement, "collectTimeoutInMillis");
+            Integer collectIntervalInSeconds = getIntegerAttributeValue(queryElement, "collectIntervalInSeconds");
+            Integer collectShards = getIntegerAttributeValue(queryElement, "collectShards");
 
-            jmxTransExporter.withQuery(objectName, attribute, key, position, type, resultAlias);
+            Query query = new Query(objectName, attribute, key, position, type, resultAlias, jmxTransExporter.resultNameStrategy);
+            query.withCollectTimeoutInMillis(collectTimeoutInMillis)
+                    .withCollectIntervalInSeconds(collectIntervalInSeconds)
+                    .withLowPriority(Boolean.parseBoolean(placeholderResolver.resolveString(queryElement.getAttribute("lowPriority"))))
+                    .withCollectShards(collectShards == null ? 1 : collectShards);
+            jmxTransExporter.withQuery(query);
         }
     }
 
@@ -144,11 +219,46 @@ public class JmxTransExporterBuilder {
             String objectName = invocationElement.getAttribute("objectName");
             String operation = invocationElement.getAttribute("operation");
             String resultAlias = invocationElement.getAttribute("resultAlias");
+            Long collectTimeoutInMillis = getLongAttributeValue(invocationElement, "collectTimeoutInMillis");
+            Integer collectIntervalInSeconds = getIntegerAttributeValue(invocationElement, "collectIntervalInSeconds");
+            Integer minInvokeIntervalInSeconds = getIntegerAttributeValue(invocationElement, "minInvokeIntervalInSeconds");
+
+            Invocation invocation = new Invocation(objectName, operation, new Object[0], new String[0], resultAlias);
+            invocation.withCollectTimeoutInMillis(collectTimeoutInMillis)
+                    .withCollectIntervalInSeconds(collectIntervalInSeconds)
+                    .withAsync(Boolean.parseBoolean(placeholderResolver.resolveString(invocationElement.getAttribute("async"))))
+                    .withMinInvokeIntervalInSeconds(minInvokeIntervalInSeconds);
+            jmxTransExporter.withInvocation(invocation);
+        }
+    }
 
-            jmxTransExporter.withInvocation(objectName, operation, resultAlias);
+    /**
+     * @return the value of the given attribute of the given element, {@code null} if not defined
+     */
+    @Nullable
+    private Long getLongAttributeValue(Element element, String attributeName) {
+        if (!element.hasAttribute(attributeName))
+            return null;
+        String value = placeholderResolver.resolveString(element.getAttribute(attributeName));
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid '" + attributeName + "' attribute '" + value + "' for " +
+                    element.getTagName() + " objectName=" + element.getAttribute("objectName"), e);
         }
     }
 
+    @Nullable
+    private Integer getIntegerAttributeValue(Element element, String attributeName) {
+        Long value = getLongAttributeValue(element, attributeName);
+        if (value == null)
+            return null;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid '" + attributeName + "' attribute '" + value + "' for " +
+                    element.getTagName() + " objectName=" + element.getAttribute("objectName") + ", out of the integer range");
+        return value.intValue();
+    }
+
     private void buildResultNameStrategy(Element rootElement, JmxTransExporter jmxTransExporter) {
         NodeList resultNameStrategyNodeList = rootElement.getElementsByTagName("resultNameStrategy");
 
@@ -203,6 +313,9 @@ public class JmxTransExporterBuilder {
                     Element settingElement = (Element) settingsNodeList.item(j);
                     settings.put(settingElement.getNodeName(), placeholderResolver.resolveString(settingElement.getTextContent()));
                 }
+                if (ConfigurationUtils.getBoolean(settings, DeltaSuppressingOutputWriter.SETTING_ENABLED, false)) {
+                    outputWriter = new DeltaSuppressingOutputWriter(outputWriter);
+                }
                 outputWriter = new OutputWriterCircuitBreakerDecorator(outputWriter);
                 outputWriter.postConstruct(settings);
                 outputWriters.add(outputWriter);
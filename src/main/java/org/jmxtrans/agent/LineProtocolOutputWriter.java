@@ -62,7 +62,7 @@ import org.w3c.dom.NodeList;
 /**
  * @author <a href="tao.shen@transwarp.io">Tao Shen</a>
  */
-public class LineProtocolOutputWriter extends AbstractOutputWriter implements OutputWriter {
+public class LineProtocolOutputWriter extends AbstractOutputWriter implements NumericOutputWriter {
 
     public final static String SETTING_HOST = "host";
     public final static String SETTING_PORT = "port";
@@ -72,6 +72,7 @@ public class LineProtocolOutputWriter extends AbstractOutputWriter implements Ou
     public final static int SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 10000;
     private final static int MAX_SEND_TIME_INTERVEL = 300000;
     private final static int MAX_SEND_MSEEAGE_COUNT = 5000;
+    private final static String LINE_SEPARATOR = System.getProperty("line.separator");
 
     protected String metricPathPrefix;
     protected HostAndPort lineProtocolOutputWriter;
@@ -204,17 +205,38 @@ public class LineProtocolOutputWriter extends AbstractOutputWriter implements Ou
         if (value == null) {
             return;
         }
-        String urlStr = String.format("http://%s:%s/write?db=%s&precision=ms", lineProtocolOutputWriter.getHost(), lineProtocolOutputWriter.getPort(),
-            Database);
-        String tag = "," + localSettings.get("tags");
-        String valueStr = null;
+        StringBuilder msg = newLine(metricName);
         if (value instanceof String) {
-            valueStr = "\"" + value + "\"";
+            msg.append('"').append(value).append('"');
         } else {
-            valueStr = value.toString();
+            msg.append(value);
         }
-        String msg = String.format("%s%s value=%s %s%n", metricName.replace('.', '_'), tag.replace('.', '_').replaceAll(" ", ""), valueStr,
-            System.currentTimeMillis());
+        send(msg);
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        send(newLine(metricName).append(value));
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        send(newLine(metricName).append(value));
+    }
+
+    /**
+     * @return {@code "<measurement>,<tags> value="}, to be completed with the value
+     */
+    private StringBuilder newLine(@Nonnull String metricName) {
+        String tag = "," + localSettings.get("tags");
+        return new StringBuilder(metricName.length() + tag.length() + 48)
+            .append(metricName.replace('.', '_')).append(tag.replace('.', '_').replaceAll(" ", "")).append(" value=");
+    }
+
+    private void send(@Nonnull StringBuilder line) throws IOException {
+        String urlStr = String.format("http://%s:%s/write?db=%s&precision=ms", lineProtocolOutputWriter.getHost(), lineProtocolOutputWriter.getPort(),
+            Database);
+        String msg = line.append(' ').append(getCollectTimeInMillis()).append(LINE_SEPARATOR).toString();
         try {
             ensureLineProtocalConnection(urlStr);
             outputStreamWriter.write(msg);
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.MBeanServerUtils;
+import org.jmxtrans.agent.util.Preconditions2;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Index of the {@link ObjectName}s registered in an {@link MBeanServer}.
+ *
+ * Once {@link #start() started}, the index is kept up to date listening to the
+ * {@link MBeanServerNotification#REGISTRATION_NOTIFICATION} and {@link MBeanServerNotification#UNREGISTRATION_NOTIFICATION}
+ * notifications of the {@link MBeanServerDelegate} and {@link #queryNames(ObjectName)} resolves patterns without scanning
+ * the MBean repository: the names matching a pattern are computed once and then maintained incrementally.
+ *
+ * The index also caches the attribute names of the MBeans ({@link #getAttributeNames(ObjectName)}) to prevent building
+ * the {@link MBeanInfo} of each MBean at each collection. A cached entry is dropped when the MBean is unregistered (or
+ * registered again) and, if a {@link #setAttributeNamesTimeToLive(long, TimeUnit) time to live} is defined, when it expires.
+ *
+ * {@link #refresh()} re-synchronizes the index with the {@link MBeanServer} and should be invoked periodically as a safety net.
+ *
+ * Until it is started, the index delegates to {@link MBeanServer#queryNames(ObjectName, javax.management.QueryExp)}.
+ */
+public class MBeanIndex implements NotificationListener {
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    @Nonnull
+    private final MBeanServer mbeanServer;
+
+    private final Set<ObjectName> objectNames = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+
+    private final ConcurrentMap<ObjectName, Set<ObjectName>> objectNamesByPattern = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+
+    private final ConcurrentMap<ObjectName, AttributeNames> attributeNamesByObjectName = new ConcurrentHashMap<ObjectName, AttributeNames>();
+
+    /**
+     * Time to live of the cached attribute names, {@code 0} if they never expire.
+     */
+    private long attributeNamesTimeToLiveInNanos;
+
+    /**
+     * Guards the updates of {@link #objectNames} and {@link #objectNamesByPattern}, lookups are lock free.
+     */
+    private final Object updateLock = new Object();
+
+    /**
+     * Serializes the {@link #refresh()}es.
+     */
+    private final Object refreshLock = new Object();
+
+    /**
+     * Names registered or unregistered since the beginning of the running {@link #refresh()}, {@code null} if no refresh
+     * is running. The snapshot of the refresh may be outdated for these names, the notifications prevail.
+     * Guarded by the {@link #updateLock}.
+     */
+    @Nullable
+    private Set<ObjectName> notifiedDuringRefresh;
+
+    /**
+     * Incremented when the registered names change, written holding the {@link #updateLock}.
+     */
+    private volatile long version;
+
+    private volatile boolean started;
+
+    private final List<UnregistrationListener> unregistrationListeners = new CopyOnWriteArrayList<UnregistrationListener>();
+
+    public MBeanIndex(@Nonnull MBeanServer mbeanServer) {
+        this.mbeanServer = Preconditions2.checkNotNull(mbeanServer, "mbeanServer");
+    }
+
+    public void start() throws Exception {
+        if (started) {
+            return;
+        }
+        // listen before the initial load to not miss any registration
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+        refresh();
+        started = true;
+    }
+
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        try {
+            mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Exception removing listener from " + MBeanServerDelegate.DELEGATE_NAME, e);
+        }
+        synchronized (updateLock) {
+            objectNames.clear();
+            objectNamesByPattern.clear();
+            version++;
+        }
+        attributeNamesByObjectName.clear();
+    }
+
+    /**
+     * Re-synchronize the index with the names actually registered in the {@link MBeanServer}.
+     */
+    public void refresh() {
+        synchronized (refreshLock) {
+            synchronized (updateLock) {
+                notifiedDuringRefresh = new HashSet<ObjectName>();
+            }
+            try {
+                refresh(mbeanServer.queryNames(null, null));
+            } finally {
+                synchronized (updateLock) {
+                    notifiedDuringRefresh = null;
+                }
+            }
+        }
+    }
+
+    private void refresh(@Nonnull Set<ObjectName> actualObjectNames) {
+        synchronized (updateLock) {
+            // names notified since the snapshot are already up to date
+            Set<ObjectName> notified = notifiedDuringRefresh;
+            int added = 0;
+            for (ObjectName objectName : actualObjectNames) {
+                if (!notified.contains(objectName) && objectNames.add(objectName)) {
+                    added++;
+                }
+            }
+            List<ObjectName> removedObjectNames = new ArrayList<ObjectName>();
+            for (ObjectName objectName : objectNames) {
+                if (!actualObjectNames.contains(objectName) && !notified.contains(objectName)) {
+                    removedObjectNames.add(objectName);
+                }
+            }
+            int removed = removedObjectNames.size();
+            objectNames.removeAll(removedObjectNames);
+            if (added > 0 || removed > 0) {
+                version++;
+            }
+
+            for (Map.Entry<ObjectName, Set<ObjectName>> entry : objectNamesByPattern.entrySet()) {
+                entry.setValue(match(entry.getKey()));
+            }
+            attributeNamesByObjectName.keySet().retainAll(objectNames);
+            if (started && (added > 0 || removed > 0)) {
+                logger.fine("Index refresh found " + added + " unexpected new and " + removed + " unexpected removed ObjectNames");
+            }
+            for (ObjectName objectName : removedObjectNames) {
+                fireUnregistration(objectName);
+            }
+        }
+    }
+
+    /**
+     * @param objectName the name or pattern to lookup, {@code null} to return all the names
+     * @return the names matching the given name (see {@link MBeanServer#queryNames(ObjectName, javax.management.QueryExp)})
+     */
+    @Nonnull
+    public Set<ObjectName> queryNames(@Nullable ObjectName objectName) {
+        if (!started) {
+            return mbeanServer.queryNames(objectName, null);
+        }
+        if (objectName == null) {
+            return Collections.unmodifiableSet(objectNames);
+        } else if (!objectName.isPattern()) {
+            return objectNames.contains(objectName) ? Collections.singleton(objectName) : Collections.<ObjectName>emptySet();
+        }
+        Set<ObjectName> result = objectNamesByPattern.get(objectName);
+        if (result == null) {
+            synchronized (updateLock) {
+                result = objectNamesByPattern.get(objectName);
+                if (result == null) {
+                    result = match(objectName);
+                    objectNamesByPattern.put(objectName, result);
+                }
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * @param objectName the exact (non pattern) name of a registered MBean
+     * @return the names of the attributes of the given MBean (see {@link MBeanInfo#getAttributes()}). The returned
+     * array is shared and must not be modified.
+     */
+    @Nonnull
+    public String[] getAttributeNames(@Nonnull ObjectName objectName) throws InstanceNotFoundException, IntrospectionException, ReflectionException {
+        if (!started) {
+            return MBeanServerUtils.getAttributeNames(mbeanServer.getMBeanInfo(objectName));
+        }
+        long nowInNanos = System.nanoTime();
+        AttributeNames attributeNames = attributeNamesByObjectName.get(objectName);
+        if (attributeNames == null ||
+                (attributeNamesTimeToLiveInNanos > 0 && nowInNanos - attributeNames.creationInNanos > attributeNamesTimeToLiveInNanos)) {
+            attributeNames = new AttributeNames(MBeanServerUtils.getAttributeNames(mbeanServer.getMBeanInfo(objectName)), nowInNanos);
+            attributeNamesByObjectName.put(objectName, attributeNames);
+            if (!objectNames.contains(objectName)) {
+                // unregistered meanwhile
+                attributeNamesByObjectName.remove(objectName);
+            }
+        }
+        return attributeNames.names;
+    }
+
+    /**
+     * @param timeToLive time to live of the cached attribute names of the MBeans, {@code 0} if they never expire
+     *                   (the cached entries are anyway dropped when the MBean is unregistered).
+     */
+    public void setAttributeNamesTimeToLive(long timeToLive, @Nonnull TimeUnit timeUnit) {
+        this.attributeNamesTimeToLiveInNanos = timeUnit.toNanos(timeToLive);
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) {
+            return;
+        }
+        ObjectName objectName = ((MBeanServerNotification) notification).getMBeanName();
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            attributeNamesByObjectName.remove(objectName);
+            synchronized (updateLock) {
+                if (notifiedDuringRefresh != null) {
+                    notifiedDuringRefresh.add(objectName);
+                }
+                objectNames.add(objectName);
+                for (Map.Entry<ObjectName, Set<ObjectName>> entry : objectNamesByPattern.entrySet()) {
+                    if (entry.getKey().apply(objectName)) {
+                        entry.getValue().add(objectName);
+                    }
+                }
+                version++;
+            }
+        } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            synchronized (updateLock) {
+                if (notifiedDuringRefresh != null) {
+                    notifiedDuringRefresh.add(objectName);
+                }
+                objectNames.remove(objectName);
+                for (Set<ObjectName> matchingObjectNames : objectNamesByPattern.values()) {
+                    matchingObjectNames.remove(objectName);
+                }
+                version++;
+            }
+            attributeNamesByObjectName.remove(objectName);
+            fireUnregistration(objectName);
+        }
+    }
+
+    private void fireUnregistration(@Nonnull ObjectName objectName) {
+        for (UnregistrationListener listener : unregistrationListeners) {
+            try {
+                listener.onUnregistration(objectName);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Ignore exception notifying " + listener + " of the unregistration of " + objectName, e);
+            }
+        }
+    }
+
+    /**
+     * @param listener notified of the unregistration of the MBeans once the index is started, e.g. to evict caches
+     */
+    public void addUnregistrationListener(@Nonnull UnregistrationListener listener) {
+        unregistrationListeners.add(listener);
+    }
+
+    /**
+     * Must be called holding the {@link #updateLock}.
+     */
+    @Nonnull
+    private Set<ObjectName> match(@Nonnull ObjectName pattern) {
+        Set<ObjectName> result = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+        for (ObjectName objectName : objectNames) {
+            if (pattern.apply(objectName)) {
+                result.add(objectName);
+            }
+        }
+        return result;
+    }
+
+    @Nonnull
+    public MBeanServer getMBeanServer() {
+        return mbeanServer;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return a number changing each time an MBean is registered or unregistered once the index is started, to
+     * detect that the result of {@link #queryNames(ObjectName)} may have changed without comparing the names.
+     * Meaningless until the index is started.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "MBeanIndex{" +
+                "started=" + started +
+                ", objectNames=" + objectNames.size() +
+                ", patterns=" + objectNamesByPattern.keySet() +
+                ", cachedAttributeNames=" + attributeNamesByObjectName.size() +
+                '}';
+    }
+
+    public interface UnregistrationListener {
+        void onUnregistration(@Nonnull ObjectName objectName);
+    }
+
+    private static class AttributeNames {
+        final String[] names;
+        final long creationInNanos;
+
+        AttributeNames(String[] names, long creationInNanos) {
+            this.names = names;
+            this.creationInNanos = creationInNanos;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Results of a collection stored in parallel arrays (name, type, value type, long / double / object value and
+ * timestamp), written to the {@link BatchOutputWriter}s in one call. The batch is an {@link OutputWriter} itself so
+ * that the collected results can be written to it, numeric values are stored without being boxed.
+ *
+ * Names are stored as {@link String} references rather than ids of a name table: the result names are cached by the
+ * {@link Query queries}, the same instances are written at each collection and the writers need the names anyway.
+ *
+ * The arrays grow as needed and are reused from one collection to the next after a {@link #clear()}. The results
+ * written during a {@link #setCycle(CollectCycle) cycle} are timestamped with the capture time of the cycle.
+ *
+ * Not thread safe.
+ */
+public class MetricBatch implements NumericOutputWriter {
+
+    /**
+     * Result of {@link #writeQueryResult(String, String, Object)}, see {@link #getObjectValue(int)}
+     */
+    public final static byte OBJECT_VALUE = 0;
+    /**
+     * Result of {@link #writeLongQueryResult(String, String, long)}, see {@link #getLongValue(int)}
+     */
+    public final static byte LONG_VALUE = 1;
+    /**
+     * Result of {@link #writeDoubleQueryResult(String, String, double)}, see {@link #getDoubleValue(int)}
+     */
+    public final static byte DOUBLE_VALUE = 2;
+    /**
+     * Result of {@link #writeInvocationResult(String, Object)}, see {@link #getObjectValue(int)}
+     */
+    public final static byte INVOCATION_VALUE = 3;
+
+    private final static Logger logger = Logger.getLogger(MetricBatch.class.getName());
+
+    private int size;
+    private String[] names;
+    private String[] types;
+    private byte[] valueTypes;
+    private long[] longValues;
+    private double[] doubleValues;
+    private Object[] objectValues;
+    private long[] timestampsInMillis;
+    @Nullable
+    private CollectCycle cycle;
+
+    public MetricBatch() {
+        this(64);
+    }
+
+    public MetricBatch(int initialCapacity) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException("Invalid initial capacity " + initialCapacity);
+        names = new String[initialCapacity];
+        types = new String[initialCapacity];
+        valueTypes = new byte[initialCapacity];
+        longValues = new long[initialCapacity];
+        doubleValues = new double[initialCapacity];
+        objectValues = new Object[initialCapacity];
+        timestampsInMillis = new long[initialCapacity];
+    }
+
+    /**
+     * @return the index of the new result, the arrays may have been reallocated
+     */
+    private int add(@Nonnull String name, @Nullable String type, byte valueType) {
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            types = Arrays.copyOf(types, capacity);
+            valueTypes = Arrays.copyOf(valueTypes, capacity);
+            longValues = Arrays.copyOf(longValues, capacity);
+            doubleValues = Arrays.copyOf(doubleValues, capacity);
+            objectValues = Arrays.copyOf(objectValues, capacity);
+            timestampsInMillis = Arrays.copyOf(timestampsInMillis, capacity);
+        }
+        int index = size++;
+        names[index] = name;
+        types[index] = type;
+        valueTypes[index] = valueType;
+        timestampsInMillis[index] = cycle == null ? System.currentTimeMillis() : cycle.getTimestampInMillis();
+        return index;
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) {
+        int index = add(metricName, metricType, OBJECT_VALUE);
+        objectValues[index] = value;
+    }
+
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) {
+        int index = add(metricName, metricType, LONG_VALUE);
+        longValues[index] = value;
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) {
+        int index = add(metricName, metricType, DOUBLE_VALUE);
+        doubleValues[index] = value;
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) {
+        int index = add(invocationName, null, INVOCATION_VALUE);
+        objectValues[index] = value;
+    }
+
+    /**
+     * Append a copy of the result at the given {@code index} of the {@code source} batch, timestamp included.
+     */
+    public void add(@Nonnull MetricBatch source, int index) {
+        source.checkIndex(index);
+        int i = add(source.names[index], source.types[index], source.valueTypes[index]);
+        longValues[i] = source.longValues[index];
+        doubleValues[i] = source.doubleValues[index];
+        objectValues[i] = source.objectValues[index];
+        timestampsInMillis[i] = source.timestampsInMillis[index];
+    }
+
+    /**
+     * Replay the results on the given {@code outputWriter}, one call per result. An exception writing a result does
+     * not prevent the following results from being written, a single warning is logged for the whole batch.
+     *
+     * @throws WriteException if some results could not be written, once all the results have been replayed
+     */
+    public void writeTo(@Nonnull OutputWriter outputWriter) throws WriteException {
+        int failures = 0;
+        Exception firstException = null;
+        for (int i = 0; i < size; i++) {
+            try {
+                writeTo(outputWriter, i);
+            } catch (Exception e) {
+                if (logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Exception writing " + names[i] + " to " + outputWriter, e);
+                if (failures++ == 0) {
+                    firstException = e;
+                }
+            }
+        }
+        if (failures > 0) {
+            WriteException writeException = new WriteException(failures, size, firstException);
+            logger.log(Level.WARNING, writeException.getMessage() + " to " + outputWriter, firstException);
+            throw writeException;
+        }
+    }
+
+    /**
+     * Replay the result at the given {@code index} on the given {@code outputWriter}.
+     */
+    public void writeTo(@Nonnull OutputWriter outputWriter, int index) throws IOException {
+        checkIndex(index);
+        switch (valueTypes[index]) {
+            case LONG_VALUE:
+                OutputWriters.writeLongQueryResult(outputWriter, names[index], types[index], longValues[index]);
+                break;
+            case DOUBLE_VALUE:
+                OutputWriters.writeDoubleQueryResult(outputWriter, names[index], types[index], doubleValues[index]);
+                break;
+            case INVOCATION_VALUE:
+                outputWriter.writeInvocationResult(names[index], objectValues[index]);
+                break;
+            default:
+                outputWriter.writeQueryResult(names[index], types[index], objectValues[index]);
+        }
+    }
+
+    /**
+     * Remove all the results and the cycle and release the references to them, the capacity of the batch is retained.
+     */
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(types, 0, size, null);
+        Arrays.fill(objectValues, 0, size, null);
+        size = 0;
+        cycle = null;
+    }
+
+    /**
+     * @param cycle cycle of the results written next, {@code null} to timestamp them with the current time
+     */
+    public void setCycle(@Nullable CollectCycle cycle) {
+        this.cycle = cycle;
+    }
+
+    /**
+     * @return the cycle of the results, {@code null} if they have no cycle context
+     */
+    @Nullable
+    public CollectCycle getCycle() {
+        return cycle;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Nonnull
+    public String getName(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    @Nullable
+    public String getType(int index) {
+        checkIndex(index);
+        return types[index];
+    }
+
+    /**
+     * @return {@link #OBJECT_VALUE}, {@link #LONG_VALUE}, {@link #DOUBLE_VALUE} or {@link #INVOCATION_VALUE}
+     */
+    public byte getValueType(int index) {
+        checkIndex(index);
+        return valueTypes[index];
+    }
+
+    public long getLongValue(int index) {
+        checkIndex(index);
+        return longValues[index];
+    }
+
+    public double getDoubleValue(int index) {
+        checkIndex(index);
+        return doubleValues[index];
+    }
+
+    @Nullable
+    public Object getObjectValue(int index) {
+        checkIndex(index);
+        return objectValues[index];
+    }
+
+    /**
+     * @return the value whatever its {@linkplain #getValueType(int) type}, boxed for the numeric values
+     */
+    @Nullable
+    public Object getValue(int index) {
+        switch (getValueType(index)) {
+            case LONG_VALUE:
+                return longValues[index];
+            case DOUBLE_VALUE:
+                return doubleValues[index];
+            default:
+                return objectValues[index];
+        }
+    }
+
+    /**
+     * @return the time at which the result has been added to the batch
+     */
+    public long getTimestampInMillis(int index) {
+        checkIndex(index);
+        return timestampsInMillis[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+
+    @Override
+    public void postConstruct(@Nonnull Map<String, String> settings) {
+    }
+
+    @Override
+    public void preDestroy() {
+    }
+
+    @Override
+    public void preCollect() {
+    }
+
+    @Override
+    public void postCollect() {
+    }
+
+    @Override
+    public String toString() {
+        return "MetricBatch{" +
+                "size=" + size +
+                ", capacity=" + names.length +
+                '}';
+    }
+
+    /**
+     * Some results of a batch could not be written, see {@link #writeTo(OutputWriter)}.
+     */
+    public static class WriteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int failedResultsCount;
+
+        public WriteException(int failedResultsCount, int resultsCount, @Nullable Throwable cause) {
+            super("Exception writing " + failedResultsCount + " of " + resultsCount + " results", cause);
+            this.failedResultsCount = failedResultsCount;
+        }
+
+        public int getFailedResultsCount() {
+            return failedResultsCount;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, preallocated, single producer / single consumer ring buffer of the calls made to an {@link OutputWriter}.
+ *
+ * The producer fills the preallocated {@link Record}s in place and the consumer copies them out, no object is
+ * allocated by the buffer once created. When the buffer is full, the {@link OverflowPolicy} of the buffer applies.
+ *
+ * The {@link RecordType#PRE_COLLECT} and {@link RecordType#POST_COLLECT} control records delimit the collection cycles
+ * for the writers and must not be lost: a few slots of the buffer are reserved for them (one eighth of the capacity, up
+ * to {@value #MAX_CONTROL_RECORDS_RESERVE}) and {@link OverflowPolicy#DROP_OLDEST} never drops them, the new
+ * metric record is dropped instead if the oldest record is a control record. A control record is only dropped if the
+ * reserve is exhausted, i.e. if the consumer is stalled for several collection cycles.
+ *
+ * Thread safe for one producer thread and one consumer thread.
+ */
+public class MetricRingBuffer {
+
+    public final static int MAX_CONTROL_RECORDS_RESERVE = 16;
+
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest record of the buffer to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the new record
+         */
+        DROP_NEWEST,
+        /**
+         * Wait for the consumer to make room, discard the new record after a timeout
+         */
+        BLOCK;
+
+        /**
+         * @param value e.g. {@code "dropOldest"}, {@code "drop-oldest"} or {@code "DROP_OLDEST"}
+         */
+        @Nonnull
+        public static OverflowPolicy parse(@Nonnull String value) {
+            String normalized = value.trim().replace("-", "").replace("_", "");
+            for (OverflowPolicy overflowPolicy : values()) {
+                if (overflowPolicy.name().replace("_", "").equalsIgnoreCase(normalized)) {
+                    return overflowPolicy;
+                }
+            }
+            throw new IllegalArgumentException("Invalid overflow policy '" + value + "', expected one of dropOldest, dropNewest, block");
+        }
+    }
+
+    public enum RecordType {
+        PRE_COLLECT, QUERY_RESULT, LONG_QUERY_RESULT, DOUBLE_QUERY_RESULT, INVOCATION_RESULT, POST_COLLECT;
+
+        /**
+         * @return {@code true} for the records delimiting the collection cycles
+         */
+        public boolean isControl() {
+            return this == PRE_COLLECT || this == POST_COLLECT;
+        }
+    }
+
+    /**
+     * Mutable call to an {@link OutputWriter}
+     */
+    public static class Record {
+        RecordType recordType;
+        String name;
+        String type;
+        Object value;
+        /**
+         * Value of the {@link RecordType#LONG_QUERY_RESULT}s, raw bits of the value of the {@link RecordType#DOUBLE_QUERY_RESULT}s
+         */
+        long numericValue;
+
+        void set(@Nonnull RecordType recordType, @Nullable String name, @Nullable String type, @Nullable Object value, long numericValue) {
+            this.recordType = recordType;
+            this.name = name;
+            this.type = type;
+            this.value = value;
+            this.numericValue = numericValue;
+        }
+
+        /**
+         * Invoke the recorded call on the given {@code outputWriter}
+         */
+        public void writeTo(@Nonnull OutputWriter outputWriter) throws IOException {
+            switch (recordType) {
+                case PRE_COLLECT:
+                    // value is the CollectCycle, if any
+                    OutputWriters.preCollect(outputWriter, (CollectCycle) value);
+                    break;
+                case QUERY_RESULT:
+                    outputWriter.writeQueryResult(name, type, value);
+                    break;
+                case LONG_QUERY_RESULT:
+                    OutputWriters.writeLongQueryResult(outputWriter, name, type, numericValue);
+                    break;
+                case DOUBLE_QUERY_RESULT:
+                    OutputWriters.writeDoubleQueryResult(outputWriter, name, type, Double.longBitsToDouble(numericValue));
+                    break;
+                case INVOCATION_RESULT:
+                    outputWriter.writeInvocationResult(name, value);
+                    break;
+                case POST_COLLECT:
+                    outputWriter.postCollect();
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported record type " + recordType);
+            }
+        }
+
+        /**
+         * Release the references to the recorded values
+         */
+        public void clear() {
+            set(null, null, null, null, 0);
+        }
+
+        @Nullable
+        public RecordType getRecordType() {
+            return recordType;
+        }
+
+        @Nullable
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the value, boxed for the {@link RecordType#LONG_QUERY_RESULT}s and {@link RecordType#DOUBLE_QUERY_RESULT}s
+         */
+        @Nullable
+        public Object getValue() {
+            switch (recordType) {
+                case LONG_QUERY_RESULT:
+                    return numericValue;
+                case DOUBLE_QUERY_RESULT:
+                    return Double.longBitsToDouble(numericValue);
+                default:
+                    return value;
+            }
+        }
+    }
+
+    private final Record[] records;
+    private final int mask;
+    /**
+     * Maximum number of records in the buffer for the metric records, the remaining slots are reserved for the control records
+     */
+    private final int metricRecordsLimit;
+    @Nonnull
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutInNanos;
+    /**
+     * Sequence of the next record to consume, also moved forward by the producer to drop the oldest record
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Sequence of the next record to produce, only written by the producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * @param capacity           rounded up to the next power of 2
+     * @param blockTimeoutInMillis maximum wait of the producer with the {@link OverflowPolicy#BLOCK} policy
+     */
+    public MetricRingBuffer(int capacity, @Nonnull OverflowPolicy overflowPolicy, long blockTimeoutInMillis) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity " + capacity + ", must be between 1 and 2^30");
+        int actualCapacity = Integer.highestOneBit(capacity);
+        if (actualCapacity < capacity)
+            actualCapacity = actualCapacity << 1;
+        this.records = new Record[actualCapacity];
+        for (int i = 0; i < actualCapacity; i++) {
+            records[i] = new Record();
+        }
+        this.mask = actualCapacity - 1;
+        this.metricRecordsLimit = actualCapacity - Math.min(actualCapacity / 8, MAX_CONTROL_RECORDS_RESERVE);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutInMillis);
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return {@code false} if the record has been dropped
+     */
+    public boolean offer(@Nonnull RecordType recordType, @Nullable String name, @Nullable String type, @Nullable Object value) {
+        return offer(recordType, name, type, value, 0);
+    }
+
+    /**
+     * Producer side, offer a {@link RecordType#LONG_QUERY_RESULT} without boxing its value.
+     */
+    public boolean offerLong(@Nonnull String name, @Nullable String type, long value) {
+        return offer(RecordType.LONG_QUERY_RESULT, name, type, null, value);
+    }
+
+    /**
+     * Producer side, offer a {@link RecordType#DOUBLE_QUERY_RESULT} without boxing its value.
+     */
+    public boolean offerDouble(@Nonnull String name, @Nullable String type, double value) {
+        return offer(RecordType.DOUBLE_QUERY_RESULT, name, type, null, Double.doubleToRawLongBits(value));
+    }
+
+    private boolean offer(@Nonnull RecordType recordType, @Nullable String name, @Nullable String type, @Nullable Object value, long numericValue) {
+        long t = tail.get();
+        int limit = recordType.isControl() ? records.length : metricRecordsLimit;
+        if (t - head.get() >= limit) {
+            boolean freeSlot;
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    freeSlot = false;
+                    break;
+                case DROP_OLDEST:
+                    freeSlot = dropOldestMetricRecords(t, limit);
+                    break;
+                case BLOCK:
+                    freeSlot = awaitFreeSlot(t, limit);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported overflow policy " + overflowPolicy);
+            }
+            if (!freeSlot) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+        }
+        records[(int) (t & mask)].set(recordType, name, type, value, numericValue);
+        // publish the record
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Drop the oldest records until there are less than {@code limit} records in the buffer, stop at the first
+     * control record.
+     *
+     * @return {@code false} if the oldest record is a control record
+     */
+    private boolean dropOldestMetricRecords(long t, int limit) {
+        long h = head.get();
+        while (t - h >= limit) {
+            // the slot of the head is only written by the producer, it can safely be read here
+            if (records[(int) (h & mask)].recordType.isControl()) {
+                return false;
+            }
+            if (head.compareAndSet(h, h + 1)) {
+                droppedCount.incrementAndGet();
+            }
+            h = head.get();
+        }
+        return true;
+    }
+
+    private boolean awaitFreeSlot(long t, int limit) {
+        long deadlineInNanos = System.nanoTime() + blockTimeoutInNanos;
+        while (t - head.get() >= limit) {
+            if (System.nanoTime() - deadlineInNanos >= 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+        }
+        return true;
+    }
+
+    /**
+     * Consumer side: copy the oldest record to the given {@code destination} and remove it from the buffer.
+     *
+     * @return {@code false} if the buffer is empty
+     */
+    public boolean poll(@Nonnull Record destination) {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return false;
+            }
+            Record record = records[(int) (h & mask)];
+            destination.set(record.recordType, record.name, record.type, record.value, record.numericValue);
+            if (head.compareAndSet(h, h + 1)) {
+                return true;
+            }
+            // the record has been dropped by the producer while being copied, retry with the new oldest record
+        }
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return records.length;
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Nonnull
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricRingBuffer{" +
+                "capacity=" + records.length +
+                ", overflowPolicy=" + overflowPolicy +
+                ", size=" + size() +
+                ", droppedCount=" + droppedCount +
+                '}';
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * {@link OutputWriter} accepting numeric values as primitives, to format them without boxing them nor building
+ * intermediate {@link String}s.
+ *
+ * Callers should go through {@link OutputWriters} that bridges the calls to the {@link OutputWriter}s that don't
+ * implement this interface.
+ */
+public interface NumericOutputWriter extends OutputWriter {
+
+    /**
+     * Equivalent of {@link #writeQueryResult(String, String, Object)} with an integral value.
+     */
+    void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException;
+
+    /**
+     * Equivalent of {@link #writeQueryResult(String, String, Object)} with a floating point value.
+     */
+    void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException;
+}
@@ -38,7 +38,7 @@ import static org.jmxtrans.agent.util.ConfigurationUtils.getBoolean;
 /**
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
+public class OutputWriterCircuitBreakerDecorator implements NumericOutputWriter, BatchOutputWriter, CycleAwareOutputWriter {
     public final static String SETTING_ENABLED = "enabled";
     protected final Logger logger;
     protected final OutputWriter delegate;
@@ -47,6 +47,11 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
     private long disableDurationInMillis = 60 * 1000;
     private AtomicInteger failuresCounter = new AtomicInteger();
     private long disabledUntil = 0;
+    /**
+     * {@code true} if the last batch, or the last result of a replayed batch, failed: until a write of the batch
+     * succeeds, the successes of {@link #preCollect()} and {@link #postCollect()} don't reset the failures counter
+     */
+    private volatile boolean lastBatchFailed;
 
     public OutputWriterCircuitBreakerDecorator(OutputWriter delegate) {
         this.delegate = delegate;
@@ -66,11 +71,20 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
 
     @Override
     public void preCollect() throws IOException {
+        preCollect(delegate, null);
+    }
+
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        preCollect(delegate, cycle);
+    }
+
+    private void preCollect(@Nonnull OutputWriter delegate, @Nullable CollectCycle cycle) throws IOException {
         if (isDisabled()) {
             return;
         }
         try {
-            delegate.preCollect();
+            OutputWriters.preCollect(delegate, cycle);
             incrementOutputWriterSuccess();
         } catch (RuntimeException e) {
             incrementOutputWriterFailures();
@@ -98,6 +112,104 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
         }
     }
 
+    @Override
+    public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        if (isDisabled()) {
+            return;
+        }
+        try {
+            OutputWriters.writeLongQueryResult(delegate, metricName, metricType, value);
+            incrementOutputWriterSuccess();
+        } catch (RuntimeException e) {
+            incrementOutputWriterFailures();
+            throw e;
+        } catch (IOException e) {
+            incrementOutputWriterFailures();
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        if (isDisabled()) {
+            return;
+        }
+        try {
+            OutputWriters.writeDoubleQueryResult(delegate, metricName, metricType, value);
+            incrementOutputWriterSuccess();
+        } catch (RuntimeException e) {
+            incrementOutputWriterFailures();
+            throw e;
+        } catch (IOException e) {
+            incrementOutputWriterFailures();
+            throw e;
+        }
+    }
+
+    /**
+     * Batches are written at once to the {@link BatchOutputWriter}s and replayed result by result on the other
+     * writers, so that a failing writer is disabled after {@code maxFailures} failed results rather than receiving
+     * all the results of the batch.
+     */
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        if (isDisabled()) {
+            return;
+        }
+        if (!(delegate instanceof BatchOutputWriter)) {
+            replay(batch);
+            return;
+        }
+        try {
+            OutputWriters.writeBatch(delegate, batch);
+            lastBatchFailed = false;
+            incrementOutputWriterSuccess();
+        } catch (MetricBatch.WriteException e) {
+            // one failure per result, as if they had been written one by one
+            lastBatchFailed = true;
+            incrementOutputWriterFailures(e.getFailedResultsCount());
+            throw e;
+        } catch (RuntimeException e) {
+            lastBatchFailed = true;
+            incrementOutputWriterFailures();
+            throw e;
+        } catch (IOException e) {
+            lastBatchFailed = true;
+            incrementOutputWriterFailures();
+            throw e;
+        }
+    }
+
+    private void replay(@Nonnull MetricBatch batch) throws MetricBatch.WriteException {
+        int failures = 0;
+        Exception firstException = null;
+        for (int i = 0; i < batch.size(); i++) {
+            if (isDisabled()) {
+                break;
+            }
+            try {
+                batch.writeTo(delegate, i);
+                lastBatchFailed = false;
+                incrementOutputWriterSuccess();
+            } catch (RuntimeException e) {
+                lastBatchFailed = true;
+                incrementOutputWriterFailures();
+                if (failures++ == 0)
+                    firstException = e;
+            } catch (IOException e) {
+                lastBatchFailed = true;
+                incrementOutputWriterFailures();
+                if (failures++ == 0)
+                    firstException = e;
+            }
+        }
+        if (failures > 0) {
+            MetricBatch.WriteException writeException = new MetricBatch.WriteException(failures, batch.size(), firstException);
+            logger.log(Level.WARNING, writeException.getMessage() + " to " + delegate, firstException);
+            throw writeException;
+        }
+    }
+
     @Override
     public void writeInvocationResult(String invocationName, Object value) throws IOException {
         if (isDisabled()) {
@@ -152,7 +264,11 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
     }
 
     public void incrementOutputWriterFailures() {
-        int failuresCount = failuresCounter.incrementAndGet();
+        incrementOutputWriterFailures(1);
+    }
+
+    private void incrementOutputWriterFailures(int failures) {
+        int failuresCount = failuresCounter.addAndGet(failures);
         if (failuresCount >= maxFailures) {
             disabledUntil = System.currentTimeMillis() + disableDurationInMillis;
             failuresCounter.set(0);
@@ -161,6 +277,9 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
     }
 
     public void incrementOutputWriterSuccess() {
+        if (lastBatchFailed) {
+            return;
+        }
         if (failuresCounter.get() > 0) {
             logger.fine("Reset failures counter to 0");
             failuresCounter.set(0);
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write numeric values to {@link NumericOutputWriter}s as primitives and to the other {@link OutputWriter}s as objects,
+ * write {@link MetricBatch}es to {@link BatchOutputWriter}s at once and replay them on the other {@link OutputWriter}s,
+ * pass the {@link CollectCycle} to the {@link CycleAwareOutputWriter}s.
+ */
+public final class OutputWriters {
+
+    private OutputWriters() {
+    }
+
+    /**
+     * Route the integral ({@link Long}, {@link Integer}, {@link Short}, {@link Byte}, {@link AtomicLong},
+     * {@link AtomicInteger}) and {@link Double} values to the primitive methods of the {@link NumericOutputWriter}s.
+     * {@link Float}s are written as objects, widening them to {@code double} would change their representation
+     * (e.g. {@code 0.1f} would become {@code 0.10000000149011612}).
+     */
+    public static void writeQueryResult(@Nonnull OutputWriter outputWriter, @Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+        if (outputWriter instanceof NumericOutputWriter) {
+            NumericOutputWriter numericOutputWriter = (NumericOutputWriter) outputWriter;
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                    || value instanceof AtomicLong || value instanceof AtomicInteger) {
+                numericOutputWriter.writeLongQueryResult(metricName, metricType, ((Number) value).longValue());
+                return;
+            } else if (value instanceof Double) {
+                numericOutputWriter.writeDoubleQueryResult(metricName, metricType, (Double) value);
+                return;
+            }
+        }
+        outputWriter.writeQueryResult(metricName, metricType, value);
+    }
+
+    /**
+     * @param cycle {@code null} if the collection has no cycle context, {@link OutputWriter#preCollect()} is then called
+     */
+    public static void preCollect(@Nonnull OutputWriter outputWriter, @Nullable CollectCycle cycle) throws IOException {
+        if (cycle != null && outputWriter instanceof CycleAwareOutputWriter) {
+            ((CycleAwareOutputWriter) outputWriter).preCollect(cycle);
+        } else {
+            outputWriter.preCollect();
+        }
+    }
+
+    public static void writeBatch(@Nonnull OutputWriter outputWriter, @Nonnull MetricBatch batch) throws IOException {
+        if (outputWriter instanceof BatchOutputWriter) {
+            ((BatchOutputWriter) outputWriter).writeBatch(batch);
+        } else {
+            batch.writeTo(outputWriter);
+        }
+    }
+
+    public static void writeLongQueryResult(@Nonnull OutputWriter outputWriter, @Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+        if (outputWriter instanceof NumericOutputWriter) {
+            ((NumericOutputWriter) outputWriter).writeLongQueryResult(metricName, metricType, value);
+        } else {
+            outputWriter.writeQueryResult(metricName, metricType, value);
+        }
+    }
+
+    public static void writeDoubleQueryResult(@Nonnull OutputWriter outputWriter, @Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+        if (outputWriter instanceof NumericOutputWriter) {
+            ((NumericOutputWriter) outputWriter).writeDoubleQueryResult(metricName, metricType, value);
+        } else {
+            outputWriter.writeQueryResult(metricName, metricType, value);
+        }
+    }
+}
@@ -23,6 +23,7 @@
  */
 package org.jmxtrans.agent;
 
+import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -30,7 +31,7 @@ import java.util.List;
 /**
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class OutputWritersChain extends AbstractOutputWriter implements OutputWriter {
+public class OutputWritersChain extends AbstractOutputWriter implements NumericOutputWriter, BatchOutputWriter {
 
     protected final List<OutputWriter> outputWriters;
 
@@ -50,6 +51,44 @@ public class OutputWritersChain extends AbstractOutputWriter implements OutputWr
         }
     }
 
+    @Override
+    public void writeLongQueryResult(String metricName, String type, long value) throws IOException {
+        for (OutputWriter outputWriter : outputWriters) {
+            OutputWriters.writeLongQueryResult(outputWriter, metricName, type, value);
+        }
+    }
+
+    @Override
+    public void writeDoubleQueryResult(String metricName, String type, double value) throws IOException {
+        for (OutputWriter outputWriter : outputWriters) {
+            OutputWriters.writeDoubleQueryResult(outputWriter, metricName, type, value);
+        }
+    }
+
+    /**
+     * Write the batch to each output writer even if a previous one failed, the first exception is rethrown
+     */
+    @Override
+    public void writeBatch(MetricBatch batch) throws IOException {
+        IOException ioException = null;
+        RuntimeException runtimeException = null;
+        for (OutputWriter outputWriter : outputWriters) {
+            try {
+                OutputWriters.writeBatch(outputWriter, batch);
+            } catch (IOException e) {
+                if (ioException == null && runtimeException == null)
+                    ioException = e;
+            } catch (RuntimeException e) {
+                if (ioException == null && runtimeException == null)
+                    runtimeException = e;
+            }
+        }
+        if (ioException != null)
+            throw ioException;
+        if (runtimeException != null)
+            throw runtimeException;
+    }
+
     @Override
     public void writeInvocationResult(String invocationName, Object value) throws IOException {
         for (OutputWriter outputWriter : outputWriters) {
@@ -77,4 +116,11 @@ public class OutputWritersChain extends AbstractOutputWriter implements OutputWr
             outputWriter.preCollect();
         }
     }
+
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        for (OutputWriter outputWriter : outputWriters) {
+            OutputWriters.preCollect(outputWriter, cycle);
+        }
+    }
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Collects {@link Collectable}s on a bounded pool of worker threads.
+ *
+ * The results of each {@link Collectable} are buffered and then written to the {@link OutputWriter} by the calling
+ * thread, so that output writers don't need to be thread safe. The buffers are written in the order of the given
+ * list of {@link Collectable}s whatever the order in which the collections complete, each buffer waiting for the
+ * ones before it.
+ *
+ * Time budgets:
+ * <ul>
+ * <li>A {@link Collectable} running longer than its {@link Collectable#getCollectTimeoutInMillis() collect timeout}
+ * is abandoned: its results are dropped and it is quarantined (not collected) for a back-off period doubling
+ * at each consecutive timeout from {@value #QUARANTINE_MIN_DURATION_IN_SECONDS}s to {@value #QUARANTINE_MAX_DURATION_IN_SECONDS}s.</li>
+ * <li>The {@link Collectable}s still running when the deadline of the collection cycle is reached are abandoned as
+ * well, the ones that did not start yet are skipped.</li>
+ * </ul>
+ * As a blocked JMX call generally can't be interrupted, each thread stuck in an abandoned {@link Collectable} is
+ * temporarily replaced by an extra worker so that the parallelism of the pool is preserved.
+ */
+public class ParallelCollector {
+
+    public final static int QUARANTINE_MIN_DURATION_IN_SECONDS = 60;
+    public final static int QUARANTINE_MAX_DURATION_IN_SECONDS = 30 * 60;
+    /**
+     * Deadline value for collection cycles without deadline
+     */
+    public final static long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final ThreadPoolExecutor executor;
+
+    private final int parallelism;
+    /**
+     * Workers added to replace the threads stuck in abandoned {@link Collectable}s
+     */
+    private int extraWorkers;
+
+    /**
+     * Only accessed by the collecting thread.
+     */
+    private final Map<Collectable, State> statesByCollectable = new WeakHashMap<Collectable, State>();
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    /**
+     * CPU time consumed by the worker threads in {@link Collectable#collectAndExport(MBeanIndex, OutputWriter)},
+     * including the abandoned ones once they return
+     */
+    private final AtomicLong cpuTimeInNanos = new AtomicLong();
+    /**
+     * Number of {@link Collectable}s abandoned after exceeding their time budget, read by the JMX threads
+     */
+    private final AtomicLong timeoutsCount = new AtomicLong();
+
+    public ParallelCollector(int parallelism, @Nonnull ThreadFactory threadFactory) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism " + parallelism + ", must be greater than 0");
+        this.parallelism = parallelism;
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * @param collectables      the units of work to collect
+     * @param deadlineInNanos   deadline of the collection cycle (see {@link System#nanoTime()}), {@link #NO_DEADLINE} if none
+     */
+    public void collectAndExport(@Nonnull List<? extends Collectable> collectables, @Nonnull MBeanIndex mbeanIndex,
+                                 @Nonnull OutputWriter outputWriter, long deadlineInNanos) throws InterruptedException {
+        long nowInNanos = System.nanoTime();
+        List<CollectTask> tasks = new ArrayList<CollectTask>(collectables.size());
+        for (Collectable collectable : collectables) {
+            State state = statesByCollectable.get(collectable);
+            if (state == null) {
+                state = new State();
+                statesByCollectable.put(collectable, state);
+            }
+            if (state.running) {
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("Skip " + collectable + ", previous collection is still running");
+                continue;
+            } else if (state.consecutiveTimeouts > 0 && nowInNanos - state.quarantinedUntilInNanos < 0) {
+                if (logger.isLoggable(Level.FINE))
+                    logger.fine("Skip quarantined " + collectable);
+                continue;
+            }
+            CollectTask task = new CollectTask(collectable, state, mbeanIndex);
+            task.future = executor.submit(task);
+            tasks.add(task);
+        }
+
+        try {
+            for (CollectTask task : tasks) {
+                try {
+                    BufferingOutputWriter buffer = waitFor(task, deadlineInNanos);
+                    task.state.consecutiveTimeouts = 0;
+                    buffer.writeTo(outputWriter);
+                } catch (TimeoutException e) {
+                    abandon(task);
+                } catch (CancellationException e) {
+                    logger.fine("Collection of " + task.collectable + " cancelled");
+                } catch (ExecutionException e) {
+                    logger.log(Level.WARNING, "Ignore exception collecting metrics for " + task.collectable, e.getCause());
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Ignore exception exporting metrics for " + task.collectable, e);
+                }
+            }
+        } finally {
+            for (CollectTask task : tasks) {
+                if (!task.future.isDone()) {
+                    abandon(task);
+                }
+            }
+        }
+    }
+
+    @Nonnull
+    private BufferingOutputWriter waitFor(@Nonnull CollectTask task, long cycleDeadlineInNanos) throws InterruptedException, ExecutionException, TimeoutException {
+        Long timeoutInMillis = task.collectable.getCollectTimeoutInMillis();
+        long timeoutInNanos = timeoutInMillis == null ? 0 : TimeUnit.MILLISECONDS.toNanos(timeoutInMillis);
+        while (true) {
+            long nowInNanos = System.nanoTime();
+            long waitInNanos = Long.MAX_VALUE;
+            if (cycleDeadlineInNanos != NO_DEADLINE) {
+                waitInNanos = cycleDeadlineInNanos - nowInNanos;
+            }
+            if (timeoutInMillis != null) {
+                long startTimeInNanos = task.startTimeInNanos;
+                // the timeout applies from the beginning of the execution, re-evaluated once the task is started
+                long taskWaitInNanos = startTimeInNanos == 0 ? timeoutInNanos : startTimeInNanos + timeoutInNanos - nowInNanos;
+                waitInNanos = Math.min(waitInNanos, taskWaitInNanos);
+            }
+            if (waitInNanos == Long.MAX_VALUE) {
+                return task.future.get();
+            }
+            try {
+                return task.future.get(Math.max(0, waitInNanos), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                nowInNanos = System.nanoTime();
+                if (cycleDeadlineInNanos != NO_DEADLINE && nowInNanos - cycleDeadlineInNanos >= 0) {
+                    throw e;
+                } else if (timeoutInMillis != null && task.startTimeInNanos != 0 && nowInNanos - task.startTimeInNanos >= timeoutInNanos) {
+                    throw e;
+                }
+                // task started late, wait again
+            }
+        }
+    }
+
+    /**
+     * Cancel the given task and quarantine its {@link Collectable} if it was running.
+     */
+    private void abandon(@Nonnull CollectTask task) {
+        boolean wasRunning;
+        synchronized (task) {
+            task.abandoned = true;
+            wasRunning = task.startTimeInNanos != 0 && !task.finished;
+            if (wasRunning) {
+                addExtraWorker();
+            }
+        }
+        task.future.cancel(true);
+
+        if (wasRunning) {
+            State state = task.state;
+            state.consecutiveTimeouts++;
+            timeoutsCount.incrementAndGet();
+            long quarantineDurationInSeconds = Math.min(
+                    (long) QUARANTINE_MIN_DURATION_IN_SECONDS << Math.min(state.consecutiveTimeouts - 1, 16),
+                    QUARANTINE_MAX_DURATION_IN_SECONDS);
+            state.quarantinedUntilInNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(quarantineDurationInSeconds);
+            logger.warning("Abandon collection of " + task.collectable + " after " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.startTimeInNanos) + "ms, " +
+                    "quarantine it for " + quarantineDurationInSeconds + "s");
+        } else {
+            logger.info("Skip collection of " + task.collectable + ", collection cycle deadline reached");
+        }
+    }
+
+    private void addExtraWorker() {
+        synchronized (executor) {
+            extraWorkers++;
+            executor.setMaximumPoolSize(parallelism + extraWorkers);
+            executor.setCorePoolSize(parallelism + extraWorkers);
+        }
+    }
+
+    private void removeExtraWorker() {
+        synchronized (executor) {
+            extraWorkers--;
+            executor.setCorePoolSize(parallelism + extraWorkers);
+            executor.setMaximumPoolSize(parallelism + extraWorkers);
+        }
+    }
+
+    /**
+     * @return the number of {@link Collectable}s abandoned after exceeding their time budget
+     */
+    public long getTimeoutsCount() {
+        return timeoutsCount.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelCollector{" +
+                "parallelism=" + parallelism +
+                ", extraWorkers=" + extraWorkers +
+                '}';
+    }
+
+    /**
+     * Collection state of a {@link Collectable}
+     */
+    private static class State {
+        volatile boolean running;
+        /**
+         * only relevant if {@link #consecutiveTimeouts} is greater than 0
+         */
+        long quarantinedUntilInNanos;
+        int consecutiveTimeouts;
+    }
+
+    /**
+     * @return the cumulated CPU time of the worker threads collecting the {@link Collectable}s, {@code -1} if thread
+     * CPU time is not supported
+     */
+    public long getCpuTimeInNanos() {
+        if (!threadMXBean.isCurrentThreadCpuTimeSupported())
+            return -1;
+        return cpuTimeInNanos.get();
+    }
+
+    private long getCurrentThreadCpuTime() {
+        if (!threadMXBean.isCurrentThreadCpuTimeSupported())
+            return -1;
+        return threadMXBean.getCurrentThreadCpuTime();
+    }
+
+    private class CollectTask implements Callable<BufferingOutputWriter> {
+        final Collectable collectable;
+        final State state;
+        final MBeanIndex mbeanIndex;
+        Future<BufferingOutputWriter> future;
+        /**
+         * {@code 0} until the task starts, guarded by {@code this}
+         */
+        volatile long startTimeInNanos;
+        /**
+         * guarded by {@code this}
+         */
+        boolean abandoned;
+        /**
+         * guarded by {@code this}
+         */
+        boolean finished;
+
+        CollectTask(Collectable collectable, State state, MBeanIndex mbeanIndex) {
+            this.collectable = collectable;
+            this.state = state;
+            this.mbeanIndex = mbeanIndex;
+        }
+
+        @Override
+        public BufferingOutputWriter call() throws Exception {
+            synchronized (this) {
+                if (abandoned) {
+                    throw new CancellationException();
+                }
+                long nowInNanos = System.nanoTime();
+                startTimeInNanos = nowInNanos == 0 ? 1 : nowInNanos;
+            }
+            state.running = true;
+            long startCpuTimeInNanos = getCurrentThreadCpuTime();
+            try {
+                BufferingOutputWriter buffer = new BufferingOutputWriter();
+                collectable.collectAndExport(mbeanIndex, buffer);
+                return buffer;
+            } finally {
+                if (startCpuTimeInNanos >= 0) {
+                    cpuTimeInNanos.addAndGet(getCurrentThreadCpuTime() - startCpuTimeInNanos);
+                }
+                state.running = false;
+                synchronized (this) {
+                    finished = true;
+                    if (abandoned) {
+                        removeExtraWorker();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -58,7 +58,7 @@ public class PerMinuteSummarizerOutputWriter extends AbstractOutputWriter implem
     @Override
     public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
 
-        QueryResult currentResult = new QueryResult(metricName, metricType, value, System.currentTimeMillis());
+        QueryResult currentResult = new QueryResult(metricName, metricType, value, getCollectTimeInMillis());
 
         if ("counter".equals(currentResult.getType())) {
 
@@ -219,6 +219,12 @@ public class PerMinuteSummarizerOutputWriter extends AbstractOutputWriter implem
         delegate.preCollect();
     }
 
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        setCollectCycle(cycle);
+        OutputWriters.preCollect(delegate, cycle);
+    }
+
     public void setDelegate(OutputWriter delegate) {
         this.delegate = delegate;
     }
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+/**
+ * Fast path reading the most collected attributes of the {@code java.lang:*} platform MBeans (memory, garbage
+ * collectors, memory pools, threading, class loading, operating system and runtime) directly on the
+ * {@link PlatformManagedObject}s instead of going through the {@link MBeanServer} and the conversion of their values
+ * to open types ({@link javax.management.openmbean.CompositeData}...).
+ *
+ * The values are exported with the same result names as the generic path, {@link MemoryUsage} attributes are exported
+ * as the {@code committed}, {@code init}, {@code max} and {@code used} keys of the equivalent composite data.
+ *
+ * Only applies to the {@linkplain ManagementFactory#getPlatformMBeanServer() platform MBeanServer}.
+ */
+class PlatformMXBeanAttributes {
+
+    /**
+     * Keys of the {@link javax.management.openmbean.CompositeData} of a {@link MemoryUsage}, in the order of their
+     * {@link javax.management.openmbean.CompositeType#keySet()}
+     */
+    final static String[] MEMORY_USAGE_KEYS = {"committed", "init", "max", "used"};
+
+    private final static Logger logger = Logger.getLogger(PlatformMXBeanAttributes.class.getName());
+
+    private final static PlatformMXBeanAttributes INSTANCE = new PlatformMXBeanAttributes();
+
+    @Nonnull
+    static PlatformMXBeanAttributes getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Readers by attribute, by ObjectName. Empty map for the ObjectNames of the {@code java.lang} domain without fast path.
+     */
+    private final ConcurrentMap<ObjectName, Map<String, AttributeReader>> readersByObjectName = new ConcurrentHashMap<ObjectName, Map<String, AttributeReader>>();
+
+    /**
+     * @param mbeanServer the MBeanServer of the collection
+     * @param objectName  exact name of an MBean
+     * @return the readers by attribute name of the given MBean, {@code null} if the MBean doesn't have a fast path
+     */
+    @Nullable
+    Map<String, AttributeReader> getReaders(@Nonnull MBeanServer mbeanServer, @Nonnull ObjectName objectName) {
+        if (!"java.lang".equals(objectName.getDomain()) || mbeanServer != ManagementFactory.getPlatformMBeanServer()) {
+            return null;
+        }
+        Map<String, AttributeReader> readers = readersByObjectName.get(objectName);
+        if (readers == null) {
+            try {
+                readers = newReaders(objectName);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Exception building the platform MXBean readers of " + objectName + ", use the MBeanServer", e);
+                readers = Collections.emptyMap();
+            }
+            readersByObjectName.put(objectName, readers);
+        }
+        return readers.isEmpty() ? null : readers;
+    }
+
+    @Nonnull
+    private Map<String, AttributeReader> newReaders(@Nonnull ObjectName objectName) {
+        Map<String, AttributeReader> readers = new HashMap<String, AttributeReader>();
+        String type = objectName.getKeyProperty("type");
+        if (objectName.equals(newObjectName(ManagementFactory.MEMORY_MXBEAN_NAME))) {
+            final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            readers.put("HeapMemoryUsage", new MemoryUsageReader() {
+                @Override
+                MemoryUsage read() {
+                    return memory.getHeapMemoryUsage();
+                }
+            });
+            readers.put("NonHeapMemoryUsage", new MemoryUsageReader() {
+                @Override
+                MemoryUsage read() {
+                    return memory.getNonHeapMemoryUsage();
+                }
+            });
+            readers.put("ObjectPendingFinalizationCount", new LongReader() {
+                @Override
+                long read() {
+                    return memory.getObjectPendingFinalizationCount();
+                }
+            });
+        } else if ("GarbageCollector".equals(type)) {
+            for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (objectName.equals(gc.getObjectName())) {
+                    readers.put("CollectionCount", new LongReader() {
+                        @Override
+                        long read() {
+                            return gc.getCollectionCount();
+                        }
+                    });
+                    readers.put("CollectionTime", new LongReader() {
+                        @Override
+                        long read() {
+                            return gc.getCollectionTime();
+                        }
+                    });
+                }
+            }
+        } else if ("MemoryPool".equals(type)) {
+            for (final MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (objectName.equals(memoryPool.getObjectName())) {
+                    readers.put("Usage", new MemoryUsageReader() {
+                        @Override
+                        MemoryUsage read() {
+                            return memoryPool.getUsage();
+                        }
+                    });
+                    readers.put("PeakUsage", new MemoryUsageReader() {
+                        @Override
+                        MemoryUsage read() {
+                            return memoryPool.getPeakUsage();
+                        }
+                    });
+                    readers.put("CollectionUsage", new MemoryUsageReader() {
+                        @Override
+                        MemoryUsage read() {
+                            return memoryPool.getCollectionUsage();
+                        }
+                    });
+                }
+            }
+        } else if (objectName.equals(newObjectName(ManagementFactory.THREAD_MXBEAN_NAME))) {
+            final ThreadMXBean threading = ManagementFactory.getThreadMXBean();
+            readers.put("ThreadCount", new LongReader() {
+                @Override
+                long read() {
+                    return threading.getThreadCount();
+                }
+            });
+            readers.put("DaemonThreadCount", new LongReader() {
+                @Override
+                long read() {
+                    return threading.getDaemonThreadCount();
+                }
+            });
+            readers.put("PeakThreadCount", new LongReader() {
+                @Override
+                long read() {
+                    return threading.getPeakThreadCount();
+                }
+            });
+            readers.put("TotalStartedThreadCount", new LongReader() {
+                @Override
+                long read() {
+                    return threading.getTotalStartedThreadCount();
+                }
+            });
+        } else if (objectName.equals(newObjectName(ManagementFactory.CLASS_LOADING_MXBEAN_NAME))) {
+            final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+            readers.put("LoadedClassCount", new LongReader() {
+                @Override
+                long read() {
+                    return classLoading.getLoadedClassCount();
+                }
+            });
+            readers.put("TotalLoadedClassCount", new LongReader() {
+                @Override
+                long read() {
+                    return classLoading.getTotalLoadedClassCount();
+                }
+            });
+            readers.put("UnloadedClassCount", new LongReader() {
+                @Override
+                long read() {
+                    return classLoading.getUnloadedClassCount();
+                }
+            });
+        } else if (objectName.equals(newObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME))) {
+            final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+            readers.put("AvailableProcessors", new LongReader() {
+                @Override
+                long read() {
+                    return operatingSystem.getAvailableProcessors();
+                }
+            });
+            readers.put("SystemLoadAverage", new DoubleReader() {
+                @Override
+                double read() {
+                    return operatingSystem.getSystemLoadAverage();
+                }
+            });
+        } else if (objectName.equals(newObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME))) {
+            final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+            readers.put("Uptime", new LongReader() {
+                @Override
+                long read() {
+                    return runtime.getUptime();
+                }
+            });
+            readers.put("StartTime", new LongReader() {
+                @Override
+                long read() {
+                    return runtime.getStartTime();
+                }
+            });
+        }
+        return readers;
+    }
+
+    @Nonnull
+    private static ObjectName newObjectName(@Nonnull String objectName) {
+        try {
+            return new ObjectName(objectName);
+        } catch (Exception e) {
+            throw new IllegalStateException("Invalid ObjectName '" + objectName + "'", e);
+        }
+    }
+
+    /**
+     * Read an attribute of a platform MXBean and export it for a {@link Query}.
+     */
+    abstract static class AttributeReader {
+        abstract void export(@Nonnull Query query, @Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute) throws IOException;
+    }
+
+    abstract static class LongReader extends AttributeReader {
+        abstract long read();
+
+        @Override
+        void export(@Nonnull Query query, @Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute) throws IOException {
+            query.exportLongAttributeValue(outputWriter, objectName, attribute, read());
+        }
+    }
+
+    abstract static class DoubleReader extends AttributeReader {
+        abstract double read();
+
+        @Override
+        void export(@Nonnull Query query, @Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute) throws IOException {
+            query.exportDoubleAttributeValue(outputWriter, objectName, attribute, read());
+        }
+    }
+
+    abstract static class MemoryUsageReader extends AttributeReader {
+        @Nullable
+        abstract MemoryUsage read();
+
+        @Override
+        void export(@Nonnull Query query, @Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute) throws IOException {
+            MemoryUsage memoryUsage = read();
+            if (memoryUsage == null) {
+                query.exportAttributeValue(outputWriter, objectName, attribute, null);
+            } else {
+                // same order as MEMORY_USAGE_KEYS
+                long[] values = {memoryUsage.getCommitted(), memoryUsage.getInit(), memoryUsage.getMax(), memoryUsage.getUsed()};
+                query.exportCompositeLongAttributeValue(outputWriter, objectName, attribute, MEMORY_USAGE_KEYS, values);
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@
  */
 package org.jmxtrans.agent;
 
+import org.jmxtrans.agent.util.MBeanServerUtils;
 import org.jmxtrans.agent.util.Preconditions2;
 import org.jmxtrans.agent.util.collect.Iterables2;
 import org.jmxtrans.agent.util.logging.Logger;
@@ -74,6 +75,43 @@ public class Query {
      */
     @Nullable
     private String type;
+    /**
+     * Maximum duration of the collection of this query, {@code null} if not limited.
+     *
+     * @see ParallelCollector
+     */
+    @Nullable
+    private Long collectTimeoutInMillis;
+    /**
+     * Interval of the collection of this query, {@code null} to use the interval of the {@link JmxTransExporter}.
+     */
+    @Nullable
+    private Integer collectIntervalInSeconds;
+    /**
+     * Shed first when the collections exceed their CPU budget, see {@link CollectThrottle}.
+     */
+    private boolean lowPriority;
+    /**
+     * Number of shards splitting the MBeans matching the {@link #objectName}, see {@link CollectionPlan.QueryGroup#getShards()}.
+     */
+    private int collectShards = 1;
+    /**
+     * Result names built by the {@link #resultNameStrategy}, by collected {@link ObjectName}, see {@link #getResultName(ObjectName, String, String, Integer)}.
+     * Least recently used entries are dropped beyond {@link #MAX_CACHED_OBJECT_NAMES} or the number of MBeans matching
+     * the query if greater, entries are evicted by {@link #evictResultNames(ObjectName)}. Guarded by itself.
+     */
+    private final Map<ObjectName, ResultNames> resultNamesByObjectName = new LinkedHashMap<ObjectName, ResultNames>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectName, ResultNames> eldest) {
+            return size() > Math.max(MAX_CACHED_OBJECT_NAMES, matchingObjectNamesCount);
+        }
+    };
+    private final static int MAX_CACHED_OBJECT_NAMES = 1024;
+    /**
+     * Number of MBeans matching the {@link #objectName} at the last collection
+     */
+    private volatile int matchingObjectNamesCount;
+    private final static int MAX_CACHED_POSITIONS = 256;
 
     /**
      * @see #Query(String, String, String, Integer, String, String, ResultNameStrategy)
@@ -123,21 +161,54 @@ public class Query {
         this.resultNameStrategy = Preconditions2.checkNotNull(resultNameStrategy, "resultNameStrategy");
     }
 
+    @Nonnull
+    public Query withCollectTimeoutInMillis(@Nullable Long collectTimeoutInMillis) {
+        this.collectTimeoutInMillis = collectTimeoutInMillis;
+        return this;
+    }
+
+    @Nonnull
+    public Query withCollectIntervalInSeconds(@Nullable Integer collectIntervalInSeconds) {
+        if (collectIntervalInSeconds != null && collectIntervalInSeconds < 1)
+            throw new IllegalArgumentException("Invalid collectIntervalInSeconds " + collectIntervalInSeconds + ", must be greater than 0");
+        this.collectIntervalInSeconds = collectIntervalInSeconds;
+        return this;
+    }
+
+    @Nonnull
+    public Query withCollectShards(int collectShards) {
+        if (collectShards < 1)
+            throw new IllegalArgumentException("Invalid collectShards " + collectShards + ", must be greater than 0");
+        this.collectShards = collectShards;
+        return this;
+    }
+
+    @Nonnull
+    public Query withLowPriority(boolean lowPriority) {
+        this.lowPriority = lowPriority;
+        return this;
+    }
+
     public void collectAndExport(@Nonnull MBeanServer mbeanServer, @Nonnull OutputWriter outputWriter) {
         if (resultNameStrategy == null)
             throw new IllegalStateException("resultNameStrategy is not defined, query object is not properly initialized");
 
         Set<ObjectName> objectNames = mbeanServer.queryNames(objectName, null);
+        setMatchingObjectNamesCount(objectNames.size());
 
         for (ObjectName on : objectNames) {
             try {
-                if (attribute == null || attribute.isEmpty()) {
-                    for (MBeanAttributeInfo mBeanAttributeInfo : mbeanServer.getMBeanInfo(on).getAttributes()) {
-                        collectAndExportAttribute(mbeanServer, outputWriter, on, mBeanAttributeInfo.getName());
-                    }
-
+                String[] attributeNames;
+                if (isAllAttributes()) {
+                    attributeNames = MBeanServerUtils.getAttributeNames(mbeanServer.getMBeanInfo(on));
                 } else {
-                    collectAndExportAttribute(mbeanServer, outputWriter, on, attribute);
+                    attributeNames = new String[]{attribute};
+                }
+                Map<String, Object> attributeValues = MBeanServerUtils.getAttributes(mbeanServer, on, attributeNames);
+                for (String attributeName : attributeNames) {
+                    if (attributeValues.containsKey(attributeName)) {
+                        exportAttributeValue(outputWriter, on, attributeName, attributeValues.get(attributeName));
+                    }
                 }
             } catch (Exception e) {
                 logger.log(Level.WARNING, "Exception collecting " + on + "#" + attribute + (key == null ? "" : "#" + key), e);
@@ -145,16 +216,24 @@ public class Query {
         }
     }
 
-    private void collectAndExportAttribute(MBeanServer mbeanServer, OutputWriter outputWriter, ObjectName objectName, String attribute) {
-        try {
-            Object attributeValue = null;
-            try {
-                attributeValue = mbeanServer.getAttribute(objectName, attribute);
-            } catch (Exception ex) {
-                logger.warning("Failed to fetch attribute for '" + objectName + "'#" + attribute + ", exception: " + ex.getMessage());
-                return;
-            }
+    /**
+     * @return {@code true} if this query collects all the attributes of the matching MBeans (no {@link #attribute} defined)
+     */
+    boolean isAllAttributes() {
+        return attribute == null || attribute.isEmpty();
+    }
 
+    /**
+     * Export the given value of an attribute of an MBean matching this query.
+     *
+     * @param outputWriter   the writer to export to
+     * @param objectName     the exact (non pattern) name of the MBean
+     * @param attribute      the attribute of the MBean
+     * @param attributeValue the value of the attribute as returned by the {@link MBeanServer}
+     * @return {@code false} if an exception was logged and ignored
+     */
+    boolean exportAttributeValue(@Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute, @Nullable Object attributeValue) {
+        try {
             Object value;
             if (attributeValue instanceof CompositeData) {
                 CompositeData compositeData = (CompositeData) attributeValue;
@@ -165,7 +244,7 @@ public class Query {
                         value = compositeData.get(key);
                         processAttributeValue(outputWriter, objectName, attribute, key, value);
                     }
-                    return;
+                    return true;
                 } else {
                     value = compositeData.get(key);
                 }
@@ -175,20 +254,61 @@ public class Query {
                 } else {
                     logger.warning("Ignore NON compositeData for specified key for '" + objectName +
                             "'#" + attribute + "#" + key + ": " + attributeValue);
-                    return;
-                }
-            }
-            if (value != null && value.getClass().isArray()) {
-                List valueAsList = new ArrayList();
-                for (int i = 0; i < Array.getLength(value); i++) {
-                    valueAsList.add(Array.get(value, i));
+                    return true;
                 }
-                value = valueAsList;
             }
-
             processAttributeValue(outputWriter, objectName, attribute, key, value);
+            return true;
         } catch (Exception e) {
             logger.log(Level.WARNING, "Exception collecting " + objectName + "#" + attribute + (key == null ? "" : "#" + key), e);
+            return false;
+        }
+    }
+
+    /**
+     * Equivalent of {@link #exportAttributeValue(OutputWriter, ObjectName, String, Object)} for an integral attribute.
+     */
+    void exportLongAttributeValue(@Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute, long attributeValue) throws IOException {
+        if (key != null) {
+            logger.warning("Ignore NON compositeData for specified key for '" + objectName +
+                    "'#" + attribute + "#" + key + ": " + attributeValue);
+            return;
+        }
+        OutputWriters.writeLongQueryResult(outputWriter, getResultName(objectName, attribute, null, null), type, attributeValue);
+    }
+
+    /**
+     * Equivalent of {@link #exportAttributeValue(OutputWriter, ObjectName, String, Object)} for a floating point attribute.
+     */
+    void exportDoubleAttributeValue(@Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute, double attributeValue) throws IOException {
+        if (key != null) {
+            logger.warning("Ignore NON compositeData for specified key for '" + objectName +
+                    "'#" + attribute + "#" + key + ": " + attributeValue);
+            return;
+        }
+        OutputWriters.writeDoubleQueryResult(outputWriter, getResultName(objectName, attribute, null, null), type, attributeValue);
+    }
+
+    /**
+     * Equivalent of {@link #exportAttributeValue(OutputWriter, ObjectName, String, Object)} for a
+     * {@link CompositeData} attribute with integral values.
+     *
+     * @param compositeDataKeys   the keys of the composite data, in the order of {@link CompositeType#keySet()}
+     * @param compositeDataValues the values of the keys
+     */
+    void exportCompositeLongAttributeValue(@Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute,
+                                           @Nonnull String[] compositeDataKeys, @Nonnull long[] compositeDataValues) throws IOException {
+        for (int i = 0; i < compositeDataKeys.length; i++) {
+            if (key == null || key.equals(compositeDataKeys[i])) {
+                String resultName = getResultName(objectName, attribute, compositeDataKeys[i], null);
+                OutputWriters.writeLongQueryResult(outputWriter, resultName, type, compositeDataValues[i]);
+                if (key != null) {
+                    return;
+                }
+            }
+        }
+        if (key != null) {
+            logger.warning("Exception collecting " + objectName + "#" + attribute + "#" + key + ": invalid key '" + key + "'");
         }
     }
 
@@ -204,24 +324,136 @@ public class Query {
     private void processAttributeValue(@Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute,
                                        @Nullable String compositeDataKey, Object value) throws IOException {
 
-        if (value instanceof Iterable) {
+        if (value != null && value.getClass().isArray()) {
+            processArrayAttributeValue(outputWriter, objectName, attribute, compositeDataKey, value);
+        } else if (value instanceof Iterable) {
             Iterable valueAsIterable = (Iterable) value;
-            if (position == null) {
+            if (position == null && value instanceof List && value instanceof RandomAccess) {
+                // get for all entries, without iterator
+                List valueAsList = (List) value;
+                for (int idx = 0; idx < valueAsList.size(); idx++) {
+                    String resultName = getResultName(objectName, attribute, compositeDataKey, idx);
+                    OutputWriters.writeQueryResult(outputWriter, resultName, type, valueAsList.get(idx));
+                }
+            } else if (position == null) {
                 // get for all entries
                 int idx = 0;
                 for (Object subValue : valueAsIterable) {
-                    String resultName = resultNameStrategy.getResultName(this, objectName, attribute, compositeDataKey, idx);
-                    outputWriter.writeQueryResult(resultName, type, subValue);
+                    String resultName = getResultName(objectName, attribute, compositeDataKey, idx);
+                    OutputWriters.writeQueryResult(outputWriter, resultName, type, subValue);
                     idx++;
                 }
             } else {
-                String resultName = resultNameStrategy.getResultName(this, objectName, attribute, compositeDataKey, position);
+                String resultName = getResultName(objectName, attribute, compositeDataKey, position);
                 value = Iterables2.get((Iterable) value, position);
-                outputWriter.writeQueryResult(resultName, type, value);
+                OutputWriters.writeQueryResult(outputWriter, resultName, type, value);
             }
         } else {
-            String resultName = resultNameStrategy.getResultName(this, objectName, attribute, compositeDataKey, null);
-            outputWriter.writeQueryResult(resultName, type, value);
+            String resultName = getResultName(objectName, attribute, compositeDataKey, null);
+            OutputWriters.writeQueryResult(outputWriter, resultName, type, value);
+        }
+    }
+
+    /**
+     * Export the elements of an array, or its element at {@link #position}, indexing the array in place. The elements
+     * of {@code long[]}, {@code int[]} and {@code double[]} arrays are exported without being boxed.
+     */
+    private void processArrayAttributeValue(@Nonnull OutputWriter outputWriter, @Nonnull ObjectName objectName, @Nonnull String attribute,
+                                            @Nullable String compositeDataKey, @Nonnull Object array) throws IOException {
+        int length = Array.getLength(array);
+        int from = 0;
+        int to = length;
+        if (position != null) {
+            if (position < 0 || position >= length)
+                throw new IndexOutOfBoundsException("Requested position must be between 0 and array length (" + length + "), '" + position + "' is invalid");
+            from = position;
+            to = position + 1;
+        }
+        for (int idx = from; idx < to; idx++) {
+            String resultName = getResultName(objectName, attribute, compositeDataKey, idx);
+            if (array instanceof long[]) {
+                OutputWriters.writeLongQueryResult(outputWriter, resultName, type, ((long[]) array)[idx]);
+            } else if (array instanceof int[]) {
+                OutputWriters.writeLongQueryResult(outputWriter, resultName, type, ((int[]) array)[idx]);
+            } else if (array instanceof double[]) {
+                OutputWriters.writeDoubleQueryResult(outputWriter, resultName, type, ((double[]) array)[idx]);
+            } else if (array instanceof Object[]) {
+                OutputWriters.writeQueryResult(outputWriter, resultName, type, ((Object[]) array)[idx]);
+            } else {
+                // other arrays of primitives
+                OutputWriters.writeQueryResult(outputWriter, resultName, type, Array.get(array, idx));
+            }
+        }
+    }
+
+    /**
+     * @return the name built by the {@link #resultNameStrategy}, cached as it doesn't change from one collection to the next
+     */
+    @Nonnull
+    private String getResultName(@Nonnull ObjectName objectName, @Nonnull String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+        if (position != null && (position < 0 || position >= MAX_CACHED_POSITIONS)) {
+            return resultNameStrategy.getResultName(this, objectName, attribute, compositeDataKey, position);
+        }
+        ResultNames resultNames;
+        synchronized (resultNamesByObjectName) {
+            resultNames = resultNamesByObjectName.get(objectName);
+            if (resultNames == null) {
+                resultNames = new ResultNames();
+                resultNamesByObjectName.put(objectName, resultNames);
+            }
+        }
+        return resultNames.get(objectName, attribute, compositeDataKey, position);
+    }
+
+    /**
+     * Evict the cached result names of the given MBean, typically because it is unregistered.
+     */
+    public void evictResultNames(@Nonnull ObjectName objectName) {
+        synchronized (resultNamesByObjectName) {
+            resultNamesByObjectName.remove(objectName);
+        }
+    }
+
+    /**
+     * @param matchingObjectNamesCount number of MBeans matching the {@link #objectName}, the result names of all of
+     *                                 them are cached
+     */
+    void setMatchingObjectNamesCount(int matchingObjectNamesCount) {
+        this.matchingObjectNamesCount = matchingObjectNamesCount;
+    }
+
+    /**
+     * Result names of a collected {@link ObjectName} by attribute, composite data key and position.
+     */
+    private class ResultNames {
+        /**
+         * Names by attribute, by composite data key ({@code null} key if none), by position + 1 ({@code 0} if no position)
+         */
+        private final Map<String, Map<String, String[]>> namesByAttribute = new HashMap<String, Map<String, String[]>>();
+
+        @Nonnull
+        synchronized String get(@Nonnull ObjectName objectName, @Nonnull String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            Map<String, String[]> namesByKey = namesByAttribute.get(attribute);
+            if (namesByKey == null) {
+                namesByKey = new HashMap<String, String[]>();
+                namesByAttribute.put(attribute, namesByKey);
+            }
+            int index = position == null ? 0 : position + 1;
+            String[] names = namesByKey.get(compositeDataKey);
+            if (names == null || names.length <= index) {
+                String[] newNames = new String[Math.min(Math.max(index + 1, names == null ? 1 : names.length * 2), MAX_CACHED_POSITIONS + 1)];
+                if (names != null) {
+                    System.arraycopy(names, 0, newNames, 0, names.length);
+                }
+                names = newNames;
+                namesByKey.put(compositeDataKey, names);
+            }
+            String name = names[index];
+            if (name == null) {
+                name = resultNameStrategy.getResultName(Query.this, objectName, attribute, compositeDataKey, position);
+                names[index] = name;
+            }
+            return name;
         }
     }
 
@@ -232,6 +464,10 @@ public class Query {
                 ", resultAlias='" + resultAlias + '\'' +
                 ", attribute='" + attribute + '\'' +
                 ", key='" + key + '\'' +
+                (collectTimeoutInMillis == null ? "" : ", collectTimeoutInMillis=" + collectTimeoutInMillis) +
+                (collectIntervalInSeconds == null ? "" : ", collectIntervalInSeconds=" + collectIntervalInSeconds) +
+                (lowPriority ? ", lowPriority=true" : "") +
+                (collectShards == 1 ? "" : ", collectShards=" + collectShards) +
                 '}';
     }
 
@@ -264,4 +500,22 @@ public class Query {
     public String getType() {
         return type;
     }
+
+    @Nullable
+    public Long getCollectTimeoutInMillis() {
+        return collectTimeoutInMillis;
+    }
+
+    @Nullable
+    public Integer getCollectIntervalInSeconds() {
+        return collectIntervalInSeconds;
+    }
+
+    public boolean isLowPriority() {
+        return lowPriority;
+    }
+
+    public int getCollectShards() {
+        return collectShards;
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+
+/**
+ * {@link Collectable} reporting what it actually collected, including the exceptions it logs and ignores to not
+ * prevent the collection of the other MBeans.
+ *
+ * @see InstrumentedCollectable
+ */
+public interface ReportingCollectable extends Collectable {
+
+    /**
+     * Same as {@link #collectAndExport(MBeanIndex, OutputWriter)}, reporting the collection in the given {@code report}.
+     */
+    void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter, @Nonnull CollectReport report) throws Exception;
+
+    /**
+     * Mutable report of a collection
+     */
+    class CollectReport {
+        int objectNamesCount;
+        int exceptionsCount;
+
+        /**
+         * @return the number of MBeans collected
+         */
+        public int getObjectNamesCount() {
+            return objectNamesCount;
+        }
+
+        /**
+         * @return the number of exceptions logged and ignored
+         */
+        public int getExceptionsCount() {
+            return exceptionsCount;
+        }
+
+        @Override
+        public String toString() {
+            return "CollectReport{" +
+                    "objectNamesCount=" + objectNamesCount +
+                    ", exceptionsCount=" + exceptionsCount +
+                    '}';
+        }
+    }
+}
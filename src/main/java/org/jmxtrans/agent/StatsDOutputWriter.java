@@ -38,7 +38,7 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWriter {
+public class StatsDOutputWriter extends AbstractOutputWriter implements NumericOutputWriter {
 
     public final static String SETTING_HOST = "host";
     public final static String SETTING_PORT = "port";
@@ -110,7 +110,28 @@ public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWr
 
     @Override
     public synchronized void writeQueryResult(String metricName, String metricType, Object value) throws IOException {
-        String stats = metricNamePrefix + "." + metricName + ":" + value + "|c\n";
+        send(newStat(metricName).append(value));
+    }
+
+    @Override
+    public synchronized void writeLongQueryResult(@Nonnull String metricName, String metricType, long value) throws IOException {
+        send(newStat(metricName).append(value));
+    }
+
+    @Override
+    public synchronized void writeDoubleQueryResult(@Nonnull String metricName, String metricType, double value) throws IOException {
+        send(newStat(metricName).append(value));
+    }
+
+    /**
+     * @return {@code "<prefix>.<metricName>:"}, to be completed with the value
+     */
+    private StringBuilder newStat(String metricName) {
+        return new StringBuilder(metricNamePrefix.length() + metricName.length() + 32).append(metricNamePrefix).append('.').append(metricName).append(':');
+    }
+
+    private void send(StringBuilder stat) {
+        String stats = stat.append("|c\n").toString();
         if (logger.isLoggable(getDebugLevel())) {
             logger.log(getDebugLevel(), "Sending msg: " + stats);
         }
@@ -34,7 +34,7 @@ import java.util.Map;
  *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class SummarizingConsoleOutputWriter implements OutputWriter {
+public class SummarizingConsoleOutputWriter implements CycleAwareOutputWriter {
     private final OutputWriter delegate = new PerMinuteSummarizerOutputWriter(new ConsoleOutputWriter());
 
     @Override
@@ -52,6 +52,11 @@ public class SummarizingConsoleOutputWriter implements OutputWriter {
         delegate.preCollect();
     }
 
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        OutputWriters.preCollect(delegate, cycle);
+    }
+
     @Override
     public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
         delegate.writeQueryResult(metricName, metricType, value);
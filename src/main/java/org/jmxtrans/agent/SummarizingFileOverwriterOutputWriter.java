@@ -34,7 +34,7 @@ import java.util.Map;
  *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class SummarizingFileOverwriterOutputWriter implements OutputWriter {
+public class SummarizingFileOverwriterOutputWriter implements CycleAwareOutputWriter {
 
     @Nonnull
     private final OutputWriter delegate;
@@ -58,6 +58,11 @@ public class SummarizingFileOverwriterOutputWriter implements OutputWriter {
         delegate.preCollect();
     }
 
+    @Override
+    public void preCollect(@Nonnull CollectCycle cycle) throws IOException {
+        OutputWriters.preCollect(delegate, cycle);
+    }
+
     @Override
     public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
         delegate.writeQueryResult(metricName, metricType, value);
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Helpers on top of {@link MBeanServer}.
+ */
+public class MBeanServerUtils {
+
+    private final static Logger logger = Logger.getLogger(MBeanServerUtils.class.getName());
+
+    private MBeanServerUtils() {
+
+    }
+
+    /**
+     * Fetch the given attributes of the given MBean with a single {@link MBeanServer#getAttributes(ObjectName, String[])}
+     * call. Attributes missing from the returned {@link AttributeList} (e.g. because their getter threw an exception)
+     * are then fetched one by one with {@link MBeanServer#getAttribute(ObjectName, String)}.
+     *
+     * @param mbeanServer    the MBean server to query
+     * @param objectName     the exact (non pattern) name of the MBean
+     * @param attributeNames the attributes to fetch
+     * @return the value of the successfully fetched attributes indexed by attribute name. Attributes that could not be
+     * fetched are absent from the returned map (a warning is logged), attributes whose value is {@code null} are
+     * present with a {@code null} value.
+     * @throws InstanceNotFoundException if the MBean is no longer registered
+     */
+    @Nonnull
+    public static Map<String, Object> getAttributes(@Nonnull MBeanServer mbeanServer, @Nonnull ObjectName objectName,
+                                                    @Nonnull String[] attributeNames) throws InstanceNotFoundException {
+        Map<String, Object> result = new HashMap<String, Object>(attributeNames.length * 2);
+        if (attributeNames.length == 0) {
+            return result;
+        }
+        if (attributeNames.length > 1) {
+            try {
+                AttributeList attributes = mbeanServer.getAttributes(objectName, attributeNames);
+                for (Attribute attribute : attributes.asList()) {
+                    result.put(attribute.getName(), attribute.getValue());
+                }
+            } catch (ReflectionException e) {
+                if (logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Exception bulk fetching attributes of '" + objectName + "', fallback to one by one fetch", e);
+            } catch (RuntimeException e) {
+                if (logger.isLoggable(Level.FINE))
+                    logger.log(Level.FINE, "Exception bulk fetching attributes of '" + objectName + "', fallback to one by one fetch", e);
+            }
+            if (result.size() == attributeNames.length) {
+                return result;
+            }
+        }
+        // partial result, fetch the missing attributes one by one
+        for (String attributeName : attributeNames) {
+            if (result.containsKey(attributeName)) {
+                continue;
+            }
+            try {
+                result.put(attributeName, mbeanServer.getAttribute(objectName, attributeName));
+            } catch (InstanceNotFoundException e) {
+                throw e;
+            } catch (Exception e) {
+                logger.warning("Failed to fetch attribute for '" + objectName + "'#" + attributeName + ", exception: " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the names of the attributes declared by the given {@link MBeanInfo}
+     */
+    @Nonnull
+    public static String[] getAttributeNames(@Nonnull MBeanInfo mbeanInfo) {
+        MBeanAttributeInfo[] attributeInfos = mbeanInfo.getAttributes();
+        String[] result = new String[attributeInfos.length];
+        for (int i = 0; i < attributeInfos.length; i++) {
+            result[i] = attributeInfos[i].getName();
+        }
+        return result;
+    }
+}
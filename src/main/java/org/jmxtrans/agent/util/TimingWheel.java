@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel of periodic elements.
+ *
+ * Each element is stored in the slot of its next due tick (modulo the size of the wheel) so that each {@link #tick()}
+ * only looks at the elements of one slot. An element with a period of {@code n} ticks is due at each tick multiple of
+ * {@code n}, elements sharing the same period are thus always due together.
+ *
+ * Not thread safe.
+ *
+ * @param <E> type of the scheduled elements
+ */
+public class TimingWheel<E> {
+
+    private final List<Entry<E>>[] slots;
+    private long currentTick;
+    private int scheduledCount;
+
+    public TimingWheel(int size) {
+        this(size, 0);
+    }
+
+    /**
+     * @param currentTick number of the first tick, e.g. to align the ticks on an absolute clock
+     */
+    public TimingWheel(int size, long currentTick) {
+        if (size < 1)
+            throw new IllegalArgumentException("Invalid size " + size + ", must be greater than 0");
+        if (currentTick < 0)
+            throw new IllegalArgumentException("Invalid currentTick " + currentTick + ", must be positive");
+        this.currentTick = currentTick;
+        this.slots = newSlots(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayList<Entry<E>>();
+        }
+    }
+
+    /**
+     * Schedule the given element every {@code periodInTicks}, starting at the next tick multiple of {@code periodInTicks}.
+     */
+    public void schedule(@Nonnull E element, long periodInTicks) {
+        schedule(element, periodInTicks, 0);
+    }
+
+    /**
+     * Schedule the given element every {@code periodInTicks}, starting at the next tick equal to {@code offsetInTicks}
+     * modulo {@code periodInTicks}, e.g. to spread elements sharing the same period.
+     */
+    public void schedule(@Nonnull E element, long periodInTicks, long offsetInTicks) {
+        if (periodInTicks < 1)
+            throw new IllegalArgumentException("Invalid period " + periodInTicks + ", must be greater than 0");
+        if (offsetInTicks < 0 || offsetInTicks >= periodInTicks)
+            throw new IllegalArgumentException("Invalid offset " + offsetInTicks + ", must be between 0 and the period " + periodInTicks);
+        long dueTick = (currentTick - offsetInTicks + periodInTicks - 1) / periodInTicks * periodInTicks + offsetInTicks;
+        add(new Entry<E>(element, periodInTicks, dueTick, scheduledCount++));
+    }
+
+    /**
+     * Advance the wheel of one tick.
+     *
+     * @return the elements due at the current tick, in their scheduling order
+     */
+    @Nonnull
+    public List<E> tick() {
+        return advanceTo(currentTick);
+    }
+
+    /**
+     * Advance the wheel up to the given tick, skipping the ticks between the current tick and the given tick.
+     *
+     * @return the elements due at the given tick or at one of the skipped ticks, each element being returned
+     * only once, in their scheduling order. Empty if the given tick is before the current tick.
+     */
+    @Nonnull
+    public List<E> advanceTo(long tick) {
+        List<Entry<E>> dueEntries = new ArrayList<Entry<E>>();
+        List<Entry<E>> rescheduledEntries = new ArrayList<Entry<E>>();
+        for (; currentTick <= tick; currentTick++) {
+            List<Entry<E>> slot = slots[slotIndex(currentTick)];
+            for (Iterator<Entry<E>> it = slot.iterator(); it.hasNext(); ) {
+                Entry<E> entry = it.next();
+                if (entry.dueTick == currentTick) {
+                    it.remove();
+                    if (!entry.due) {
+                        entry.due = true;
+                        dueEntries.add(entry);
+                    }
+                    rescheduledEntries.add(entry);
+                }
+            }
+            for (Entry<E> entry : rescheduledEntries) {
+                entry.dueTick += entry.periodInTicks;
+                add(entry);
+            }
+            rescheduledEntries.clear();
+        }
+        Collections.sort(dueEntries);
+        List<E> result = new ArrayList<E>(dueEntries.size());
+        for (Entry<E> entry : dueEntries) {
+            entry.due = false;
+            result.add(entry.element);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of the next tick
+     */
+    public long getCurrentTick() {
+        return currentTick;
+    }
+
+    private void add(@Nonnull Entry<E> entry) {
+        slots[slotIndex(entry.dueTick)].add(entry);
+    }
+
+    @Nonnull
+    private static <E> List<Entry<E>>[] newSlots(int size) {
+        // generic array creation, the array never escapes with another type of element
+        @SuppressWarnings("unchecked")
+        List<Entry<E>>[] slots = (List<Entry<E>>[]) new List<?>[size];
+        return slots;
+    }
+
+    private int slotIndex(long tick) {
+        return (int) (tick % slots.length);
+    }
+
+    @Override
+    public String toString() {
+        return "TimingWheel{" +
+                "size=" + slots.length +
+                ", currentTick=" + currentTick +
+                '}';
+    }
+
+    private static class Entry<E> implements Comparable<Entry<E>> {
+        final E element;
+        final long periodInTicks;
+        final int sequence;
+        long dueTick;
+        /**
+         * already returned by the current {@link #advanceTo(long)}
+         */
+        boolean due;
+
+        Entry(E element, long periodInTicks, long dueTick, int sequence) {
+            this.element = element;
+            this.periodInTicks = periodInTicks;
+            this.dueTick = dueTick;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry<E> other) {
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
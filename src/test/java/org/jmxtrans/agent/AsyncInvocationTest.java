@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AsyncInvocationTest {
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final MBeanIndex mbeanIndex = new MBeanIndex(ManagementFactory.getPlatformMBeanServer());
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void last_result_is_written_until_a_fresh_one_arrives() throws Exception {
+        BlockingInvocation invocation = new BlockingInvocation();
+        AsyncInvocation asyncInvocation = new AsyncInvocation(invocation, executorService);
+
+        MetricBatch results = new MetricBatch();
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        // the invocation is still running, nothing to write yet
+        assertThat(results.size(), is(0));
+
+        invocation.complete();
+        assertThat(invocation.awaitInvocations(1), is(true));
+        awaitNotRunning(asyncInvocation, results);
+        assertThat(results.size(), is(1));
+        assertThat(results.getValue(0), is((Object) 1));
+
+        // the second invocation is blocked, the result of the first one is written again
+        results.clear();
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        assertThat(results.size(), is(1));
+        assertThat(results.getValue(0), is((Object) 1));
+        invocation.complete();
+    }
+
+    @Test
+    public void timed_out_invocation_is_cancelled_and_not_resubmitted_while_blocked() throws Exception {
+        BlockingInvocation invocation = new BlockingInvocation();
+        invocation.withCollectTimeoutInMillis(1L);
+        invocation.interruptible = false;
+        AsyncInvocation asyncInvocation = new AsyncInvocation(invocation, executorService);
+
+        MetricBatch results = new MetricBatch();
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        Thread.sleep(10);
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        assertThat(asyncInvocation.getTimeoutsCount(), is(1L));
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        assertThat(invocation.startedCount.get(), is(1));
+        assertThat(results.size(), is(0));
+
+        // the late result of the cancelled invocation is not published
+        invocation.complete();
+        assertThat(invocation.awaitInvocations(1), is(true));
+        Thread.sleep(10);
+        results.clear();
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        assertThat(results.size(), is(0));
+        invocation.complete();
+    }
+
+    @Test
+    public void failed_invocation_keeps_the_last_good_results() throws Exception {
+        BlockingInvocation invocation = new BlockingInvocation();
+        AsyncInvocation asyncInvocation = new AsyncInvocation(invocation, executorService);
+
+        MetricBatch results = new MetricBatch();
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        invocation.complete();
+        assertThat(invocation.awaitInvocations(1), is(true));
+        awaitNotRunning(asyncInvocation, results);
+        assertThat(results.getValue(0), is((Object) 1));
+
+        // the second invocation, submitted by awaitNotRunning, fails
+        invocation.failing = true;
+        invocation.complete();
+        assertThat(invocation.awaitInvocations(1), is(true));
+        Thread.sleep(10);
+        results.clear();
+        asyncInvocation.collectAndExport(mbeanIndex, results);
+        assertThat(results.size(), is(1));
+        assertThat(results.getValue(0), is((Object) 1));
+        invocation.complete();
+    }
+
+    /**
+     * Wait for the current invocation to complete, collecting meanwhile
+     */
+    private void awaitNotRunning(AsyncInvocation asyncInvocation, MetricBatch results) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            results.clear();
+            asyncInvocation.collectAndExport(mbeanIndex, results);
+            if (!results.isEmpty())
+                return;
+            Thread.sleep(10);
+        }
+    }
+
+    private static class BlockingInvocation extends Invocation {
+        final Semaphore completions = new Semaphore(0);
+        final Semaphore invocations = new Semaphore(0);
+        final AtomicInteger startedCount = new AtomicInteger();
+        volatile boolean interruptible = true;
+
+        BlockingInvocation() {
+            super("java.lang:type=Memory", "gc", new Object[0], new String[0], "jvm.gc");
+        }
+
+        void complete() {
+            completions.release();
+        }
+
+        boolean awaitInvocations(int count) throws InterruptedException {
+            return invocations.tryAcquire(count, 5, TimeUnit.SECONDS);
+        }
+
+        volatile boolean failing;
+
+        @Override
+        public boolean invoke(MBeanIndex mbeanIndex, OutputWriter outputWriter) {
+            int invocationNumber = startedCount.incrementAndGet();
+            if (interruptible) {
+                try {
+                    completions.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            } else {
+                completions.acquireUninterruptibly();
+            }
+            try {
+                if (!failing) {
+                    outputWriter.writeInvocationResult(resultAlias, invocationNumber);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                invocations.release();
+            }
+            return !failing;
+        }
+    }
+}
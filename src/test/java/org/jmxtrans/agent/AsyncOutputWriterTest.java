@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class AsyncOutputWriterTest {
+
+    @Test
+    public void calls_are_replayed_in_order_on_writer_thread() throws Exception {
+        final List<String> calls = new CopyOnWriteArrayList<String>();
+        final Thread collectingThread = Thread.currentThread();
+        OutputWriter delegate = new AbstractOutputWriter() {
+            @Override
+            public void preCollect() throws IOException {
+                calls.add("preCollect");
+            }
+
+            @Override
+            public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+                assertThat(Thread.currentThread(), not(collectingThread));
+                calls.add(metricName + "=" + value);
+            }
+
+            @Override
+            public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+                calls.add(invocationName + "=" + value);
+            }
+
+            @Override
+            public void postCollect() throws IOException {
+                calls.add("postCollect");
+            }
+        };
+        AsyncOutputWriter asyncOutputWriter = new AsyncOutputWriter(delegate,
+                new MetricRingBuffer(16, MetricRingBuffer.OverflowPolicy.BLOCK, 1000), Executors.defaultThreadFactory());
+        asyncOutputWriter.start();
+
+        asyncOutputWriter.preCollect();
+        asyncOutputWriter.writeInvocationResult("gc", null);
+        asyncOutputWriter.writeQueryResult("threads", null, 12);
+        asyncOutputWriter.postCollect();
+
+        assertThat(asyncOutputWriter.stop(10, TimeUnit.SECONDS), is(true));
+        assertThat(calls, contains("preCollect", "gc=null", "threads=12", "postCollect"));
+    }
+
+    @Test
+    public void stalled_delegate_does_not_block_collection() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputWriter delegate = new AbstractOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+            }
+        };
+        AsyncOutputWriter asyncOutputWriter = new AsyncOutputWriter(delegate,
+                new MetricRingBuffer(8, MetricRingBuffer.OverflowPolicy.DROP_OLDEST, 0), Executors.defaultThreadFactory());
+        asyncOutputWriter.start();
+        try {
+            long startInNanos = System.nanoTime();
+            for (int i = 0; i < 100; i++) {
+                asyncOutputWriter.writeQueryResult("metric-" + i, null, i);
+            }
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startInNanos), lessThan(1000L));
+            assertThat(asyncOutputWriter.getRingBuffer().getDroppedCount(), greaterThan(0L));
+        } finally {
+            release.countDown();
+            asyncOutputWriter.stop(10, TimeUnit.SECONDS);
+        }
+    }
+}
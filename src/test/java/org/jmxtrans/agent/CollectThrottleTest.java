@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CollectThrottleTest {
+
+    private final static long PERIOD = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    public void overload_sheds_then_stretches_up_to_max() {
+        CollectThrottle throttle = new CollectThrottle(1, 4);
+        // 1% of 10s is 100ms
+        throttle.record(TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(60), PERIOD, true);
+        assertThat(throttle.isShedding(), is(false));
+        assertThat(throttle.getStretchFactor(), is(1));
+
+        long overloadedCpu = TimeUnit.MILLISECONDS.toNanos(500);
+        throttle.record(overloadedCpu, overloadedCpu, PERIOD, true);
+        assertThat(throttle.isShedding(), is(true));
+        assertThat(throttle.getStretchFactor(), is(1));
+
+        throttle.record(overloadedCpu, overloadedCpu, PERIOD, true);
+        assertThat(throttle.getStretchFactor(), is(2));
+        throttle.record(overloadedCpu, overloadedCpu, PERIOD, true);
+        assertThat(throttle.getStretchFactor(), is(4));
+        throttle.record(overloadedCpu, overloadedCpu, PERIOD, true);
+        assertThat(throttle.getStretchFactor(), is(4));
+    }
+
+    @Test
+    public void overrunning_the_period_stretches_the_interval() {
+        CollectThrottle throttle = new CollectThrottle(50, 8);
+        throttle.record(TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(12), PERIOD, false);
+        assertThat(throttle.isShedding(), is(false));
+        assertThat(throttle.getStretchFactor(), is(2));
+    }
+
+    @Test
+    public void recovery_is_gradual() {
+        CollectThrottle throttle = new CollectThrottle(1, 8);
+        long overloadedCpu = TimeUnit.MILLISECONDS.toNanos(500);
+        throttle.record(overloadedCpu, overloadedCpu, PERIOD, true);
+        throttle.record(overloadedCpu, overloadedCpu, PERIOD, true);
+        throttle.record(overloadedCpu, overloadedCpu, PERIOD, true);
+        assertThat(throttle.getStretchFactor(), is(4));
+
+        long lightCpu = TimeUnit.MILLISECONDS.toNanos(10);
+        int expectedStretchFactor = 4;
+        while (expectedStretchFactor > 1) {
+            for (int i = 1; i < CollectThrottle.RECOVERY_CYCLES; i++) {
+                throttle.record(lightCpu, lightCpu, PERIOD, true);
+                assertThat(throttle.getStretchFactor(), is(expectedStretchFactor));
+            }
+            throttle.record(lightCpu, lightCpu, PERIOD, true);
+            expectedStretchFactor--;
+            assertThat(throttle.getStretchFactor(), is(expectedStretchFactor));
+        }
+        assertThat(throttle.isShedding(), is(true));
+        for (int i = 0; i < CollectThrottle.RECOVERY_CYCLES; i++) {
+            throttle.record(lightCpu, lightCpu, PERIOD, true);
+        }
+        assertThat(throttle.isShedding(), is(false));
+    }
+}
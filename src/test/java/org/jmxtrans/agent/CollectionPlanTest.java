@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class CollectionPlanTest {
+    static MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    static ObjectName mockObjectName;
+    ResultNameStrategy resultNameStrategy = new ResultNameStrategyImpl();
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        mockObjectName = new ObjectName("test:type=Mock,name=collectionPlan");
+        mbeanServer.registerMBean(new Mock("PS Eden Space", 87359488L), mockObjectName);
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        mbeanServer.unregisterMBean(mockObjectName);
+    }
+
+    @Test
+    public void queries_on_same_object_name_are_grouped() throws Exception {
+        CollectionPlan plan = new CollectionPlan(Arrays.asList(
+                new Query("test:type=Mock,name=collectionPlan", "CollectionUsageThreshold", "threshold", resultNameStrategy),
+                new Query("java.lang:type=Threading", "ThreadCount", "threads", resultNameStrategy),
+                new Query("test:type=Mock,name=collectionPlan", "Name", "name", resultNameStrategy)));
+
+        assertThat(plan.getQueryGroups().size(), is(2));
+        assertThat(plan.getQueryGroups().get(0).getObjectName(), is(mockObjectName));
+        assertThat(plan.getQueryGroups().get(0).getQueries().size(), is(2));
+
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        plan.collectAndExport(mbeanServer, outputWriter);
+        assertThat(outputWriter.resultsByName.get("threshold"), is((Object) 0L));
+        assertThat(outputWriter.resultsByName.get("name"), is((Object) "PS Eden Space"));
+        assertThat(outputWriter.resultsByName.get("threads"), notNullValue());
+    }
+
+    @Test
+    public void query_with_collect_timeout_is_not_grouped() throws Exception {
+        CollectionPlan plan = new CollectionPlan(Arrays.asList(
+                new Query("test:type=Mock,name=collectionPlan", "CollectionUsageThreshold", "threshold", resultNameStrategy),
+                new Query("test:type=Mock,name=collectionPlan", "Name", "name", resultNameStrategy).withCollectTimeoutInMillis(500L),
+                new Query("test:type=Mock,name=collectionPlan", "Usage", "used", null, null, "usage.used", resultNameStrategy)));
+
+        assertThat(plan.getQueryGroups().size(), is(2));
+        assertThat(plan.getQueryGroups().get(0).getQueries().size(), is(2));
+        assertThat(plan.getQueryGroups().get(0).getCollectTimeoutInMillis(), nullValue());
+        assertThat(plan.getQueryGroups().get(1).getQueries().size(), is(1));
+        assertThat(plan.getQueryGroups().get(1).getCollectTimeoutInMillis(), is(500L));
+    }
+
+    @Test
+    public void missing_attribute_does_not_prevent_other_attributes_collection() throws Exception {
+        CollectionPlan plan = new CollectionPlan(Arrays.asList(
+                new Query("test:type=Mock,name=collectionPlan", "DoesNotExist", "doesNotExist", resultNameStrategy),
+                new Query("test:type=Mock,name=collectionPlan", "Usage", "used", null, null, "usage.used", resultNameStrategy)));
+
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        plan.collectAndExport(mbeanServer, outputWriter);
+        assertThat(outputWriter.resultsByName.containsKey("doesNotExist"), is(false));
+        assertThat(outputWriter.resultsByName.get("usage.used"), is((Object) 87359488L));
+    }
+
+    @Test
+    public void sharded_query_group_follows_mbean_registrations() throws Exception {
+        ObjectName objectName1 = new ObjectName("test:type=ShardedMock,name=registration-1");
+        ObjectName objectName2 = new ObjectName("test:type=ShardedMock,name=registration-2");
+        Query query = new Query("test:type=ShardedMock,*", "CollectionUsageThreshold", "sharded.%name%", resultNameStrategy)
+                .withCollectShards(2);
+        List<Collectable> shards = new CollectionPlan(Arrays.asList(query)).getQueryGroups().get(0).getShards();
+        MBeanIndex mbeanIndex = new MBeanIndex(mbeanServer);
+        mbeanIndex.start();
+        mbeanServer.registerMBean(new Mock("registration-1", 1L), objectName1);
+        try {
+            QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+            for (Collectable shard : shards) {
+                shard.collectAndExport(mbeanIndex, outputWriter);
+            }
+            assertThat(outputWriter.resultsByName.keySet(), contains("sharded.registration-1"));
+
+            mbeanServer.registerMBean(new Mock("registration-2", 2L), objectName2);
+            outputWriter = new QueryTest.MockOutputWriter();
+            for (Collectable shard : shards) {
+                shard.collectAndExport(mbeanIndex, outputWriter);
+            }
+            assertThat(outputWriter.resultsByName.keySet(), containsInAnyOrder("sharded.registration-1", "sharded.registration-2"));
+
+            mbeanServer.unregisterMBean(objectName1);
+            outputWriter = new QueryTest.MockOutputWriter();
+            for (Collectable shard : shards) {
+                shard.collectAndExport(mbeanIndex, outputWriter);
+            }
+            assertThat(outputWriter.resultsByName.keySet(), contains("sharded.registration-2"));
+        } finally {
+            mbeanIndex.stop();
+            for (ObjectName objectName : Arrays.asList(objectName1, objectName2)) {
+                if (mbeanServer.isRegistered(objectName))
+                    mbeanServer.unregisterMBean(objectName);
+            }
+        }
+    }
+
+    @Test
+    public void ignored_exceptions_are_reported() throws Exception {
+        CollectionPlan plan = new CollectionPlan(Arrays.asList(
+                new Query("test:type=Mock,name=collectionPlan", "CollectionUsageThreshold", "threshold", resultNameStrategy),
+                new Query("test:type=Mock,name=collectionPlan", "Usage", "used", null, null, "usage.used", resultNameStrategy)));
+        CollectionPlan.QueryGroup queryGroup = plan.getQueryGroups().get(0);
+
+        ReportingCollectable.CollectReport report = new ReportingCollectable.CollectReport();
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                if (name.equals("threshold"))
+                    throw new IOException("failing write of " + name);
+                super.writeQueryResult(name, type, value);
+            }
+        };
+        queryGroup.collectAndExport(new MBeanIndex(mbeanServer), outputWriter, report);
+        assertThat(outputWriter.resultsByName.get("usage.used"), is((Object) 87359488L));
+        assertThat(report.getObjectNamesCount(), is(1));
+        assertThat(report.getExceptionsCount(), is(1));
+    }
+
+    @Test
+    public void all_attributes_query_is_merged_with_single_attribute_query() throws Exception {
+        CollectionPlan plan = new CollectionPlan(Arrays.asList(
+                new Query("test:type=Mock,name=collectionPlan", null, resultNameStrategy),
+                new Query("test:type=Mock,name=collectionPlan", "CollectionUsageThreshold", "threshold", resultNameStrategy)));
+
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        plan.collectAndExport(mbeanServer, outputWriter);
+        // 24 results for all the attributes (see QueryTest) + the aliased one
+        assertThat(outputWriter.resultsByName.size(), is(25));
+    }
+
+    @Test
+    public void platform_mxbeans_fast_path_keeps_generic_result_names() throws Exception {
+        List<Query> queries = Arrays.asList(
+                new Query("java.lang:type=Memory", "HeapMemoryUsage", resultNameStrategy),
+                new Query("java.lang:type=Memory", "NonHeapMemoryUsage", "used", null, null, null, resultNameStrategy),
+                new Query("java.lang:type=Threading", "ThreadCount", resultNameStrategy),
+                new Query("java.lang:type=GarbageCollector,*", "CollectionCount", resultNameStrategy),
+                new Query("java.lang:type=MemoryPool,*", "CollectionUsage", resultNameStrategy),
+                new Query("java.lang:type=OperatingSystem", "SystemLoadAverage", resultNameStrategy),
+                new Query("java.lang:type=Runtime", "VmName", resultNameStrategy));
+
+        QueryTest.MockOutputWriter genericOutputWriter = new QueryTest.MockOutputWriter();
+        for (Query query : queries) {
+            query.collectAndExport(mbeanServer, genericOutputWriter);
+        }
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        new CollectionPlan(queries).collectAndExport(mbeanServer, outputWriter);
+
+        assertThat(outputWriter.resultsByName.keySet(), is(genericOutputWriter.resultsByName.keySet()));
+        assertThat(outputWriter.resultsByName, hasKey("java_lang.type__Memory.HeapMemoryUsage.used"));
+        assertThat(outputWriter.resultsByName, hasKey("java_lang.type__Memory.NonHeapMemoryUsage.used"));
+        assertThat(outputWriter.resultsByName, not(hasKey("java_lang.type__Memory.NonHeapMemoryUsage.max")));
+        assertThat(outputWriter.resultsByName.get("java_lang.type__Threading.ThreadCount"), instanceOf(Long.class));
+        assertThat(outputWriter.resultsByName, hasKey("java_lang.type__Runtime.VmName"));
+    }
+
+    @Test
+    public void sharded_query_group_collects_each_mbean_once() throws Exception {
+        int mbeansCount = 20;
+        for (int i = 0; i < mbeansCount; i++) {
+            mbeanServer.registerMBean(new Mock("shard-" + i, i), new ObjectName("test:type=ShardedMock,name=shard-" + i));
+        }
+        try {
+            Query query = new Query("test:type=ShardedMock,*", "CollectionUsageThreshold", "sharded.%name%", resultNameStrategy)
+                    .withCollectShards(4);
+            CollectionPlan.QueryGroup queryGroup = new CollectionPlan(Arrays.asList(query)).getQueryGroups().get(0);
+            List<Collectable> shards = queryGroup.getShards();
+            assertThat(shards.size(), is(4));
+
+            MBeanIndex mbeanIndex = new MBeanIndex(mbeanServer);
+            Set<String> collectedNames = new HashSet<String>();
+            int collectedCount = 0;
+            for (Collectable shard : shards) {
+                QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+                ReportingCollectable.CollectReport report = new ReportingCollectable.CollectReport();
+                ((ReportingCollectable) shard).collectAndExport(mbeanIndex, outputWriter, report);
+                assertThat(outputWriter.resultsByName.size(), lessThan(mbeansCount));
+                assertThat(report.getObjectNamesCount(), is(outputWriter.resultsByName.size()));
+                collectedNames.addAll(outputWriter.resultsByName.keySet());
+                collectedCount += outputWriter.resultsByName.size();
+            }
+            assertThat(collectedNames.size(), is(mbeansCount));
+            assertThat(collectedCount, is(mbeansCount));
+            assertThat(CollectionPlan.QueryGroup.shardOf(new ObjectName("test:type=ShardedMock,name=shard-7"), 4),
+                    is(CollectionPlan.QueryGroup.shardOf(new ObjectName("test:name=shard-7,type=ShardedMock"), 4)));
+        } finally {
+            for (int i = 0; i < mbeansCount; i++) {
+                mbeanServer.unregisterMBean(new ObjectName("test:type=ShardedMock,name=shard-" + i));
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DeltaSuppressingOutputWriterTest {
+
+    @Test
+    public void unchanged_values_are_suppressed_until_heartbeat() throws Exception {
+        MetricBatch received = new MetricBatch();
+        DeltaSuppressingOutputWriter writer = new DeltaSuppressingOutputWriter(received);
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(DeltaSuppressingOutputWriter.SETTING_HEARTBEAT_CYCLES, "3");
+        writer.postConstruct(settings);
+
+        int[] expectedSizes = {3, 1, 1, 3};
+        for (int cycle = 0; cycle < expectedSizes.length; cycle++) {
+            received.clear();
+            writer.preCollect();
+            writer.writeLongQueryResult("threads", "gauge", 12);
+            writer.writeDoubleQueryResult("load", null, cycle == 1 ? 1.5 : 0.5);
+            writer.writeQueryResult("name", null, "server");
+            writer.postCollect();
+            assertThat("cycle " + cycle, received.size(), is(expectedSizes[cycle]));
+        }
+        assertThat(writer.getSuppressedCount(), is(4L));
+    }
+
+    @Test
+    public void values_failed_to_be_written_are_not_suppressed() throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final MetricBatch received = new MetricBatch();
+        OutputWriter failingWriter = new AbstractOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+                if (failing.get())
+                    throw new IOException("failing write of " + metricName);
+                received.writeQueryResult(metricName, metricType, value);
+            }
+
+            @Override
+            public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+                writeQueryResult(invocationName, null, value);
+            }
+        };
+        DeltaSuppressingOutputWriter writer = new DeltaSuppressingOutputWriter(failingWriter);
+        writer.postConstruct(new HashMap<String, String>());
+
+        MetricBatch batch = new MetricBatch();
+        batch.writeLongQueryResult("threads", "gauge", 12);
+        writer.preCollect();
+        try {
+            writer.writeBatch(batch);
+            fail("write should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            writer.writeLongQueryResult("heap", null, 1024);
+            fail("write should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        failing.set(false);
+        writer.preCollect();
+        writer.writeBatch(batch);
+        writer.writeLongQueryResult("heap", null, 1024);
+        assertThat(received.size(), is(2));
+        assertThat(writer.getSuppressedCount(), is(0L));
+
+        writer.preCollect();
+        writer.writeBatch(batch);
+        writer.writeLongQueryResult("heap", null, 1024);
+        assertThat(received.size(), is(2));
+        assertThat(writer.getSuppressedCount(), is(2L));
+    }
+
+    @Test
+    public void counters_are_never_suppressed_in_batches() throws Exception {
+        MetricBatch received = new MetricBatch();
+        DeltaSuppressingOutputWriter writer = new DeltaSuppressingOutputWriter(received);
+        writer.postConstruct(new HashMap<String, String>());
+
+        MetricBatch batch = new MetricBatch();
+        batch.writeLongQueryResult("requests", "counter", 100);
+        batch.writeLongQueryResult("threads", "gauge", 12);
+        batch.writeInvocationResult("gc", null);
+
+        writer.preCollect();
+        writer.writeBatch(batch);
+        assertThat(received.size(), is(3));
+
+        received.clear();
+        writer.preCollect();
+        writer.writeBatch(batch);
+        assertThat(received.size(), is(2));
+        assertThat(received.getName(0), is("requests"));
+        assertThat(received.getLongValue(0), is(100L));
+        assertThat(received.getType(0), is("counter"));
+        assertThat(received.getName(1), is("gc"));
+    }
+
+    @Test
+    public void last_values_grow_beyond_initial_capacity() {
+        DeltaSuppressingOutputWriter.LastValues lastValues = new DeltaSuppressingOutputWriter.LastValues();
+        for (int i = 0; i < 1000; i++) {
+            assertThat(lastValues.put("metric-" + i, MetricBatch.LONG_VALUE, i, null), is(true));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertThat(lastValues.put("metric-" + i, MetricBatch.LONG_VALUE, i, null), is(false));
+        }
+        assertThat(lastValues.put("metric-7", MetricBatch.LONG_VALUE, 8, null), is(true));
+        assertThat(lastValues.size(), is(1000));
+        lastValues.clear();
+        assertThat(lastValues.put("metric-7", MetricBatch.LONG_VALUE, 8, null), is(true));
+    }
+}
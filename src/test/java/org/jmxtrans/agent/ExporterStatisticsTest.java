@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ExporterStatisticsTest {
+
+    @Test
+    public void collectables_are_instrumented() throws Exception {
+        ExporterStatistics statistics = new ExporterStatistics();
+        ResultNameStrategy resultNameStrategy = new ResultNameStrategyImpl();
+        MBeanIndex mbeanIndex = new MBeanIndex(ManagementFactory.getPlatformMBeanServer());
+        mbeanIndex.start();
+        try {
+            CollectionPlan plan = new CollectionPlan(Collections.singletonList(
+                    new Query("java.lang:type=GarbageCollector,name=*", "CollectionCount", resultNameStrategy)));
+            Collectable collectable = new InstrumentedCollectable(plan.getQueryGroups().get(0), statistics.getCollectableStatistics("gc"));
+            collectable.collectAndExport(mbeanIndex, new QueryTest.MockOutputWriter());
+            collectable.collectAndExport(mbeanIndex, new QueryTest.MockOutputWriter());
+        } finally {
+            mbeanIndex.stop();
+        }
+
+        ExporterStatistics.CollectableSnapshot snapshot = statistics.getCollectables().get("gc");
+        int gcCount = ManagementFactory.getGarbageCollectorMXBeans().size();
+        assertThat(snapshot.getDuration().getCount(), is(2L));
+        assertThat(snapshot.getObjectNamesCount(), is(gcCount));
+        assertThat(snapshot.getValuesCount(), is(2L * gcCount));
+        assertThat(snapshot.getExceptionsCount(), is(0L));
+    }
+
+    @Test
+    public void statistics_are_exposed_as_mxbean() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ExporterStatistics statistics = new ExporterStatistics();
+        statistics.recordCollect(1500000);
+        statistics.getCollectableStatistics("query java.lang:type=Memory").record(2000, 3, 1);
+        statistics.getOutputWriterLatency("ConsoleOutputWriter").record(12);
+
+        statistics.register(mbeanServer);
+        try {
+            ObjectName objectName = new ObjectName(ExporterStatistics.OBJECT_NAME);
+            assertThat((Long) mbeanServer.getAttribute(objectName, "CollectCount"), is(1L));
+            CompositeData collectDuration = (CompositeData) mbeanServer.getAttribute(objectName, "CollectDuration");
+            assertThat((Long) collectDuration.get("max"), is(1500L));
+            TabularData collectables = (TabularData) mbeanServer.getAttribute(objectName, "Collectables");
+            assertThat(collectables.size(), is(1));
+            TabularData outputWriters = (TabularData) mbeanServer.getAttribute(objectName, "OutputWriters");
+            assertThat(outputWriters.size(), is(1));
+        } finally {
+            statistics.unregister();
+        }
+    }
+
+    @Test
+    public void statistics_are_written_as_metrics() throws Exception {
+        ExporterStatistics statistics = new ExporterStatistics();
+        statistics.recordCollect(1500000);
+        statistics.getCollectableStatistics("query java.lang:type=Memory").record(2000, 3, 1);
+
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        statistics.writeTo(outputWriter);
+        assertThat(outputWriter.resultsByName.get("jmxtrans-agent.collect.count"), is((Object) 1L));
+        assertThat(outputWriter.resultsByName.get("jmxtrans-agent.collect.durationInMicros.max"), is((Object) 1500L));
+        assertThat(outputWriter.resultsByName.get("jmxtrans-agent.collectable.query_java_lang_type_Memory.values"), is((Object) 3L));
+    }
+}
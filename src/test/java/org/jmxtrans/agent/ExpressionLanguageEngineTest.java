@@ -99,4 +99,27 @@ public class ExpressionLanguageEngineTest {
         String actual = engine.resolveExpression("#canonical_hostname#");
         assertThat(actual, is("server1.mycompany.com"));
     }
+
+    @Test
+    public void test_compile_expression_folds_static_functions() throws Exception {
+        ExpressionTemplate template = expressionLanguageEngine.compileExpression("#hostname#.tomcat.datasource.%name%.#attribute#");
+        // "tomcat1.tomcat.datasource.", %name%, ".", #attribute#
+        assertThat(template.getSegmentsCount(), is(4));
+
+        ObjectName objectName = new ObjectName("Catalina:type=Resource,name=\"jdbc/my-datasource\"");
+        assertThat(template.resolve(objectName, "numActive", null, null), is("tomcat1.tomcat.datasource.jdbc_my-datasource.numActive"));
+        assertThat(template.resolve(objectName, "numIdle", null, null), is("tomcat1.tomcat.datasource.jdbc_my-datasource.numIdle"));
+    }
+
+    @Test
+    public void test_compile_expression_without_variable_is_a_literal() throws Exception {
+        ExpressionTemplate template = expressionLanguageEngine.compileExpression("#hostname#.#unknown#.jvm");
+        assertThat(template.getSegmentsCount(), is(1));
+        assertThat(template.resolve(new ObjectName("mydomain:type=MyBean"), "MyAttribute", null, null), is("tomcat1._unsupported_expression_.jvm"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_compile_invalid_expression() throws Exception {
+        expressionLanguageEngine.compileExpression("tomcat.%name");
+    }
 }
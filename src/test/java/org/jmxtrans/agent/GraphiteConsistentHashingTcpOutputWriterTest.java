@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GraphiteConsistentHashingTcpOutputWriterTest {
+
+    /**
+     * Expected nodes computed with {@code carbon.hashing.ConsistentHashRing}
+     */
+    @Test
+    public void ring_routes_like_carbon_relay() {
+        GraphiteConsistentHashRing<String> ring = new GraphiteConsistentHashRing<String>();
+        ring.addNode("10.0.0.1", "a", "1");
+        ring.addNode("10.0.0.2", "b", "2");
+        ring.addNode("10.0.0.3", null, "3");
+
+        assertThat(ring.computeRingPosition("servers.tomcat1.threads"), is(457));
+        assertThat(ring.getNode("servers.tomcat1.threads"), is("1"));
+        assertThat(ring.getNode("servers.tomcat1.load"), is("3"));
+        assertThat(ring.getNode("servers.tomcat1.heap.used"), is("2"));
+        assertThat(ring.getNode("servers.tomcat1.requests.0"), is("1"));
+        assertThat(ring.getNode("b"), is("3"));
+        assertThat(ring.getNode("d"), is("2"));
+    }
+
+    @Test
+    public void metrics_are_routed_and_down_destination_does_not_block_the_others() throws Exception {
+        ServerSocket serverA = new ServerSocket(0);
+        ServerSocket serverB = new ServerSocket(0);
+        ServerSocket closedServer = new ServerSocket(0);
+        closedServer.close();
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<String>> linesA = executorService.submit(new LinesReceiver(serverA));
+            Future<List<String>> linesB = executorService.submit(new LinesReceiver(serverB));
+
+            GraphiteConsistentHashingTcpOutputWriter writer = new GraphiteConsistentHashingTcpOutputWriter();
+            Map<String, String> settings = new HashMap<String, String>();
+            settings.put(GraphiteConsistentHashingTcpOutputWriter.SETTING_DESTINATIONS,
+                    "127.0.0.1:" + serverA.getLocalPort() + ":a, 127.0.0.1:" + serverB.getLocalPort() + ":b, 127.0.0.1:" + closedServer.getLocalPort());
+            settings.put(GraphiteConsistentHashingTcpOutputWriter.SETTING_NAME_PREFIX, "servers.tomcat1.");
+            writer.postConstruct(settings);
+
+            CollectCycle cycle = new CollectCycle(1, 1500000000000L, System.nanoTime());
+            writer.preCollect(cycle);
+            MetricBatch batch = new MetricBatch();
+            batch.setCycle(cycle);
+            for (int i = 0; i < 12; i++) {
+                batch.writeLongQueryResult("metric" + i, null, i);
+            }
+            writer.writeBatch(batch);
+            writer.postCollect();
+
+            List<GraphiteConsistentHashingTcpOutputWriter.Destination> destinations = writer.getDestinations();
+            assertThat(destinations.get(0).getSentMetricsCount(), is(2L));
+            assertThat(destinations.get(1).getSentMetricsCount(), is(4L));
+            assertThat(destinations.get(2).isDown(), is(true));
+            assertThat(destinations.get(2).getDroppedMetricsCount(), is(6L));
+
+            // routed to the down destination, dropped without connection attempt
+            writer.preCollect(new CollectCycle(2, 1500000060000L, System.nanoTime()));
+            writer.writeLongQueryResult("metric0", null, 0);
+            writer.postCollect();
+            assertThat(destinations.get(2).getDroppedMetricsCount(), is(7L));
+            writer.preDestroy();
+
+            assertThat(linesA.get(5, TimeUnit.SECONDS), contains(
+                    "servers.tomcat1.metric1 1 1500000000",
+                    "servers.tomcat1.metric3 3 1500000000"));
+            assertThat(linesB.get(5, TimeUnit.SECONDS), contains(
+                    "servers.tomcat1.metric5 5 1500000000",
+                    "servers.tomcat1.metric7 7 1500000000",
+                    "servers.tomcat1.metric8 8 1500000000",
+                    "servers.tomcat1.metric9 9 1500000000"));
+        } finally {
+            executorService.shutdownNow();
+            serverA.close();
+            serverB.close();
+        }
+    }
+
+    private static class LinesReceiver implements Callable<List<String>> {
+        private final ServerSocket serverSocket;
+
+        LinesReceiver(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public List<String> call() throws Exception {
+            List<String> lines = new ArrayList<String>();
+            Socket socket = serverSocket.accept();
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    lines.add(line);
+                }
+            } finally {
+                socket.close();
+            }
+            return lines;
+        }
+    }
+}
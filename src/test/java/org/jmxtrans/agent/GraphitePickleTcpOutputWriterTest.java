@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GraphitePickleTcpOutputWriterTest {
+
+    @Test
+    public void metrics_are_sent_in_pickle_frames_of_batch_size() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<List<Object[]>>> frames = executorService.submit(new CarbonPickleReceiver(serverSocket));
+
+            GraphitePickleTcpOutputWriter writer = new GraphitePickleTcpOutputWriter();
+            Map<String, String> settings = new HashMap<String, String>();
+            settings.put(GraphitePickleTcpOutputWriter.SETTING_HOST, "localhost");
+            settings.put(GraphitePickleTcpOutputWriter.SETTING_PORT, Integer.toString(serverSocket.getLocalPort()));
+            settings.put(GraphitePickleTcpOutputWriter.SETTING_NAME_PREFIX, "servers.tomcat1.");
+            settings.put(GraphitePickleTcpOutputWriter.SETTING_BATCH_SIZE, "2");
+            writer.postConstruct(settings);
+
+            CollectCycle cycle = new CollectCycle(1, 1500000000000L, System.nanoTime());
+            writer.preCollect(cycle);
+            writer.writeLongQueryResult("threads", "gauge", 12);
+            writer.writeDoubleQueryResult("load", null, 0.5);
+            writer.writeQueryResult("name", null, "server");
+            writer.writeQueryResult("heap.used", null, 5000000000L);
+            writer.writeInvocationResult("réponse", 3);
+            writer.postCollect();
+            writer.preDestroy();
+
+            List<List<Object[]>> received = frames.get(5, TimeUnit.SECONDS);
+            assertThat(received.size(), is(2));
+            assertThat(received.get(0).size(), is(2));
+            assertThat(received.get(1).size(), is(2));
+
+            Object[] threads = received.get(0).get(0);
+            assertThat(threads[0], is((Object) "servers.tomcat1.threads"));
+            assertThat(threads[1], is((Object) 1500000000L));
+            assertThat(threads[2], is((Object) 12L));
+            assertThat(received.get(0).get(1)[2], is((Object) 0.5));
+            assertThat(received.get(1).get(0)[0], is((Object) "servers.tomcat1.heap.used"));
+            assertThat(received.get(1).get(0)[2], is((Object) 5000000000L));
+            assertThat(received.get(1).get(1)[0], is((Object) "servers.tomcat1.réponse"));
+        } finally {
+            executorService.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Carbon stand-in decoding the frames of {@code [(path, (timestamp, value)), ...]} until the connection is closed
+     */
+    private static class CarbonPickleReceiver implements Callable<List<List<Object[]>>> {
+        private final ServerSocket serverSocket;
+
+        CarbonPickleReceiver(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public List<List<Object[]>> call() throws Exception {
+            List<List<Object[]>> frames = new ArrayList<List<Object[]>>();
+            Socket socket = serverSocket.accept();
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        return frames;
+                    }
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    frames.add(unpickle(ByteBuffer.wrap(frame)));
+                }
+            } finally {
+                socket.close();
+            }
+        }
+
+        private List<Object[]> unpickle(ByteBuffer buffer) throws IOException {
+            List<Object[]> metrics = new ArrayList<Object[]>();
+            List<Object> stack = new ArrayList<Object>();
+            while (true) {
+                byte opcode = buffer.get();
+                switch (opcode) {
+                    case (byte) 0x80: // PROTO
+                        assertThat(buffer.get(), is((byte) 2));
+                        break;
+                    case ']': // EMPTY_LIST
+                    case '(': // MARK
+                        break;
+                    case 'X': { // BINUNICODE
+                        byte[] bytes = new byte[buffer.order(ByteOrder.LITTLE_ENDIAN).getInt()];
+                        buffer.get(bytes);
+                        stack.add(new String(bytes, "UTF-8"));
+                        break;
+                    }
+                    case 'J': // BININT
+                        stack.add((long) buffer.order(ByteOrder.LITTLE_ENDIAN).getInt());
+                        break;
+                    case (byte) 0x8a: // LONG1
+                        assertThat(buffer.get(), is((byte) 8));
+                        stack.add(buffer.order(ByteOrder.LITTLE_ENDIAN).getLong());
+                        break;
+                    case 'G': // BINFLOAT
+                        stack.add(buffer.order(ByteOrder.BIG_ENDIAN).getDouble());
+                        break;
+                    case (byte) 0x86: { // TUPLE2
+                        Object second = stack.remove(stack.size() - 1);
+                        Object first = stack.remove(stack.size() - 1);
+                        stack.add(new Object[]{first, second});
+                        break;
+                    }
+                    case 'e': // APPENDS
+                        for (Object item : stack) {
+                            Object[] metric = (Object[]) item;
+                            Object[] point = (Object[]) metric[1];
+                            metrics.add(new Object[]{metric[0], point[0], point[1]});
+                        }
+                        stack.clear();
+                        break;
+                    case '.': // STOP
+                        assertThat(buffer.hasRemaining(), is(false));
+                        return metrics;
+                    default:
+                        throw new IOException("Unexpected opcode " + opcode);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GraphitePlainTextTcpOutputWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void metrics_of_a_cycle_are_sent_as_plain_text_lines() throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<String>> lines = executorService.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    List<String> lines = new ArrayList<String>();
+                    Socket socket = serverSocket.accept();
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                            lines.add(line);
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                    return lines;
+                }
+            });
+
+            GraphitePlainTextTcpOutputWriter writer = new GraphitePlainTextTcpOutputWriter();
+            Map<String, String> settings = new HashMap<String, String>();
+            settings.put(GraphitePlainTextTcpOutputWriter.SETTING_HOST, "localhost");
+            settings.put(GraphitePlainTextTcpOutputWriter.SETTING_PORT, Integer.toString(serverSocket.getLocalPort()));
+            settings.put(GraphitePlainTextTcpOutputWriter.SETTING_NAME_PREFIX, "servers.tomcat1.");
+            writer.postConstruct(settings);
+
+            writer.preCollect(new CollectCycle(1, 1500000000000L, System.nanoTime()));
+            writer.writeLongQueryResult("threads", "gauge", -12);
+            writer.writeDoubleQueryResult("load", null, 0.5);
+            writer.writeQueryResult("name", null, "server");
+            writer.writeInvocationResult("réponse", Long.MIN_VALUE);
+            // more than a chunk of the encoder
+            int count = 2 * GraphitePlainTextEncoder.CHUNK_SIZE_IN_BYTES / 32;
+            MetricBatch batch = new MetricBatch();
+            for (int i = 0; i < count; i++) {
+                batch.writeLongQueryResult("requests." + i, "counter", i);
+            }
+            batch.setCycle(new CollectCycle(2, 1500000060000L, System.nanoTime()));
+            writer.writeBatch(batch);
+            writer.postCollect();
+            writer.preDestroy();
+
+            List<String> received = lines.get(5, TimeUnit.SECONDS);
+            assertThat(received.size(), is(4 + count));
+            assertThat(received.get(0), is("servers.tomcat1.threads -12 1500000000"));
+            assertThat(received.get(1), is("servers.tomcat1.load 0.5 1500000000"));
+            assertThat(received.get(2), is("servers.tomcat1.name server 1500000000"));
+            assertThat(received.get(3), is("servers.tomcat1.réponse -9223372036854775808 1500000000"));
+            for (int i = 0; i < count; i++) {
+                assertThat(received.get(4 + i), is("servers.tomcat1.requests." + i + " " + i + " 1500000060"));
+            }
+        } finally {
+            executorService.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void primitive_values_are_formatted_like_boxed_values() throws Exception {
+        long[] longValues = {0, -12, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE};
+        double[] doubleValues = {0.5, -0.0, 1.0E-5, 1.0E21, 123456.789, Double.MAX_VALUE, Double.NaN};
+
+        final ServerSocket serverSocket = new ServerSocket(0);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<String>> lines = executorService.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    List<String> lines = new ArrayList<String>();
+                    Socket socket = serverSocket.accept();
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                            lines.add(line);
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                    return lines;
+                }
+            });
+
+            GraphitePlainTextTcpOutputWriter writer = new GraphitePlainTextTcpOutputWriter();
+            Map<String, String> settings = new HashMap<String, String>();
+            settings.put(GraphitePlainTextTcpOutputWriter.SETTING_HOST, "127.0.0.1");
+            settings.put(GraphitePlainTextTcpOutputWriter.SETTING_PORT, Integer.toString(serverSocket.getLocalPort()));
+            settings.put(GraphitePlainTextTcpOutputWriter.SETTING_NAME_PREFIX, "servers.tomcat1.");
+            writer.postConstruct(settings);
+
+            writer.preCollect(new CollectCycle(1, 1500000000000L, System.nanoTime()));
+            for (long value : longValues) {
+                writer.writeQueryResult("metric", null, value);
+                writer.writeLongQueryResult("metric", null, value);
+            }
+            for (double value : doubleValues) {
+                writer.writeQueryResult("metric", null, value);
+                writer.writeDoubleQueryResult("metric", null, value);
+            }
+            writer.postCollect();
+            writer.preDestroy();
+
+            List<String> received = lines.get(5, TimeUnit.SECONDS);
+            List<String> expected = new ArrayList<String>();
+            for (long value : longValues) {
+                expected.add("servers.tomcat1.metric " + Long.valueOf(value) + " 1500000000");
+                expected.add("servers.tomcat1.metric " + Long.valueOf(value) + " 1500000000");
+            }
+            for (double value : doubleValues) {
+                expected.add("servers.tomcat1.metric " + Double.valueOf(value) + " 1500000000");
+                expected.add("servers.tomcat1.metric " + Double.valueOf(value) + " 1500000000");
+            }
+            assertThat(received, is(expected));
+        } finally {
+            executorService.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void unsent_metrics_are_replayed_once_carbon_is_back() throws Exception {
+        ServerSocket unavailableServer = new ServerSocket(0);
+        int port = unavailableServer.getLocalPort();
+        unavailableServer.close();
+        File replayFile = new File(temporaryFolder.getRoot(), "replay.data");
+
+        GraphitePlainTextTcpOutputWriter writer = new GraphitePlainTextTcpOutputWriter();
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put(GraphitePlainTextTcpOutputWriter.SETTING_HOST, "127.0.0.1");
+        settings.put(GraphitePlainTextTcpOutputWriter.SETTING_PORT, Integer.toString(port));
+        settings.put(GraphitePlainTextTcpOutputWriter.SETTING_NAME_PREFIX, "servers.tomcat1.");
+        // one collection of 3 metrics in memory, the older ones spilled to the file
+        settings.put(GraphitePlainTextTcpOutputWriter.SETTING_REPLAY_BUFFER_SIZE_IN_BYTES, "150");
+        settings.put(GraphitePlainTextTcpOutputWriter.SETTING_REPLAY_FILE, replayFile.getAbsolutePath());
+        writer.postConstruct(settings);
+
+        for (int cycle = 1; cycle <= 2; cycle++) {
+            writer.preCollect(new CollectCycle(cycle, 1500000000000L + cycle * 60000L, System.nanoTime()));
+            for (int i = 0; i < 3; i++) {
+                writer.writeLongQueryResult("metric" + i, null, cycle);
+            }
+            writer.postCollect();
+        }
+        assertThat(replayFile.length(), greaterThan(0L));
+        assertThat(writer.getReplayBufferSizeInBytes(), greaterThan(replayFile.length()));
+
+        final ServerSocket serverSocket = new ServerSocket(port);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<String>> lines = executorService.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    List<String> lines = new ArrayList<String>();
+                    Socket socket = serverSocket.accept();
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                            lines.add(line);
+                        }
+                    } finally {
+                        socket.close();
+                    }
+                    return lines;
+                }
+            });
+
+            writer.preCollect(new CollectCycle(3, 1500000180000L, System.nanoTime()));
+            writer.writeLongQueryResult("metric0", null, 3);
+            writer.postCollect();
+            assertThat(writer.getReplayBufferSizeInBytes(), is(0L));
+            writer.preDestroy();
+
+            assertThat(lines.get(5, TimeUnit.SECONDS), contains(
+                    "servers.tomcat1.metric0 3 1500000180",
+                    "servers.tomcat1.metric0 1 1500000060",
+                    "servers.tomcat1.metric1 1 1500000060",
+                    "servers.tomcat1.metric2 1 1500000060",
+                    "servers.tomcat1.metric0 2 1500000120",
+                    "servers.tomcat1.metric1 2 1500000120",
+                    "servers.tomcat1.metric2 2 1500000120"));
+            assertThat(replayFile.length(), is(0L));
+        } finally {
+            executorService.shutdownNow();
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GraphitePlainTextUdpOutputWriterTest {
+
+    @Test
+    public void lines_are_packed_in_datagrams_fitting_the_mtu() throws Exception {
+        DatagramSocket server = new DatagramSocket(0);
+        server.setSoTimeout(5000);
+        try {
+            GraphitePlainTextUdpOutputWriter writer = new GraphitePlainTextUdpOutputWriter();
+            Map<String, String> settings = new HashMap<String, String>();
+            settings.put(GraphitePlainTextUdpOutputWriter.SETTING_HOST, "127.0.0.1");
+            settings.put(GraphitePlainTextUdpOutputWriter.SETTING_PORT, Integer.toString(server.getLocalPort()));
+            settings.put(GraphitePlainTextUdpOutputWriter.SETTING_NAME_PREFIX, "srv.");
+            // 100 bytes per datagram
+            settings.put(GraphitePlainTextUdpOutputWriter.SETTING_MTU, Integer.toString(100 + GraphitePlainTextUdpOutputWriter.IP_AND_UDP_HEADERS_SIZE_IN_BYTES));
+            writer.postConstruct(settings);
+
+            writer.preCollect(new CollectCycle(1, 1500000000000L, System.nanoTime()));
+            for (int i = 0; i < 5; i++) {
+                // "srv.metric.<i> 1234567 1500000000\n" is 32 bytes, 3 lines per datagram
+                writer.writeLongQueryResult("metric." + i, null, 1234567);
+                if (i == 2) {
+                    writer.writeQueryResult("too.long", null, new String(new char[100]).replace('\0', 'x'));
+                }
+            }
+            writer.postCollect();
+            writer.preDestroy();
+
+            List<String> datagrams = new ArrayList<String>();
+            for (int i = 0; i < 2; i++) {
+                DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+                server.receive(packet);
+                datagrams.add(new String(packet.getData(), 0, packet.getLength(), "UTF-8"));
+            }
+            assertThat(datagrams, contains(
+                    "srv.metric.0 1234567 1500000000\nsrv.metric.1 1234567 1500000000\nsrv.metric.2 1234567 1500000000\n",
+                    "srv.metric.3 1234567 1500000000\nsrv.metric.4 1234567 1500000000\n"));
+            assertThat(writer.getDroppedMetricsCount(), is(1L));
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class GraphiteReplayBufferTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void invalid_lines_of_the_spill_file_are_skipped() throws Exception {
+        File spillFile = temporaryFolder.newFile("replay.data");
+        StringBuilder content = new StringBuilder("servers.a 1 1500000000\n");
+        // line longer than the read buffer of the spill file
+        for (int i = 0; i < 100000; i++) {
+            content.append('x');
+        }
+        content.append("\nservers.b 2 1500000000\nservers.trunc");
+        FileOutputStream out = new FileOutputStream(spillFile);
+        out.write(content.toString().getBytes("UTF-8"));
+        out.close();
+
+        GraphiteReplayBuffer replayBuffer = new GraphiteReplayBuffer(1024, spillFile, 1024 * 1024);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        replayBuffer.replay(Channels.newChannel(received), Long.MAX_VALUE);
+        replayBuffer.close();
+
+        assertThat(received.toString("UTF-8"), is("servers.a 1 1500000000\nservers.b 2 1500000000\n"));
+        assertThat(replayBuffer.isEmpty(), is(true));
+    }
+}
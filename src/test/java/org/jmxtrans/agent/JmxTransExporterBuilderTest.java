@@ -76,7 +76,13 @@ public class JmxTransExporterBuilderTest {
             assertThat(query.attribute, is("HeapMemoryUsage"));
             assertThat(query.resultAlias, is("jvm.heapMemoryUsage.used"));
             assertThat(query.key, is("used"));
+            assertThat(query.getCollectIntervalInSeconds(), is((Integer) null));
         }
+        {
+            Query query = queriesByResultAlias.get("jvm.loadedClasses");
+            assertThat(query.getCollectIntervalInSeconds(), is(300));
+        }
+        assertThat(jmxTransExporter.getCollectionBuckets().size(), is(2));
         Map<String, Invocation> invocationsByResultAlias = indexInvocationsByResultAlias(jmxTransExporter.invocations);
         {
             Invocation invocation = invocationsByResultAlias.get("jvm.gc");
@@ -93,6 +99,10 @@ public class JmxTransExporterBuilderTest {
 
         assertThat(jmxTransExporter.collectInterval, is(12));
         assertThat(jmxTransExporter.collectIntervalTimeUnit, is(TimeUnit.SECONDS));
+        assertThat(jmxTransExporter.collectAlignedOnWallClock, is(true));
+        assertThat(jmxTransExporter.collectSplay, is(5));
+        assertThat(jmxTransExporter.exportQueueCapacity, is(1000));
+        assertThat(jmxTransExporter.exportQueueOverflowPolicy, is(MetricRingBuffer.OverflowPolicy.DROP_NEWEST));
         assertTrue(jmxTransExporter.outputWriter.getClass().equals(OutputWritersChain.class));
 
         OutputWritersChain outputWritersChain = (OutputWritersChain) jmxTransExporter.outputWriter;
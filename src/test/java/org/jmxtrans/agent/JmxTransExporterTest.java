@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class JmxTransExporterTest {
+
+    @Test
+    public void splay_is_deterministic_and_bounded() {
+        long splay = JmxTransExporter.computeSplayInMillis("12345@server1", 10000);
+        assertThat(splay, is(JmxTransExporter.computeSplayInMillis("12345@server1", 10000)));
+        assertThat(splay, both(greaterThanOrEqualTo(0L)).and(lessThan(10000L)));
+        assertThat(JmxTransExporter.computeSplayInMillis("12345@server1", 0), is(0L));
+    }
+
+    @Test
+    public void splay_spreads_similar_jvm_names() {
+        Set<Long> secondsOffsets = new HashSet<Long>();
+        for (int i = 0; i < 10; i++) {
+            secondsOffsets.add(JmxTransExporter.computeSplayInMillis("12345@server" + i, 10000) / 1000);
+        }
+        assertThat(secondsOffsets.size(), greaterThan(3));
+    }
+
+    @Test
+    public void shards_are_spread_over_round_slots() {
+        assertThat(JmxTransExporter.computeSpreadSlots(10000, 1), is(1));
+        assertThat(JmxTransExporter.computeSpreadSlots(10000, 16), is(16));
+        // 7 shards over 8 slots of 1250ms rather than slots of 1428ms
+        assertThat(JmxTransExporter.computeSpreadSlots(10000, 7), is(8));
+        // slots of at least 100ms
+        assertThat(JmxTransExporter.computeSpreadSlots(1000, 64), is(10));
+    }
+}
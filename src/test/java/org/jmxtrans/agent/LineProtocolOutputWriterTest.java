@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LineProtocolOutputWriterTest {
+
+    /**
+     * Number of lines after which the writer sends the pending lines
+     */
+    private final static int SENT_LINES_COUNT = 5000;
+
+    @Test
+    public void primitive_values_are_formatted_like_boxed_values() throws Exception {
+        long[] longValues = {0, -12, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE};
+        double[] doubleValues = {0.5, -0.0, 1.0E-5, 1.0E21, 123456.789, Double.MAX_VALUE, Double.NaN};
+
+        final BlockingQueue<String> writeRequests = new LinkedBlockingQueue<String>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                    body.write(buffer, 0, read);
+                }
+                if (exchange.getRequestURI().getPath().equals("/write")) {
+                    writeRequests.add(body.toString("UTF-8"));
+                }
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            LineProtocolOutputWriter writer = new LineProtocolOutputWriter();
+            Map<String, String> settings = new HashMap<String, String>();
+            settings.put(LineProtocolOutputWriter.SETTING_HOST, "127.0.0.1");
+            settings.put(LineProtocolOutputWriter.SETTING_PORT, Integer.toString(server.getAddress().getPort()));
+            settings.put("database", "jmxtrans");
+            settings.put("tags", "host=tomcat1");
+            writer.postConstruct(settings);
+
+            writer.preCollect(new CollectCycle(1, 1500000000000L, System.nanoTime()));
+            int linesCount = 0;
+            for (long value : longValues) {
+                writer.writeQueryResult("metric", null, value);
+                writer.writeLongQueryResult("metric", null, value);
+                linesCount += 2;
+            }
+            for (double value : doubleValues) {
+                writer.writeQueryResult("metric", null, value);
+                writer.writeDoubleQueryResult("metric", null, value);
+                linesCount += 2;
+            }
+            for (; linesCount < SENT_LINES_COUNT; linesCount++) {
+                writer.writeLongQueryResult("padding", null, 0);
+            }
+            writer.postCollect();
+
+            String writeRequest = writeRequests.poll(5, TimeUnit.SECONDS);
+            assertThat(writeRequest, notNullValue());
+            List<String> received = new ArrayList<String>();
+            for (String line : writeRequest.split(System.getProperty("line.separator"))) {
+                if (!line.startsWith("padding")) {
+                    received.add(line);
+                }
+            }
+
+            List<String> expected = new ArrayList<String>();
+            for (long value : longValues) {
+                expected.add("metric,host=tomcat1 value=" + Long.valueOf(value) + " 1500000000000");
+                expected.add("metric,host=tomcat1 value=" + Long.valueOf(value) + " 1500000000000");
+            }
+            for (double value : doubleValues) {
+                expected.add("metric,host=tomcat1 value=" + Double.valueOf(value) + " 1500000000000");
+                expected.add("metric,host=tomcat1 value=" + Double.valueOf(value) + " 1500000000000");
+            }
+            assertThat(received, is(expected));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
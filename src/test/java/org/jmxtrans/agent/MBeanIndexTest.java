@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MBeanIndexTest {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    MBeanIndex mbeanIndex;
+
+    @Before
+    public void before() throws Exception {
+        mbeanIndex = new MBeanIndex(mbeanServer);
+        mbeanIndex.start();
+    }
+
+    @After
+    public void after() {
+        mbeanIndex.stop();
+    }
+
+    @Test
+    public void pattern_resolution_follows_registrations() throws Exception {
+        ObjectName pattern = new ObjectName("test:type=Mock,name=mbeanIndex-*");
+        ObjectName objectName1 = new ObjectName("test:type=Mock,name=mbeanIndex-1");
+        ObjectName objectName2 = new ObjectName("test:type=Mock,name=mbeanIndex-2");
+
+        mbeanServer.registerMBean(new Mock("mock-1", 1L), objectName1);
+        try {
+            assertThat(mbeanIndex.queryNames(pattern), contains(objectName1));
+
+            mbeanServer.registerMBean(new Mock("mock-2", 2L), objectName2);
+            try {
+                assertThat(mbeanIndex.queryNames(pattern), containsInAnyOrder(objectName1, objectName2));
+                assertThat(mbeanIndex.queryNames(objectName2), contains(objectName2));
+            } finally {
+                mbeanServer.unregisterMBean(objectName2);
+            }
+            assertThat(mbeanIndex.queryNames(pattern), contains(objectName1));
+            assertThat(mbeanIndex.queryNames(objectName2), empty());
+        } finally {
+            mbeanServer.unregisterMBean(objectName1);
+        }
+        assertThat(mbeanIndex.queryNames(pattern), empty());
+    }
+
+    @Test
+    public void version_changes_on_registrations() throws Exception {
+        ObjectName objectName = new ObjectName("test:type=Mock,name=mbeanIndex-version");
+        long version = mbeanIndex.getVersion();
+        mbeanIndex.refresh();
+        assertThat(mbeanIndex.getVersion(), is(version));
+
+        mbeanServer.registerMBean(new Mock("mock-version", 1L), objectName);
+        long registeredVersion = mbeanIndex.getVersion();
+        assertThat(registeredVersion, not(version));
+
+        mbeanServer.unregisterMBean(objectName);
+        assertThat(mbeanIndex.getVersion(), not(registeredVersion));
+    }
+
+    @Test
+    public void index_is_consistent_with_mbean_server() throws Exception {
+        ObjectName pattern = new ObjectName("java.lang:type=MemoryPool,*");
+        assertThat(mbeanIndex.queryNames(pattern), is(mbeanServer.queryNames(pattern, null)));
+        mbeanIndex.refresh();
+        assertThat(mbeanIndex.queryNames(pattern), is(mbeanServer.queryNames(pattern, null)));
+        assertThat(mbeanIndex.queryNames(null), is(mbeanServer.queryNames(null, null)));
+    }
+
+    @Test
+    public void attribute_names_are_cached_until_unregistration() throws Exception {
+        ObjectName objectName = new ObjectName("test:type=Mock,name=mbeanIndex-attributes");
+
+        mbeanServer.registerMBean(new Mock("mock", 1L), objectName);
+        String[] attributeNames;
+        try {
+            attributeNames = mbeanIndex.getAttributeNames(objectName);
+            assertThat(attributeNames, hasItemInArray("CollectionUsageThreshold"));
+            assertThat(mbeanIndex.getAttributeNames(objectName), sameInstance(attributeNames));
+        } finally {
+            mbeanServer.unregisterMBean(objectName);
+        }
+
+        mbeanServer.registerMBean(new Mock("mock", 1L), objectName);
+        try {
+            assertThat(mbeanIndex.getAttributeNames(objectName), not(sameInstance(attributeNames)));
+        } finally {
+            mbeanServer.unregisterMBean(objectName);
+        }
+    }
+
+    @Test
+    public void unregistration_listeners_are_notified() throws Exception {
+        ObjectName objectName = new ObjectName("test:type=Mock,name=mbeanIndex-listener");
+        final List<ObjectName> unregisteredObjectNames = new CopyOnWriteArrayList<ObjectName>();
+        mbeanIndex.addUnregistrationListener(new MBeanIndex.UnregistrationListener() {
+            @Override
+            public void onUnregistration(@Nonnull ObjectName objectName) {
+                unregisteredObjectNames.add(objectName);
+            }
+        });
+
+        mbeanServer.registerMBean(new Mock("mock", 1L), objectName);
+        assertThat(unregisteredObjectNames, empty());
+        mbeanServer.unregisterMBean(objectName);
+        assertThat(unregisteredObjectNames, contains(objectName));
+    }
+
+    @Test
+    public void registrations_during_refresh_are_not_reverted() throws Exception {
+        final ObjectName registeredObjectName = new ObjectName("test:type=Mock,name=mbeanIndex-refresh-registered");
+        final ObjectName unregisteredObjectName = new ObjectName("test:type=Mock,name=mbeanIndex-refresh-unregistered");
+        mbeanServer.registerMBean(new Mock("mock", 1L), unregisteredObjectName);
+
+        // (un)register MBeans once the refresh took its snapshot
+        final AtomicBoolean racing = new AtomicBoolean();
+        MBeanServer racingMBeanServer = (MBeanServer) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MBeanServer.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                try {
+                    Object result = method.invoke(mbeanServer, args);
+                    if (method.getName().equals("queryNames") && args[0] == null && racing.getAndSet(false)) {
+                        mbeanServer.registerMBean(new Mock("mock", 1L), registeredObjectName);
+                        mbeanServer.unregisterMBean(unregisteredObjectName);
+                    }
+                    return result;
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+        MBeanIndex racingMBeanIndex = new MBeanIndex(racingMBeanServer);
+        racingMBeanIndex.start();
+        try {
+            racing.set(true);
+            racingMBeanIndex.refresh();
+
+            Set<ObjectName> objectNames = racingMBeanIndex.queryNames(new ObjectName("test:type=Mock,name=mbeanIndex-refresh-*"));
+            assertThat(objectNames, contains(registeredObjectName));
+        } finally {
+            racingMBeanIndex.stop();
+            mbeanServer.unregisterMBean(registeredObjectName);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MetricBatchTest {
+
+    @Test
+    public void batch_grows_and_keeps_results_in_order() {
+        MetricBatch batch = new MetricBatch(2);
+        batch.writeLongQueryResult("long", "counter", 42L);
+        batch.writeDoubleQueryResult("double", null, 0.5);
+        batch.writeQueryResult("string", null, "value");
+        batch.writeInvocationResult("invocation", null);
+
+        assertThat(batch.size(), is(4));
+        assertThat(batch.getName(0), is("long"));
+        assertThat(batch.getType(0), is("counter"));
+        assertThat(batch.getValueType(0), is(MetricBatch.LONG_VALUE));
+        assertThat(batch.getLongValue(0), is(42L));
+        assertThat(batch.getValue(1), is((Object) 0.5));
+        assertThat(batch.getValueType(2), is(MetricBatch.OBJECT_VALUE));
+        assertThat(batch.getValue(2), is((Object) "value"));
+        assertThat(batch.getValueType(3), is(MetricBatch.INVOCATION_VALUE));
+        assertThat(batch.getTimestampInMillis(3), greaterThan(0L));
+
+        batch.clear();
+        assertThat(batch.isEmpty(), is(true));
+        batch.writeLongQueryResult("long", null, 1L);
+        assertThat(batch.getValue(0), is((Object) 1L));
+    }
+
+    @Test
+    public void batch_is_replayed_on_output_writers_without_batch_support() throws Exception {
+        MetricBatch batch = new MetricBatch();
+        batch.writeLongQueryResult("long", null, 42L);
+        batch.writeQueryResult("string", null, "value");
+
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        OutputWriters.writeBatch(outputWriter, batch);
+        assertThat(outputWriter.resultsByName.get("long"), is((Object) 42L));
+        assertThat(outputWriter.resultsByName.get("string"), is((Object) "value"));
+    }
+
+    @Test
+    public void chain_writes_batch_to_all_output_writers_despite_failures() throws Exception {
+        final List<String> writes = new ArrayList<String>();
+        OutputWriter failingOutputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                throw new IOException("failure");
+            }
+        };
+        OutputWriter outputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                writes.add(name);
+            }
+        };
+        MetricBatch batch = new MetricBatch();
+        batch.writeLongQueryResult("metric-1", null, 1L);
+        batch.writeLongQueryResult("metric-2", null, 2L);
+
+        OutputWritersChain chain = new OutputWritersChain(Arrays.asList(failingOutputWriter, outputWriter));
+        try {
+            chain.writeBatch(batch);
+            throw new AssertionError("IOException expected");
+        } catch (MetricBatch.WriteException e) {
+            assertThat(e.getCause().getMessage(), is("failure"));
+        }
+        assertThat(writes, contains("metric-1", "metric-2"));
+    }
+
+    @Test
+    public void failure_writing_a_result_does_not_prevent_writing_the_others() throws Exception {
+        final List<String> writes = new ArrayList<String>();
+        OutputWriter outputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                if ("metric-2".equals(name)) {
+                    throw new IOException("failure");
+                }
+                writes.add(name);
+            }
+        };
+        MetricBatch batch = new MetricBatch();
+        batch.writeLongQueryResult("metric-1", null, 1L);
+        batch.writeLongQueryResult("metric-2", null, 2L);
+        batch.writeLongQueryResult("metric-3", null, 3L);
+
+        try {
+            batch.writeTo(outputWriter);
+            throw new AssertionError("WriteException expected");
+        } catch (MetricBatch.WriteException e) {
+            assertThat(e.getFailedResultsCount(), is(1));
+        }
+        assertThat(writes, contains("metric-1", "metric-3"));
+    }
+
+    @Test
+    public void results_of_a_cycle_share_its_timestamp() throws Exception {
+        final List<Long> collectTimes = new ArrayList<Long>();
+        OutputWriter outputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                collectTimes.add(getCollectTimeInMillis());
+            }
+        };
+        OutputWritersChain chain = new OutputWritersChain(Arrays.asList(outputWriter));
+        CollectCycle cycle = new CollectCycle(7, 1234567890000L, System.nanoTime());
+
+        MetricBatch batch = new MetricBatch();
+        batch.setCycle(cycle);
+        batch.writeLongQueryResult("metric-1", null, 1L);
+        Thread.sleep(2);
+        batch.writeDoubleQueryResult("metric-2", null, 2.0);
+        assertThat(batch.getTimestampInMillis(0), is(1234567890000L));
+        assertThat(batch.getTimestampInMillis(1), is(1234567890000L));
+
+        OutputWriters.preCollect(chain, cycle);
+        chain.writeBatch(batch);
+        assertThat(collectTimes, contains(1234567890000L, 1234567890000L));
+
+        batch.clear();
+        assertThat(batch.getCycle(), is(nullValue()));
+    }
+}
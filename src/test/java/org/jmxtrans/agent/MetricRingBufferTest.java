@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MetricRingBufferTest {
+
+    @Test
+    public void capacity_is_rounded_to_power_of_two() {
+        assertThat(new MetricRingBuffer(5, MetricRingBuffer.OverflowPolicy.DROP_NEWEST, 0).capacity(), is(8));
+        assertThat(new MetricRingBuffer(8, MetricRingBuffer.OverflowPolicy.DROP_NEWEST, 0).capacity(), is(8));
+    }
+
+    @Test
+    public void numeric_records_are_replayed_as_primitives() throws Exception {
+        MetricRingBuffer ringBuffer = new MetricRingBuffer(4, MetricRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        ringBuffer.offerLong("long", null, 42L);
+        ringBuffer.offerDouble("double", null, 0.5);
+
+        final List<String> writes = new ArrayList<String>();
+        NumericOutputWriter outputWriter = new QueryTest.NumericMockOutputWriter() {
+            @Override
+            public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) {
+                writes.add(metricName + "=" + value + "L");
+            }
+
+            @Override
+            public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) {
+                writes.add(metricName + "=" + value + "D");
+            }
+        };
+        MetricRingBuffer.Record record = new MetricRingBuffer.Record();
+        while (ringBuffer.poll(record)) {
+            record.writeTo(outputWriter);
+        }
+        assertThat(writes, contains("long=42L", "double=0.5D"));
+    }
+
+    @Test
+    public void drop_newest_keeps_oldest_records() {
+        MetricRingBuffer ringBuffer = new MetricRingBuffer(4, MetricRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 6; i++) {
+            ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, "metric-" + i, null, i);
+        }
+        assertThat(ringBuffer.getDroppedCount(), is(2L));
+        assertThat(drain(ringBuffer), contains("metric-0", "metric-1", "metric-2", "metric-3"));
+    }
+
+    @Test
+    public void drop_oldest_keeps_newest_records() {
+        MetricRingBuffer ringBuffer = new MetricRingBuffer(4, MetricRingBuffer.OverflowPolicy.DROP_OLDEST, 0);
+        for (int i = 0; i < 6; i++) {
+            ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, "metric-" + i, null, i);
+        }
+        assertThat(ringBuffer.getDroppedCount(), is(2L));
+        assertThat(drain(ringBuffer), contains("metric-2", "metric-3", "metric-4", "metric-5"));
+    }
+
+    @Test
+    public void block_drops_newest_record_after_timeout() {
+        MetricRingBuffer ringBuffer = new MetricRingBuffer(2, MetricRingBuffer.OverflowPolicy.BLOCK, 50);
+        assertThat(ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, "metric-0", null, 0), is(true));
+        assertThat(ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, "metric-1", null, 1), is(true));
+        long startInNanos = System.nanoTime();
+        assertThat(ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, "metric-2", null, 2), is(false));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startInNanos), greaterThanOrEqualTo(50L));
+        assertThat(drain(ringBuffer), contains("metric-0", "metric-1"));
+    }
+
+    @Test
+    public void block_waits_for_consumer() throws Exception {
+        final MetricRingBuffer ringBuffer = new MetricRingBuffer(2, MetricRingBuffer.OverflowPolicy.BLOCK, 10000);
+        final List<String> consumed = new ArrayList<String>();
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                MetricRingBuffer.Record record = new MetricRingBuffer.Record();
+                while (consumed.size() < 100) {
+                    if (ringBuffer.poll(record)) {
+                        consumed.add(record.getName());
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        consumer.start();
+        for (int i = 0; i < 100; i++) {
+            assertThat(ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, "metric-" + i, null, i), is(true));
+        }
+        consumer.join(10000);
+        assertThat(consumed.size(), is(100));
+        assertThat(consumed.get(99), is("metric-99"));
+        assertThat(ringBuffer.getDroppedCount(), is(0L));
+    }
+
+    @Test
+    public void control_records_are_not_dropped() {
+        for (MetricRingBuffer.OverflowPolicy overflowPolicy : MetricRingBuffer.OverflowPolicy.values()) {
+            MetricRingBuffer ringBuffer = new MetricRingBuffer(16, overflowPolicy, 0);
+            assertThat(ringBuffer.offer(MetricRingBuffer.RecordType.PRE_COLLECT, "pre", null, null), is(true));
+            for (int i = 0; i < 20; i++) {
+                ringBuffer.offer(MetricRingBuffer.RecordType.QUERY_RESULT, "metric-" + i, null, i);
+            }
+            assertThat(ringBuffer.offer(MetricRingBuffer.RecordType.POST_COLLECT, "post", null, null), is(true));
+
+            List<String> records = drain(ringBuffer);
+            assertThat(overflowPolicy.name(), records.size(), is(ringBuffer.capacity() - 1));
+            assertThat(overflowPolicy.name(), records.get(0), is("pre"));
+            assertThat(overflowPolicy.name(), records.get(records.size() - 1), is("post"));
+        }
+    }
+
+    @Test
+    public void overflow_policy_is_parsed() {
+        assertThat(MetricRingBuffer.OverflowPolicy.parse("dropOldest"), is(MetricRingBuffer.OverflowPolicy.DROP_OLDEST));
+        assertThat(MetricRingBuffer.OverflowPolicy.parse("drop-newest"), is(MetricRingBuffer.OverflowPolicy.DROP_NEWEST));
+        assertThat(MetricRingBuffer.OverflowPolicy.parse("BLOCK"), is(MetricRingBuffer.OverflowPolicy.BLOCK));
+    }
+
+    private List<String> drain(MetricRingBuffer ringBuffer) {
+        List<String> result = new ArrayList<String>();
+        MetricRingBuffer.Record record = new MetricRingBuffer.Record();
+        while (ringBuffer.poll(record)) {
+            result.add(record.getName());
+        }
+        return result;
+    }
+}
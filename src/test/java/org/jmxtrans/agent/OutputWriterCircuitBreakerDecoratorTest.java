@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class OutputWriterCircuitBreakerDecoratorTest {
+
+    @Test
+    public void writer_failing_every_result_of_batches_is_disabled() throws Exception {
+        OutputWriter failingOutputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                throw new IOException("failure");
+            }
+        };
+        OutputWriterCircuitBreakerDecorator circuitBreaker = new OutputWriterCircuitBreakerDecorator(failingOutputWriter);
+        circuitBreaker.postConstruct(new HashMap<String, String>());
+
+        MetricBatch batch = new MetricBatch();
+        batch.writeQueryResult("metric-1", null, 1);
+        batch.writeQueryResult("metric-2", null, 2);
+
+        for (int cycle = 0; cycle < 3; cycle++) {
+            assertThat("cycle " + cycle, circuitBreaker.isDisabled(), is(false));
+            circuitBreaker.preCollect();
+            try {
+                circuitBreaker.writeBatch(batch);
+            } catch (MetricBatch.WriteException e) {
+                assertThat(e.getFailedResultsCount(), greaterThan(0));
+            }
+            // must not reset the failures of the batch
+            circuitBreaker.postCollect();
+        }
+        assertThat(circuitBreaker.isDisabled(), is(true));
+    }
+
+    @Test
+    public void failing_writer_is_disabled_in_the_middle_of_a_batch() throws Exception {
+        final AtomicInteger writesCount = new AtomicInteger();
+        OutputWriter failingOutputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                writesCount.incrementAndGet();
+                throw new IOException("failure");
+            }
+        };
+        OutputWriterCircuitBreakerDecorator circuitBreaker = new OutputWriterCircuitBreakerDecorator(failingOutputWriter);
+        circuitBreaker.postConstruct(new HashMap<String, String>());
+
+        MetricBatch batch = new MetricBatch();
+        for (int i = 0; i < 100; i++) {
+            batch.writeQueryResult("metric-" + i, null, i);
+        }
+        try {
+            circuitBreaker.writeBatch(batch);
+            throw new AssertionError("WriteException expected");
+        } catch (MetricBatch.WriteException e) {
+            assertThat(e.getFailedResultsCount(), is(5));
+        }
+        assertThat(writesCount.get(), is(5));
+        assertThat(circuitBreaker.isDisabled(), is(true));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ParallelCollectorTest {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ResultNameStrategy resultNameStrategy = new ResultNameStrategyImpl();
+    ParallelCollector parallelCollector;
+    CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void before() {
+        parallelCollector = new ParallelCollector(2, Executors.defaultThreadFactory());
+    }
+
+    @After
+    public void after() {
+        release.countDown();
+        parallelCollector.shutdown();
+    }
+
+    @Test
+    public void results_are_written_in_collectables_order() throws Exception {
+        CollectionPlan plan = new CollectionPlan(Arrays.asList(
+                new Query("java.lang:type=Runtime", "Uptime", "uptime", resultNameStrategy),
+                new Query("java.lang:type=Threading", "ThreadCount", "threads", resultNameStrategy),
+                new Query("java.lang:type=Runtime", "StartTime", "startTime", resultNameStrategy),
+                new Query("java.lang:type=ClassLoading", "LoadedClassCount", "loadedClasses", resultNameStrategy)));
+
+        final List<String> writtenNames = new ArrayList<String>();
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter() {
+            @Override
+            public void writeQueryResult(@Nonnull String name, @Nullable String type, @Nullable Object value) throws IOException {
+                super.writeQueryResult(name, type, value);
+                writtenNames.add(name);
+            }
+        };
+        parallelCollector.collectAndExport(plan.getQueryGroups(), new MBeanIndex(mbeanServer), outputWriter, ParallelCollector.NO_DEADLINE);
+        assertThat(writtenNames, contains("uptime", "startTime", "threads", "loadedClasses"));
+    }
+
+    @Test
+    public void hung_collectable_is_abandoned_and_quarantined() throws Exception {
+        HangingCollectable hanging = new HangingCollectable("hanging", 100L);
+        HangingCollectable fast = new HangingCollectable("fast", null);
+        fast.hang = false;
+        List<HangingCollectable> collectables = Arrays.asList(hanging, fast);
+        MBeanIndex mbeanIndex = new MBeanIndex(mbeanServer);
+
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        long startInNanos = System.nanoTime();
+        parallelCollector.collectAndExport(collectables, mbeanIndex, outputWriter, ParallelCollector.NO_DEADLINE);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startInNanos), lessThan(5000L));
+        assertThat(outputWriter.resultsByName.containsKey("hanging"), is(false));
+        assertThat(outputWriter.resultsByName.get("fast"), is((Object) 1));
+        assertThat(parallelCollector.getTimeoutsCount(), is(1L));
+
+        // quarantined: not collected again
+        release.countDown();
+        outputWriter = new QueryTest.MockOutputWriter();
+        parallelCollector.collectAndExport(collectables, mbeanIndex, outputWriter, ParallelCollector.NO_DEADLINE);
+        assertThat(hanging.invocationsCount.get(), is(1));
+        assertThat(outputWriter.resultsByName.get("fast"), is((Object) 2));
+    }
+
+    @Test
+    public void cycle_deadline_abandons_running_collectables() throws Exception {
+        HangingCollectable hanging = new HangingCollectable("hanging", null);
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter();
+        long deadlineInNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        parallelCollector.collectAndExport(Arrays.asList(hanging), new MBeanIndex(mbeanServer), outputWriter, deadlineInNanos);
+        assertThat(outputWriter.resultsByName.isEmpty(), is(true));
+        assertThat(parallelCollector.getTimeoutsCount(), is(1L));
+    }
+
+    class HangingCollectable implements Collectable {
+        final String name;
+        final Long collectTimeoutInMillis;
+        final AtomicInteger invocationsCount = new AtomicInteger();
+        boolean hang = true;
+
+        HangingCollectable(String name, Long collectTimeoutInMillis) {
+            this.name = name;
+            this.collectTimeoutInMillis = collectTimeoutInMillis;
+        }
+
+        @Override
+        public void collectAndExport(@Nonnull MBeanIndex mbeanIndex, @Nonnull OutputWriter outputWriter) throws Exception {
+            int count = invocationsCount.incrementAndGet();
+            if (hang) {
+                // simulate a JMX call ignoring interruptions
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+            }
+            outputWriter.writeQueryResult(name, null, count);
+        }
+
+        @Nullable
+        @Override
+        public Long getCollectTimeoutInMillis() {
+            return collectTimeoutInMillis;
+        }
+
+        @Nullable
+        @Override
+        public ObjectName getObjectName() {
+            return null;
+        }
+    }
+}
@@ -31,10 +31,15 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.*;
 
 /**
@@ -192,6 +197,97 @@ public class QueryTest {
         assert (actualSize == 24);
     }
 
+    @Test
+    public void int_array_attribute_returns_all_elements_unboxed() throws Exception {
+        final List<String> longResults = new ArrayList<String>();
+        mockOutputWriter = new NumericMockOutputWriter() {
+            @Override
+            public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+                longResults.add(metricName + "=" + value);
+            }
+        };
+        Query query = new Query("test:type=Mock,name=mock", "IntArray", null, null, null, "IntArray_#position#", resultNameStrategy);
+        query.collectAndExport(mbeanServer, mockOutputWriter);
+        assertThat(longResults, contains("IntArray_0=0", "IntArray_1=1", "IntArray_2=2", "IntArray_3=3", "IntArray_4=4", "IntArray_5=5"));
+    }
+
+    @Test
+    public void array_attribute_position_out_of_bounds_is_ignored() throws Exception {
+        Query query = new Query("test:type=Mock,name=mock", "IntArray", null, 10, null, "IntArray", resultNameStrategy);
+        query.collectAndExport(mbeanServer, mockOutputWriter);
+        assertThat(mockOutputWriter.resultsByName.isEmpty(), is(true));
+    }
+
+    @Test
+    public void result_names_are_cached_until_eviction() throws Exception {
+        final AtomicInteger resultNamesCount = new AtomicInteger();
+        ResultNameStrategy countingResultNameStrategy = new ResultNameStrategyImpl() {
+            @Override
+            public String getResultName(@Nonnull Query query, @Nonnull ObjectName objectName, @Nonnull String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+                resultNamesCount.incrementAndGet();
+                return super.getResultName(query, objectName, attribute, compositeDataKey, position);
+            }
+        };
+        Query query = new Query("test:type=Mock,name=mock", "IntegerList", countingResultNameStrategy);
+        query.collectAndExport(mbeanServer, mockOutputWriter);
+        int namesCount = resultNamesCount.get();
+        assertThat(namesCount, greaterThan(0));
+
+        mockOutputWriter = new MockOutputWriter();
+        query.collectAndExport(mbeanServer, mockOutputWriter);
+        assertThat(resultNamesCount.get(), is(namesCount));
+
+        query.evictResultNames(mockObjectName);
+        mockOutputWriter = new MockOutputWriter();
+        query.collectAndExport(mbeanServer, mockOutputWriter);
+        assertThat(resultNamesCount.get(), is(2 * namesCount));
+    }
+
+    @Test
+    public void result_names_of_all_the_matching_mbeans_are_cached() throws Exception {
+        int mbeansCount = 1100;
+        for (int i = 0; i < mbeansCount; i++) {
+            mbeanServer.registerMBean(new Mock("mock-" + i, i), new ObjectName("test:type=ManyMock,name=mock-" + i));
+        }
+        try {
+            final AtomicInteger resultNamesCount = new AtomicInteger();
+            ResultNameStrategy countingResultNameStrategy = new ResultNameStrategyImpl() {
+                @Override
+                public String getResultName(@Nonnull Query query, @Nonnull ObjectName objectName, @Nonnull String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+                    resultNamesCount.incrementAndGet();
+                    return super.getResultName(query, objectName, attribute, compositeDataKey, position);
+                }
+            };
+            Query query = new Query("test:type=ManyMock,*", "CollectionUsageThreshold", countingResultNameStrategy);
+            query.collectAndExport(mbeanServer, mockOutputWriter);
+            assertThat(resultNamesCount.get(), is(mbeansCount));
+
+            mockOutputWriter = new MockOutputWriter();
+            query.collectAndExport(mbeanServer, mockOutputWriter);
+            assertThat(resultNamesCount.get(), is(mbeansCount));
+        } finally {
+            for (int i = 0; i < mbeansCount; i++) {
+                mbeanServer.unregisterMBean(new ObjectName("test:type=ManyMock,name=mock-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void numeric_values_are_written_as_primitives() throws Exception {
+        final List<String> longResults = new ArrayList<String>();
+        mockOutputWriter = new NumericMockOutputWriter() {
+            @Override
+            public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+                longResults.add(metricName);
+                super.writeLongQueryResult(metricName, metricType, value);
+            }
+        };
+        Query query = new Query("test:type=Mock,name=mock", "CollectionUsageThreshold", null, null, null, "CollectionUsageThreshold", resultNameStrategy);
+        query.collectAndExport(mbeanServer, mockOutputWriter);
+        assertThat(longResults, hasItem("CollectionUsageThreshold"));
+        assertThat(mockOutputWriter.resultsByName.get("CollectionUsageThreshold"), instanceOf(Long.class));
+    }
+
     public static class MockOutputWriter extends AbstractOutputWriter {
 
         protected final boolean failOnDuplicateResult;
@@ -218,4 +314,17 @@ public class QueryTest {
             writeQueryResult(invocationName, null, value);
         }
     }
+
+    public static class NumericMockOutputWriter extends MockOutputWriter implements NumericOutputWriter {
+
+        @Override
+        public void writeLongQueryResult(@Nonnull String metricName, @Nullable String metricType, long value) throws IOException {
+            writeQueryResult(metricName, metricType, value);
+        }
+
+        @Override
+        public void writeDoubleQueryResult(@Nonnull String metricName, @Nullable String metricType, double value) throws IOException {
+            writeQueryResult(metricName, metricType, value);
+        }
+    }
 }
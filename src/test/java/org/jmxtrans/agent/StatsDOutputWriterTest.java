@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class StatsDOutputWriterTest {
+
+    @Test
+    public void primitive_values_are_formatted_like_boxed_values() throws Exception {
+        long[] longValues = {0, -12, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE};
+        double[] doubleValues = {0.5, -0.0, 1.0E-5, 1.0E21, 123456.789, Double.MAX_VALUE, Double.NaN};
+
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(5000);
+        try {
+            StatsDOutputWriter writer = new StatsDOutputWriter();
+            Map<String, String> settings = new HashMap<String, String>();
+            settings.put(StatsDOutputWriter.SETTING_HOST, "127.0.0.1");
+            settings.put(StatsDOutputWriter.SETTING_PORT, Integer.toString(socket.getLocalPort()));
+            settings.put(StatsDOutputWriter.SETTING_ROOT_PREFIX, "tomcat1");
+            settings.put(StatsDOutputWriter.SETTING_BUFFER_SIZE, "8192");
+            writer.postConstruct(settings);
+
+            for (long value : longValues) {
+                writer.writeQueryResult("metric", null, value);
+                writer.writeLongQueryResult("metric", null, value);
+            }
+            for (double value : doubleValues) {
+                writer.writeQueryResult("metric", null, value);
+                writer.writeDoubleQueryResult("metric", null, value);
+            }
+            writer.postCollect();
+
+            DatagramPacket packet = new DatagramPacket(new byte[8192], 8192);
+            socket.receive(packet);
+            List<String> received = Arrays.asList(new String(packet.getData(), 0, packet.getLength(), "UTF-8").split("\n"));
+
+            List<String> expected = new ArrayList<String>();
+            for (long value : longValues) {
+                expected.add("tomcat1.metric:" + Long.valueOf(value) + "|c");
+                expected.add("tomcat1.metric:" + Long.valueOf(value) + "|c");
+            }
+            for (double value : doubleValues) {
+                expected.add("tomcat1.metric:" + Double.valueOf(value) + "|c");
+                expected.add("tomcat1.metric:" + Double.valueOf(value) + "|c");
+            }
+            assertThat(received, is(expected));
+        } finally {
+            socket.close();
+        }
+    }
+}
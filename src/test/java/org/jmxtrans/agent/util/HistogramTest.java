@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class HistogramTest {
+
+    @Test
+    public void bucket_upper_bound_contains_value() {
+        for (long value : new long[]{0, 1, 3, 4, 7, 8, 9, 10, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+            int index = Histogram.bucketIndex(value);
+            assertThat("value " + value, Histogram.bucketUpperBound(index), greaterThanOrEqualTo(value));
+            if (index > 0) {
+                assertThat("value " + value, Histogram.bucketUpperBound(index - 1), lessThan(value));
+            }
+        }
+    }
+
+    @Test
+    public void percentiles_are_approximated() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is(1000L));
+        assertThat(snapshot.getMean(), is(500L));
+        assertThat(snapshot.getMax(), is(1000L));
+        assertThat(snapshot.getP50(), both(greaterThanOrEqualTo(500L)).and(lessThan(625L)));
+        assertThat(snapshot.getP99(), both(greaterThanOrEqualTo(990L)).and(lessThanOrEqualTo(1000L)));
+
+        histogram.reset();
+        assertThat(histogram.snapshot().getCount(), is(0L));
+        assertThat(histogram.snapshot().getP99(), is(0L));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TimingWheelTest {
+
+    @Test
+    public void elements_are_due_at_multiples_of_their_period() {
+        TimingWheel<String> timingWheel = new TimingWheel<String>(4);
+        timingWheel.schedule("every-tick", 1);
+        timingWheel.schedule("every-3-ticks", 3);
+        timingWheel.schedule("every-10-ticks", 10);
+
+        assertThat(timingWheel.tick(), contains("every-tick", "every-3-ticks", "every-10-ticks")); // 0
+        assertThat(timingWheel.tick(), contains("every-tick")); // 1
+        assertThat(timingWheel.tick(), contains("every-tick")); // 2
+        assertThat(timingWheel.tick(), contains("every-tick", "every-3-ticks")); // 3
+        for (int tick = 4; tick < 10; tick++) {
+            List<String> due = timingWheel.tick();
+            assertThat(due.contains("every-10-ticks"), is(false));
+            assertThat(due.contains("every-3-ticks"), is(tick % 3 == 0));
+        }
+        assertThat(timingWheel.tick(), contains("every-tick", "every-10-ticks")); // 10
+    }
+
+    @Test
+    public void element_scheduled_after_start_waits_for_next_multiple_of_its_period() {
+        TimingWheel<String> timingWheel = new TimingWheel<String>(8);
+        timingWheel.tick(); // 0
+        timingWheel.schedule("every-5-ticks", 5);
+        for (int tick = 1; tick < 5; tick++) {
+            assertThat(timingWheel.tick(), empty());
+        }
+        assertThat(timingWheel.tick(), contains("every-5-ticks")); // 5
+    }
+
+    @Test
+    public void skipped_ticks_return_due_elements_once() {
+        TimingWheel<String> timingWheel = new TimingWheel<String>(4, 100);
+        timingWheel.schedule("every-tick", 1);
+        timingWheel.schedule("every-4-ticks", 4);
+        timingWheel.schedule("every-50-ticks", 50);
+
+        assertThat(timingWheel.tick(), contains("every-tick", "every-4-ticks", "every-50-ticks")); // 100
+        assertThat(timingWheel.advanceTo(104), contains("every-tick", "every-4-ticks")); // 101 to 104
+        assertThat(timingWheel.advanceTo(104), empty());
+        assertThat(timingWheel.advanceTo(160), contains("every-tick", "every-4-ticks", "every-50-ticks"));
+        assertThat(timingWheel.getCurrentTick(), is(161L));
+    }
+
+    @Test
+    public void elements_with_an_offset_are_spread_over_their_period() {
+        TimingWheel<String> timingWheel = new TimingWheel<String>(8, 10);
+        timingWheel.schedule("offset-0", 4, 0);
+        timingWheel.schedule("offset-1", 4, 1);
+        timingWheel.schedule("offset-3", 4, 3);
+
+        assertThat(timingWheel.tick(), empty()); // 10
+        assertThat(timingWheel.tick(), contains("offset-3")); // 11
+        assertThat(timingWheel.tick(), contains("offset-0")); // 12
+        assertThat(timingWheel.tick(), contains("offset-1")); // 13
+        assertThat(timingWheel.tick(), empty()); // 14
+        assertThat(timingWheel.tick(), contains("offset-3")); // 15
+    }
+}